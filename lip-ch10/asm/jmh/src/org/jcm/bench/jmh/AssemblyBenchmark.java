@@ -0,0 +1,50 @@
+package org.jcm.bench.jmh;
+
+import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.Program;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to lex, parse and assemble a workload into a Program, including
+ *  the load-time analyses Program runs, separately from executing it.
+ *  vm:workload names the instruction set and the workload.
+ *
+ * @author jmarchesini
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class AssemblyBenchmark {
+    @Param({"stack:factorial", "stack:loop", "stack:struct", "register:loop", "register:struct"})
+    public String program;
+
+    String source;
+    BytecodeDefBase bcDef;
+
+    @Setup
+    public void read() {
+        boolean reg = program.startsWith("register:");
+        source = Workloads.source(program.substring(program.indexOf(':') + 1), reg);
+        bcDef = Workloads.definition(reg);
+    }
+
+    @Benchmark
+    public Program assemble() {
+        return Program.assemble(source, bcDef);
+    }
+}
@@ -0,0 +1,147 @@
+package org.jcm.bench.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two CSV result files from RunBenchmarks, benchmark by benchmark
+ *  and parameter by parameter: the score and the bytes allocated per
+ *  operation (gc.alloc.rate.norm).  Prints the change of each and exits
+ *  with status 1 if any got worse by more than the threshold percentage,
+ *  so a build can fail on a regression.  Benchmarks in only one file are
+ *  listed but never fail the comparison.
+ *
+ *  usage: CompareResults baseline.csv current.csv [-threshold percent]
+ *
+ * @author jmarchesini
+ */
+public class CompareResults {
+    static final String ALLOC = "gc.alloc.rate.norm"; // JMH prefixes it with ":·"
+
+    static class Score {
+        final double value;
+        final String unit;
+        final boolean higherIsBetter;
+
+        Score(double value, String unit, boolean higherIsBetter) {
+            this.value = value;
+            this.unit = unit;
+            this.higherIsBetter = higherIsBetter;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: CompareResults baseline.csv current.csv [-threshold percent]");
+            System.exit(2);
+        }
+
+        double threshold = args.length > 3 && args[2].equals("-threshold") ? Double.parseDouble(args[3]) : 5;
+        Map<String, Score> baseline = read(args[0]);
+        Map<String, Score> current = read(args[1]);
+        int regressions = 0;
+
+        System.out.printf("%-70s %14s %14s %9s\n", "benchmark", "baseline", "current", "change");
+
+        for (Map.Entry<String, Score> e : current.entrySet()) {
+            Score now = e.getValue();
+            Score then = baseline.get(e.getKey());
+
+            if (then == null) {
+                System.out.printf("%-70s %14s %14.3f %9s\n", e.getKey(), "-", now.value, "new");
+                continue;
+            }
+
+            // positive is better, whichever way the metric goes
+            double change = 100 * (now.value - then.value) / then.value;
+
+            if (!now.higherIsBetter)
+                change = -change;
+
+            boolean regressed = change < -threshold;
+
+            if (regressed)
+                regressions++;
+
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%%%s\n", e.getKey(), then.value, now.value,
+                change, regressed ? "  REGRESSION" : "");
+        }
+
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key))
+                System.out.printf("%-70s %14.3f %14s %9s\n", key, baseline.get(key).value, "-", "gone");
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    /* benchmark[params] -> score, for primary results and allocation per op */
+    static Map<String, Score> read(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        Map<String, Score> scores = new LinkedHashMap<>();
+
+        if (lines.isEmpty())
+            return scores;
+
+        List<String> header = split(lines.get(0));
+        int benchmark = header.indexOf("Benchmark");
+        int mode = header.indexOf("Mode");
+        int score = header.indexOf("Score");
+        int unit = header.indexOf("Unit");
+
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> row = split(line);
+            String name = row.get(benchmark);
+            boolean primary = !name.contains(":");
+
+            if (!primary && !name.endsWith(ALLOC))
+                continue;
+
+            StringBuilder key = new StringBuilder(name);
+
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: "))
+                    key.append(i == unit + 1 ? "[" : ",").append(row.get(i));
+            }
+
+            if (key.length() > name.length())
+                key.append(']');
+
+            boolean higherIsBetter = primary && row.get(mode).equals("thrpt");
+            scores.put(key.toString(), new Score(Double.parseDouble(row.get(score)), row.get(unit), higherIsBetter));
+        }
+
+        return scores;
+    }
+
+    /* One CSV record; fields may be double-quoted */
+    static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (c == '"')
+                quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else
+                field.append(c);
+        }
+
+        fields.add(field.toString());
+
+        return fields;
+    }
+}
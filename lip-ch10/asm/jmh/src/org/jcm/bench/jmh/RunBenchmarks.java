@@ -0,0 +1,63 @@
+package org.jcm.bench.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks headless with the gc profiler, for allocation rate
+ *  per operation next to each score, and writes the results as CSV for
+ *  CompareResults.  Run from lip-ch10/asm, or point -Djcm.programs there;
+ *  gradle jmh in the jmh directory builds and runs it that way (see
+ *  build.gradle).
+ *
+ *  usage: RunBenchmarks [-o results.csv] [-quick] [regex ...]
+ *
+ * -quick runs one fork with short iterations, for a smoke test rather
+ *  than numbers to compare.
+ *
+ * @author jmarchesini
+ */
+public class RunBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        String output = "jmh-results.csv";
+        boolean quick = false;
+        ChainedOptionsBuilder options = new OptionsBuilder();
+        boolean included = false;
+        int i = 0;
+
+        while (i < args.length) {
+            switch (args[i]) {
+                case "-o":
+                    output = args[i + 1];
+                    i += 2;
+                    break;
+                case "-quick":
+                    quick = true;
+                    i++;
+                    break;
+                default:
+                    options.include(args[i]);
+                    included = true;
+                    i++;
+                    break;
+            }
+        }
+
+        if (!included)
+            options.include(RunBenchmarks.class.getPackage().getName() + ".*Benchmark");
+
+        if (quick)
+            options.forks(1).warmupIterations(1).measurementIterations(2);
+
+        options.addProfiler(GCProfiler.class)
+               .jvmArgsAppend("-Djcm.programs=" + Workloads.ROOT.toAbsolutePath())
+               .resultFormat(ResultFormatType.CSV)
+               .result(output);
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,57 @@
+package org.jcm.bench.jmh;
+
+import org.jcm.asm.Program;
+import org.jcm.stack.StackInterpreter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-program executions per second on StackInterpreter, one fresh
+ *  interpreter per execution of a Program assembled once per trial, so
+ *  assembly is not part of the score (see AssemblyBenchmark).
+ *
+ * @author jmarchesini
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class StackInterpreterBenchmark {
+    @Param({"factorial", "struct", "factorial@1000", "loop@100000", "struct@100000"}) // loop alone is seconds per op
+    public String workload;
+
+    Program program;
+    PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+    @Setup
+    public void assemble() {
+        program = Program.assemble(Workloads.source(workload, false), Workloads.definition(false));
+
+        if (program.hasErrors())
+            throw new IllegalStateException("workload " + workload + " does not assemble");
+    }
+
+    @Benchmark
+    public long exec() {
+        StackInterpreter interp = new StackInterpreter(program);
+        interp.setOutput(sink);
+        interp.exec();
+
+        return interp.getInstructionsRetired();
+    }
+}
@@ -0,0 +1,95 @@
+package org.jcm.bench.jmh;
+
+import org.jcm.asm.BytecodeDefBase;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Guest programs the benchmarks run, by name.  A plain name is the shipped
+ *  program of that name, from src/org/jcm/stack/pcode or reg/rcode under
+ *  the directory in -Djcm.programs (default: the working directory).
+ *  name@n is a variant scaled to n:
+ *
+ * <pre>
+ *     factorial@n  fact(n), n calls deep
+ *     loop@n       the loop, n iterations instead of 100000000
+ *     struct@n     n struct allocations, each with a field store and load
+ * </pre>
+ *
+ * @author jmarchesini
+ */
+public final class Workloads {
+    static final Path ROOT = Paths.get(System.getProperty("jcm.programs", "."));
+
+    private Workloads() { }
+
+    /** Source of workload for the register VM if reg, else the stack VM. */
+    public static String source(String workload, boolean reg) {
+        int at = workload.indexOf('@');
+        String name = at < 0 ? workload : workload.substring(0, at);
+
+        if (at < 0)
+            return shipped(name, reg);
+
+        int n = Integer.parseInt(workload.substring(at + 1));
+
+        switch (name) {
+            case "factorial":
+                if (reg)
+                    throw new IllegalArgumentException("factorial has no register VM version");
+
+                return shipped(name, false).replace("iconst 10\n", "iconst " + n + "\n");
+            case "loop":
+                return shipped(name, reg).replace("100000000", Integer.toString(n));
+            case "struct":
+                return reg ? regStructLoop(n) : stackStructLoop(n);
+            default:
+                throw new IllegalArgumentException("no scaled variant of " + name);
+        }
+    }
+
+    public static BytecodeDefBase definition(boolean reg) {
+        return reg ? new org.jcm.reg.BytecodeDefinition() : new org.jcm.stack.BytecodeDefinition();
+    }
+
+    static String shipped(String name, boolean reg) {
+        Path file = reg ? ROOT.resolve("src/org/jcm/reg/rcode/" + name + ".rcode")
+                        : ROOT.resolve("src/org/jcm/stack/pcode/" + name + ".pcode");
+
+        try {
+            return Files.readString(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("no workload " + name + " at " + file.toAbsolutePath(), e);
+        }
+    }
+
+    static String stackStructLoop(int n) {
+        return ".def main: args=0, locals=2\n" +
+            "\ticonst " + n + "\n\tstore 0\n" +
+            "loop:\n" +
+            "\ticonst 0\n\tload 0\n\tilt\n\tbrf done\n" +
+            "\tstruct 2\n\tstore 1\n" +
+            "\tload 0\n\tload 1\n\tfstore 0\n" +
+            "\tload 1\n\tfload 0\n\tpop\n" +
+            "\tload 0\n\ticonst -1\n\tiadd\n\tstore 0\n" +
+            "\tbr loop\n" +
+            "done:\n\thalt\n";
+    }
+
+    static String regStructLoop(int n) {
+        return ".def main: args=0, locals=5\n" +
+            "\ticonst r1, " + n + "\n\ticonst r2, 0\n\ticonst r3, -1\n" +
+            "loop:\n" +
+            "\tilt r2, r1, r4\n\tbrf r4, done\n" +
+            "\tstruct r5, 2\n" +
+            "\tfstore r1, r5, 0\n" +
+            "\tfload r4, r5, 0\n" +
+            "\tiadd r1, r3, r1\n" +
+            "\tbr loop\n" +
+            "done:\n\thalt\n";
+    }
+}
@@ -0,0 +1,760 @@
+package org.jcm.asm;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Ahead-of-time translation of a Program into a JVM class, one static
+ *  method per FunctionSymbol, compiled with the JDK's own compiler and
+ *  packaged by writeJar() with the small runtime it needs into a JAR
+ *  that runs with java -jar.  Subclasses translate the instructions of
+ *  one instruction set; this class does the typing, control flow,
+ *  compiling and packaging.
+ *
+ * Each local, register or operand stack slot of a function becomes a JVM
+ *  local, and each parameter and result a typed parameter and result.
+ *  Types come from iterating over the whole program until nothing widens:
+ *  a slot is int, float or boolean if only values of that type can reach
+ *  it, and Object otherwise.  A slot read where it may not have been
+ *  written yet can hold null, so it is Object.  Globals, struct fields,
+ *  chars, strings, arrays and what comes out of channels and tasks are
+ *  Object, as in the interpreters; everything else is unboxed.
+ *
+ * A function with branches is a loop around a switch on its basic blocks,
+ *  so each guest loop is a JVM loop the JIT can compile as such.
+ *  Programs whose operand stack depth at some instruction depends on the
+ *  path taken, functions that run on into the next one, and ncall of
+ *  anything outside HostLibrary are not translated; translate() throws
+ *  IllegalArgumentException saying why.  Guest errors, halt, spawn and
+ *  running off the end of the code behave as they do interpreted.  Only
+ *  calls are not checked: guest recursion ends in StackOverflowError.
+ *
+ * @author jmarchesini
+ */
+public abstract class AotCompiler {
+    /* Slot types, from bottom to top; see join() */
+    public static final int NONE = 0; // nothing reaches it
+    public static final int INT = 1;
+    public static final int FLOAT = 2;
+    public static final int BOOLEAN = 3;
+    public static final int OBJECT = 4;
+
+    public static final String DEFAULT_CLASS_NAME = "GuestProgram";
+
+    /** Classes translated code uses besides its own; writeJar() adds them. */
+    static final Class<?>[] RUNTIME = {
+        AotRuntime.class, Ops.class, StructSpace.class, TypedStruct.class, StructLayout.class,
+        StructArena.class, Channel.class, HostLibrary.class
+    };
+
+    protected final Program program;
+    protected final Object[] constPool;
+    protected final DecodedCode code;
+    protected final FunctionSymbol[] functions; // distinct ones in the pool, then an implicit main
+    protected final ControlFlowGraph[] cfgs;
+    protected final int main;                   // the entry point, by index in functions
+    protected final int[][] params;             // parameter types, by function
+    protected final int[] results;              // result types, by function
+    protected int[][] slots;                    // slot types, by function; see numSlots()
+
+    private final Map<FunctionSymbol, Integer> index = new IdentityHashMap<>();
+    private final Map<Integer, String> layoutFields = new TreeMap<>();
+    private BitSet[][] assignedIn; // slots written on every path to a block
+    private boolean widened;
+
+    protected AotCompiler(Program program) {
+        if (program.hasErrors())
+            throw new IllegalArgumentException("program has syntax errors");
+
+        this.program = program;
+        this.constPool = program.constPool;
+        this.code = program.decode();
+
+        for (Object o : constPool) {
+            if (o instanceof FunctionSymbol && !index.containsKey(o))
+                index.put((FunctionSymbol) o, index.size());
+        }
+
+        FunctionSymbol entry = program.mainFunction;
+        int n = index.size() + (entry == null ? 1 : 0);
+        functions = new FunctionSymbol[n];
+        index.forEach((f, i) -> functions[i] = f);
+        cfgs = new ControlFlowGraph[n];
+        int[] b = FunctionSymbol.boundaries(constPool, program.codeSize);
+
+        for (int i = 0; i < index.size(); i++)
+            cfgs[i] = ControlFlowGraph.build(code, functions[i], b);
+
+        if (entry == null) { // code at 0 runs as main, see InterpreterBase.implicitMain()
+            functions[n - 1] = new FunctionSymbol("main", 0, 0, 0);
+            cfgs[n - 1] = ControlFlowGraph.build(code, 0, b.length > 1 ? b[1] : program.codeSize);
+            main = n - 1;
+        } else {
+            Integer m = index.get(entry);
+            main = m != null ? m : 0;
+        }
+
+        params = new int[n][];
+        results = new int[n];
+
+        for (int i = 0; i < n; i++)
+            params[i] = new int[functions[i].numArgs];
+    }
+
+    /* Instruction set specifics */
+
+    /** Work out anything numSlots() depends on; may reject the program. */
+    protected void prepare() { }
+
+    protected abstract int numSlots(int f);
+
+    /** The slot holding parameter k on entry. */
+    protected abstract int paramSlot(int f, int k);
+
+    protected abstract String slotName(int f, int slot);
+
+    /** False if calls to f leave nothing behind; the method is then void. */
+    protected boolean returnsValue(int f) { return true; }
+
+    /** Add the slots instruction i writes to written. */
+    protected abstract void assigns(int f, int i, BitSet written);
+
+    /** Widen the types instruction i gives values; slots in assigned are surely written. */
+    protected abstract void infer(int f, int i, BitSet assigned);
+
+    /** Append the Java statements for instruction i. */
+    protected abstract void emit(int f, int i, String indent, StringBuilder out);
+
+    /* Typing */
+
+    /** Least type holding values of both a and b. */
+    public static int join(int a, int b) {
+        if (a == NONE || a == b)
+            return b;
+
+        return b == NONE ? a : OBJECT;
+    }
+
+    protected final int slotType(int f, int slot) { return slots[f][slot]; }
+
+    protected final void widenSlot(int f, int slot, int type) {
+        int t = join(slots[f][slot], type);
+
+        if (t != slots[f][slot]) {
+            slots[f][slot] = t;
+            widened = true;
+        }
+    }
+
+    protected final void widenParam(int f, int k, int type) {
+        int t = join(params[f][k], type);
+
+        if (t != params[f][k]) {
+            params[f][k] = t;
+            widened = true;
+        }
+    }
+
+    protected final void widenResult(int f, int type) {
+        int t = join(results[f], type);
+
+        if (t != results[f]) {
+            results[f] = t;
+            widened = true;
+        }
+    }
+
+    /** Type of a read of slot, which is null if it may not have been written. */
+    protected final int readType(int f, int slot, BitSet assigned) {
+        if (!assigned.get(slot))
+            widenSlot(f, slot, OBJECT);
+
+        return slots[f][slot];
+    }
+
+    /** Index in functions of the FunctionSymbol at constant pool index poolIndex. */
+    protected final int function(int poolIndex) { return index.get((FunctionSymbol) constPool[poolIndex]); }
+
+    /** How many slots ended up unboxed, and how many there are, after translate(). */
+    public final int[] getUnboxedSlots() {
+        int unboxed = 0, all = 0;
+
+        for (int[] types : slots) {
+            for (int t : types) {
+                all++;
+
+                if (t != NONE && t != OBJECT)
+                    unboxed++;
+            }
+        }
+
+        return new int[] {unboxed, all};
+    }
+
+    /* Translation */
+
+    /** Java source of a class named className that runs the program. */
+    public final String translate(String className) {
+        prepare();
+        int n = functions.length;
+        slots = new int[n][];
+        assignedIn = new BitSet[n][];
+
+        for (int f = 0; f < n; f++) {
+            slots[f] = new int[numSlots(f)];
+            assignedIn[f] = definitelyAssigned(f);
+        }
+
+        for (int k = 0; k < params[main].length; k++)
+            params[main][k] = OBJECT; // the interpreters enter main with nulls
+
+        do {
+            widened = false;
+
+            for (int f = 0; f < n; f++) {
+                for (int k = 0; k < params[f].length; k++)
+                    widenSlot(f, paramSlot(f, k), params[f][k]);
+
+                for (BasicBlock bb : cfgs[f].getBlocks()) {
+                    if (!bb.isReachable())
+                        continue;
+
+                    BitSet assigned = (BitSet) assignedIn[f][bb.index].clone();
+
+                    for (int i = bb.first; i <= bb.last; i++) {
+                        infer(f, i, assigned);
+                        assigns(f, i, assigned);
+                    }
+                }
+            }
+        } while (widened);
+
+        StringBuilder methods = new StringBuilder();
+
+        for (int f = 0; f < n; f++)
+            emitFunction(f, methods);
+
+        StringBuilder out = new StringBuilder();
+        out.append("import org.jcm.asm.AotRuntime;\n");
+        out.append("import org.jcm.asm.Channel;\n");
+        out.append("import org.jcm.asm.HostLibrary;\n");
+        out.append("import org.jcm.asm.Ops;\n");
+        out.append("import org.jcm.asm.StructLayout;\n");
+        out.append("import org.jcm.asm.StructSpace;\n\n");
+        out.append("/** Translated from guest code by ").append(getClass().getName()).append(". */\n");
+        out.append("public final class ").append(className).append(" {\n");
+        out.append("    static Object[] G; // globals\n");
+
+        layoutFields.forEach((poolIndex, field) -> out.append("    static final StructLayout ").append(field)
+            .append(" = StructLayout.parse(").append(literal(constPool[poolIndex])).append(");\n"));
+
+        out.append("\n    public static void main(String[] args) { run(); }\n\n");
+        out.append("    /** Run the program from main until it halts or returns. */\n");
+        out.append("    public static void run() {\n");
+        out.append("        G = new Object[").append(program.dataSize).append("];\n\n");
+        out.append("        try {\n");
+        out.append("            ").append(methodName(main)).append('(');
+
+        for (int k = 0; k < params[main].length; k++)
+            out.append(k > 0 ? ", " : "").append("null");
+
+        out.append(");\n");
+        out.append("        } catch (AotRuntime.Halt h) {\n");
+        out.append("            // halted\n");
+        out.append("        }\n");
+        out.append("    }\n");
+        out.append(methods);
+        out.append("}\n");
+
+        return out.toString();
+    }
+
+    private void emitFunction(int f, StringBuilder out) {
+        FunctionSymbol fs = functions[f];
+        ControlFlowGraph cfg = cfgs[f];
+        BasicBlock[] blocks = cfg.getBlocks();
+        boolean loop = false;
+
+        for (BasicBlock bb : blocks) {
+            if (bb.isReachable() && code.branchTarget(bb.last) >= 0)
+                loop = true;
+        }
+
+        out.append("\n    /* ").append(fs.name).append(" at ").append(fs.address).append(" */\n");
+        out.append("    static ").append(returnsValue(f) ? javaType(results[f]) : "void").append(' ')
+            .append(methodName(f)).append('(');
+
+        for (int k = 0; k < params[f].length; k++)
+            out.append(k > 0 ? ", " : "").append(javaType(params[f][k])).append(" a").append(k);
+
+        out.append(") {\n");
+
+        for (int s = 0; s < slots[f].length; s++) {
+            int k = paramOf(f, s);
+            String init = k >= 0 ? convert("a" + k, params[f][k], slots[f][s]) : zero(slots[f][s]);
+            out.append("        ").append(javaType(slots[f][s])).append(' ').append(slotName(f, s))
+                .append(" = ").append(init).append(";\n");
+        }
+
+        String indent = loop ? "                " : "        ";
+
+        if (loop)
+            out.append("\n        int b = 0;\n\n        for (;;) {\n            switch (b) {\n");
+
+        for (BasicBlock bb : blocks) {
+            if (!bb.isReachable())
+                continue;
+
+            if (loop)
+                out.append("            case ").append(bb.index).append(":\n");
+
+            for (int i = bb.first; i <= bb.last; i++)
+                emit(f, i, indent, out);
+        }
+
+        BasicBlock last = blocks.length > 0 ? blocks[blocks.length - 1] : null;
+
+        if (last == null || last.isReachable() && fallsThrough(code.flow(last.last))) {
+            int end = last != null ? last.end : fs.address;
+
+            if (end < program.codeSize)
+                throw new IllegalArgumentException(fs.name + " runs on past its end at " + end +
+                    " into the next function");
+
+            out.append(indent).append("throw AotRuntime.HALT; // ran off the end of the code\n");
+        }
+
+        if (loop)
+            out.append("            }\n        }\n");
+
+        out.append("    }\n");
+    }
+
+    private static boolean fallsThrough(int flow) {
+        return flow == BytecodeDefBase.FLOW_NEXT || flow == BytecodeDefBase.FLOW_CALL ||
+               flow == BytecodeDefBase.FLOW_BRANCH;
+    }
+
+    private int paramOf(int f, int slot) {
+        for (int k = 0; k < params[f].length; k++) {
+            if (paramSlot(f, k) == slot)
+                return k;
+        }
+
+        return -1;
+    }
+
+    /* Forward dataflow, intersecting at joins; null until a block is first reached */
+    private BitSet[] definitelyAssigned(int f) {
+        BasicBlock[] blocks = cfgs[f].getBlocks();
+        BitSet[] in = new BitSet[blocks.length];
+        BitSet[] out = new BitSet[blocks.length];
+        BitSet entry = new BitSet();
+
+        for (int k = 0; k < params[f].length; k++)
+            entry.set(paramSlot(f, k));
+
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+
+            for (int b : cfgs[f].reversePostOrder()) {
+                BitSet s = b == 0 ? (BitSet) entry.clone() : null;
+
+                for (int p : blocks[b].predecessors) {
+                    if (out[p] == null)
+                        continue;
+
+                    if (s == null)
+                        s = (BitSet) out[p].clone();
+                    else
+                        s.and(out[p]);
+                }
+
+                in[b] = s;
+                BitSet o = (BitSet) s.clone();
+
+                for (int i = blocks[b].first; i <= blocks[b].last; i++)
+                    assigns(f, i, o);
+
+                if (!o.equals(out[b])) {
+                    out[b] = o;
+                    changed = true;
+                }
+            }
+        }
+
+        return in;
+    }
+
+    /* Code generation helpers for emit() */
+
+    protected final String methodName(int f) { return "f" + f + "_" + functions[f].name; }
+
+    /** Statements that continue at the block starting at addr. */
+    protected final String jump(int f, int addr) {
+        BasicBlock target = cfgs[f].blockAt(addr);
+
+        if (target == null || target.start != addr)
+            throw new IllegalArgumentException(functions[f].name + " branches out of its code, to " + addr);
+
+        return "b = " + target.index + "; continue;";
+    }
+
+    /** Slot's value as a value of type. */
+    protected final String get(int f, int slot, int type) {
+        return convert(slotName(f, slot), slots[f][slot], type);
+    }
+
+    /** Append "slot = expr;", expr being of type. */
+    protected final void set(StringBuilder out, String indent, int f, int slot, String expr, int type) {
+        out.append(indent).append(slotName(f, slot)).append(" = ")
+            .append(convert(expr, type, slots[f][slot])).append(";\n");
+    }
+
+    /** Java call of function g with its args in f's slots args. */
+    protected final String call(int f, int g, int[] args) {
+        StringBuilder call = new StringBuilder(methodName(g)).append('(');
+
+        for (int k = 0; k < params[g].length; k++)
+            call.append(k > 0 ? ", " : "").append(get(f, args[k], params[g][k]));
+
+        return call.append(')').toString();
+    }
+
+    /** spawn of g with its args in f's slots args, the task going to slot result. */
+    protected final void emitSpawn(StringBuilder out, String indent, int f, int g, int[] args, int result) {
+        out.append(indent).append("{\n");
+
+        // the lambda needs effectively final copies of the args
+        for (int k = 0; k < params[g].length; k++) {
+            out.append(indent).append("    ").append(javaType(params[g][k])).append(" t").append(k)
+                .append(" = ").append(get(f, args[k], params[g][k])).append(";\n");
+        }
+
+        StringBuilder body = new StringBuilder(methodName(g)).append('(');
+
+        for (int k = 0; k < params[g].length; k++)
+            body.append(k > 0 ? ", " : "").append('t').append(k);
+
+        body.append(')');
+
+        if (!returnsValue(g))
+            body.insert(0, "{ ").append("; return null; }");
+
+        set(out, indent + "    ", f, result,
+            "AotRuntime.spawn(\"" + functions[g].name + "\", () -> " + body + ")", OBJECT);
+        out.append(indent).append("}\n");
+    }
+
+    /** ncall of host with its args in f's slots args, the result going to slot result. */
+    protected final void emitHostCall(StringBuilder out, String indent, int f, Method host, int[] args, int result) {
+        Class<?>[] p = host.getParameterTypes();
+        StringBuilder call = new StringBuilder("HostLibrary.").append(host.getName()).append('(');
+
+        for (int k = 0; k < p.length; k++) {
+            String arg = slotName(f, args[k]);
+            int type = slots[f][args[k]];
+
+            if (k > 0)
+                call.append(", ");
+
+            if (p[k] == int.class)
+                call.append(convert(arg, type, INT));
+            else if (p[k] == float.class)
+                call.append(convert(arg, type, FLOAT));
+            else if (p[k] == boolean.class)
+                call.append(convert(arg, type, BOOLEAN));
+            else if (p[k] == char.class)
+                call.append(cast("Character", arg, type));
+            else if (p[k] == Object.class)
+                call.append(arg);
+            else
+                call.append(cast(p[k].getSimpleName(), arg, type));
+        }
+
+        call.append(')');
+
+        if (host.getReturnType() == void.class) {
+            out.append(indent).append(call).append(";\n");
+            set(out, indent, f, result, "null", OBJECT);
+        } else {
+            set(out, indent, f, result, call.toString(), typeOf(host.getReturnType()));
+        }
+    }
+
+    /** Field holding the StructLayout for the descriptor at constant pool index poolIndex. */
+    protected final String layout(int poolIndex) {
+        StructLayout.parse((String) constPool[poolIndex]); // reject bad ones now
+
+        return layoutFields.computeIfAbsent(poolIndex, i -> "L" + i);
+    }
+
+    /** The HostLibrary method ncall calls by the name at constant pool index poolIndex. */
+    protected final Method host(int poolIndex) {
+        String name = (String) constPool[poolIndex];
+
+        for (Method m : HostLibrary.class.getDeclaredMethods()) {
+            if (m.getName().equals(name) && Modifier.isPublic(m.getModifiers()) &&
+                Modifier.isStatic(m.getModifiers()))
+            {
+                return m;
+            }
+        }
+
+        throw new IllegalArgumentException("host function \"" + name +
+            "\" is not in HostLibrary, the only host functions a translated program has");
+    }
+
+    /** Type of what host returns; void leaves null. */
+    protected static int typeOf(Class<?> c) {
+        if (c == int.class)
+            return INT;
+        if (c == float.class)
+            return FLOAT;
+        if (c == boolean.class)
+            return BOOLEAN;
+
+        return OBJECT;
+    }
+
+    public static String javaType(int type) {
+        switch (type) {
+            case INT: return "int";
+            case FLOAT: return "float";
+            case BOOLEAN: return "boolean";
+            default: return "Object";
+        }
+    }
+
+    private static String box(int type) {
+        switch (type) {
+            case INT: return "Integer";
+            case FLOAT: return "Float";
+            default: return "Boolean";
+        }
+    }
+
+    protected static String zero(int type) {
+        switch (type) {
+            case INT: return "0";
+            case FLOAT: return "0f";
+            case BOOLEAN: return "false";
+            default: return "null";
+        }
+    }
+
+    /**
+     * expr, of type from, as a value of type to.  Boxing is left to Java;
+     *  unboxing casts, so a wrong type fails as it does interpreted.
+     */
+    protected static String convert(String expr, int from, int to) {
+        if (to == OBJECT || to == NONE || from == to)
+            return expr;
+
+        return cast(box(to), expr, from);
+    }
+
+    /** expr, of type from, cast to the class named cls. */
+    protected static String cast(String cls, String expr, int from) {
+        if (from == OBJECT || from == NONE)
+            return "((" + cls + ") " + expr + ")";
+
+        return "((" + cls + ") (Object) " + expr + ")";
+    }
+
+    /** Java literal for a float or string constant. */
+    protected static String literal(Object constant) {
+        if (constant instanceof Float) {
+            float v = (Float) constant;
+
+            if (Float.isNaN(v))
+                return "Float.NaN";
+            if (Float.isInfinite(v))
+                return v > 0 ? "Float.POSITIVE_INFINITY" : "Float.NEGATIVE_INFINITY";
+
+            return "(" + v + "f)";
+        }
+
+        if (constant instanceof String) {
+            StringBuilder s = new StringBuilder("\"");
+
+            for (char c : ((String) constant).toCharArray()) {
+                switch (c) {
+                    case '"': s.append("\\\""); break;
+                    case '\\': s.append("\\\\"); break;
+                    case '\n': s.append("\\n"); break;
+                    case '\r': s.append("\\r"); break;
+                    case '\t': s.append("\\t"); break;
+                    default:
+                        if (c < 0x20)
+                            s.append(String.format("\\%03o", (int) c));
+                        else
+                            s.append(c); // unicode escapes would be decoded before lexing
+                }
+            }
+
+            return s.append('"').toString();
+        }
+
+        return String.valueOf(constant);
+    }
+
+    /* Compiling and packaging */
+
+    /** Class files of the translation, by binary name. */
+    public final Map<String, byte[]> compile(String className) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+
+        if (javac == null)
+            throw new IllegalStateException("no Java compiler in this runtime; translating needs a JDK");
+
+        String java = translate(className);
+        Map<String, ByteArrayOutputStream> output = new LinkedHashMap<>();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaFileManager files = new ForwardingJavaFileManager<JavaFileManager>(
+            javac.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8))
+        {
+            @Override
+            public JavaFileObject getJavaFileForOutput(
+                Location location,
+                String name,
+                JavaFileObject.Kind kind,
+                FileObject sibling
+            ) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        output.put(name, bytes);
+
+                        return bytes;
+                    }
+                };
+            }
+        };
+
+        JavaFileObject unit = new SimpleJavaFileObject(
+            URI.create("string:///" + className + ".java"), JavaFileObject.Kind.SOURCE)
+        {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) { return java; }
+        };
+
+        List<String> options = List.of("-classpath", runtimeClassPath(), "-nowarn");
+
+        if (!javac.getTask(null, files, diagnostics, options, null, List.of(unit)).call())
+            throw new IllegalStateException("translation of " + className + " does not compile: " +
+                diagnostics.getDiagnostics());
+
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        output.forEach((name, bytes) -> classes.put(name, bytes.toByteArray()));
+
+        return classes;
+    }
+
+    /* Where the runtime classes were loaded from, for javac */
+    private static String runtimeClassPath() {
+        String path = System.getProperty("java.class.path");
+
+        try {
+            Path own = Paths.get(AotRuntime.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            path = own + File.pathSeparator + path;
+        } catch (URISyntaxException | RuntimeException e) {
+            // java.class.path has to do
+        }
+
+        return path;
+    }
+
+    /** The translation, compiled and loaded by a class loader of its own. */
+    public final Class<?> load(String className) {
+        Map<String, byte[]> classes = compile(className);
+        ClassLoader loader = new ClassLoader(AotCompiler.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] b = classes.get(name);
+
+                if (b == null)
+                    throw new ClassNotFoundException(name);
+
+                return defineClass(name, b, 0, b.length);
+            }
+        };
+
+        try {
+            return loader.loadClass(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Write a JAR with the translation, as its Main-Class, and the runtime. */
+    public final void writeJar(Path jar, String className) {
+        Map<String, byte[]> classes = compile(className);
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, className);
+
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+            for (Map.Entry<String, byte[]> e : classes.entrySet())
+                add(out, e.getKey().replace('.', '/') + ".class", e.getValue());
+
+            for (Class<?> c : RUNTIME)
+                addRuntimeClass(out, c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void addRuntimeClass(JarOutputStream out, Class<?> c) throws IOException {
+        String name = c.getName().replace('.', '/') + ".class";
+
+        try (InputStream in = c.getClassLoader().getResourceAsStream(name)) {
+            if (in == null)
+                throw new IOException("no class file for " + c.getName());
+
+            add(out, name, in.readAllBytes());
+        }
+
+        for (Class<?> nested : c.getDeclaredClasses())
+            addRuntimeClass(out, nested);
+    }
+
+    private static void add(JarOutputStream out, String name, byte[] bytes) throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+    }
+}
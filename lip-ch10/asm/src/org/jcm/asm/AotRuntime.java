@@ -0,0 +1,100 @@
+package org.jcm.asm;
+
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+
+/**
+ * What classes made by AotCompiler call at run time: print, typed struct
+ *  allocation, halt and spawn.  The rest of the guest instruction set
+ *  compiles to plain Java or to Ops, StructSpace, Channel and HostLibrary,
+ *  which are packaged along with this class; see AotCompiler.RUNTIME.
+ *
+ * @author jmarchesini
+ */
+public final class AotRuntime {
+    /** Thrown by halt, and by running off the end of code; caught by run(). */
+    public static final Halt HALT = new Halt();
+
+    /** Where print writes. */
+    public static volatile PrintStream out = System.out;
+
+    /* Each thread allocates from its own arena, as each interpreter does */
+    private static final ThreadLocal<StructArena> ARENAS = ThreadLocal.withInitial(StructArena::new);
+
+    private AotRuntime() { }
+
+    public static final class Halt extends Error {
+        private static final long serialVersionUID = 1L;
+
+        private Halt() { super("halt", null, false, false); }
+    }
+
+    /* Overloads print unboxed values as the interpreters print their boxes */
+
+    public static void print(Object v) { out.println(String.valueOf(v)); }
+
+    public static void print(int v) { out.println(v); }
+
+    public static void print(float v) { out.println(v); }
+
+    public static void print(boolean v) { out.println(v); }
+
+    public static TypedStruct tstruct(StructLayout layout) { return ARENAS.get().allocate(layout); }
+
+    public static int arraylength(Object array) {
+        if (array instanceof int[])
+            return ((int[]) array).length;
+
+        return ((float[]) array).length;
+    }
+
+    /** Run f on a new virtual thread, as spawn does; name is the guest function's. */
+    public static Task spawn(String name, Callable<Object> f) {
+        Task task = new Task(f);
+        task.thread = Thread.ofVirtual().name(name + "@" + Integer.toHexString(task.hashCode())).start(task::exec);
+
+        return task;
+    }
+
+    public static Object join(Object task) { return ((Task) task).join(); }
+
+    /** A spawned function; join() has the semantics of GuestTask.join(). */
+    public static final class Task {
+        private final Callable<Object> f;
+        private Thread thread;
+        private Object result; // published by the thread's termination
+        private Throwable failure;
+
+        private Task(Callable<Object> f) { this.f = f; }
+
+        private void exec() {
+            try {
+                result = f.call();
+            } catch (Halt h) {
+                // halt stops the task only; it leaves no result
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+
+        public Object join() {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted joining " + thread.getName(), e);
+            }
+
+            if (failure instanceof Error)
+                throw (Error) failure;
+
+            if (failure != null)
+                throw new IllegalStateException(thread.getName() + " failed", failure);
+
+            return result;
+        }
+
+        @Override
+        public String toString() { return thread.getName(); }
+    }
+}
@@ -0,0 +1,54 @@
+package org.jcm.asm;
+
+/**
+ * A straight-line run of instructions [first, last] (indices into the
+ *  DecodedCode the graph was built from) entered only at first.
+ *
+ * @author jmarchesini
+ */
+public class BasicBlock {
+    static final int[] NONE = new int[0];
+
+    int index;
+    int first;          // first instruction index
+    int last;           // last instruction index, inclusive
+    int start;          // code address of first
+    int end;            // code address after last
+    int[] successors = NONE;
+    int[] predecessors = NONE;
+    int idom = -1;      // immediate dominator block index; entry is its own
+    boolean loopHeader;
+
+    BasicBlock(int index, int first, int last, int start, int end) {
+        this.index = index;
+        this.first = first;
+        this.last = last;
+        this.start = start;
+        this.end = end;
+    }
+
+    public int getIndex() { return index; }
+
+    public int getFirst() { return first; }
+
+    public int getLast() { return last; }
+
+    public int getStart() { return start; }
+
+    public int getEnd() { return end; }
+
+    public int[] getSuccessors() { return successors; }
+
+    public int[] getPredecessors() { return predecessors; }
+
+    public int getImmediateDominator() { return idom; }
+
+    public boolean isReachable() { return idom >= 0; }
+
+    public boolean isLoopHeader() { return loopHeader; }
+
+    @Override
+    public String toString() {
+        return "B" + index + "@" + start + ".." + end;
+    }
+}
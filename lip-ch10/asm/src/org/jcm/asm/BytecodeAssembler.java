@@ -35,6 +35,7 @@ public class BytecodeAssembler extends AssemblerParser {
     protected int ip = 0;
     protected Map<String, Integer> instructionOpcodeMapping = new HashMap<>();
     protected Map<String, LabelSymbol> labels = new HashMap<>(); // Label sym table
+    protected String instrName; // the instruction being assembled, for checkOperand()
 
     public BytecodeAssembler(
         TokenStream lexer,
@@ -47,6 +48,24 @@ public class BytecodeAssembler extends AssemblerParser {
         }
     }
 
+    /**
+     * Assembles more functions after base's code, starting from its
+     *  constant pool, globals and main; see Program.redefine().  A .def of
+     *  a name base already has takes over its constant pool slot.
+     */
+    public BytecodeAssembler(
+        TokenStream lexer,
+        BytecodeDefBase.Instruction[] instructions,
+        Program base
+    ) {
+        this(lexer, instructions);
+        this.dataSize = base.dataSize;
+        this.code = Arrays.copyOf(base.code, Math.max(base.codeSize * 2, INITIAL_CODE_SIZE));
+        this.ip = base.codeSize;
+        this.constPool.addAll(Arrays.asList(base.constPool));
+        this.mainFunction = base.mainFunction;
+    }
+
     public int getDataSize() { return dataSize; }
     public byte[] getMachineCode() { return code; }
     public int getCodeMemorySize() { return ip; }
@@ -72,7 +91,7 @@ public class BytecodeAssembler extends AssemblerParser {
      *  Grammar members used in syntax-directed translation.
      */
     protected void gen(Token instrToken) {
-        String instrName = instrToken.getText();
+        instrName = instrToken.getText();
         Integer opcodeI = instructionOpcodeMapping.get(instrName);
 
         if (opcodeI == null) {
@@ -191,11 +210,36 @@ public class BytecodeAssembler extends AssemblerParser {
                 break;
         }
 
+        checkOperand(operandToken);
         ensureCapacity(ip+4);  // expand code array if necessary
         writeInt(code, ip, v); // write operand to code byte array
         ip += 4;               // we've written four bytes
     }
 
+    /*
+     * Reject here, as errors on the operand's line, the operands Program
+     *  would otherwise reject only when it is built: the name of an ncall's
+     *  host function and a tstruct's layout descriptor.  Counted with the
+     *  syntax errors, see hasErrors().
+     */
+    protected void checkOperand(Token operandToken) {
+        if (operandToken.getType() != STRING)
+            return;
+
+        String text = operandToken.getText();
+
+        if (instrName.equals("ncall") && HostFunction.lookup(text) == null)
+            notifyErrorListeners(operandToken, "unknown host function \"" + text + "\"", null);
+
+        if (instrName.equals("tstruct")) {
+            try {
+                StructLayout.parse(text);
+            } catch (IllegalArgumentException e) {
+                notifyErrorListeners(operandToken, e.getMessage(), null);
+            }
+        }
+    }
+
     protected int getConstantPoolIndex(Object o) {
         if (constPool.contains(o))
             return constPool.indexOf(o);
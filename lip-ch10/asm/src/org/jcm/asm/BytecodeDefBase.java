@@ -8,10 +8,23 @@ public abstract class BytecodeDefBase {
     public static final int INT = AssemblerParser.INT;
     public static final int POOL = 1000; // unique imaginary token
 
+    /* How an instruction transfers control; see Instruction.flow */
+    public static final int FLOW_NEXT = 0;   // falls through to the next instruction
+    public static final int FLOW_JUMP = 1;   // unconditional branch to its INT operand
+    public static final int FLOW_BRANCH = 2; // conditional branch or fall through
+    public static final int FLOW_CALL = 3;   // call, then continues with the next instruction
+    public static final int FLOW_RETURN = 4;
+    public static final int FLOW_HALT = 5;
+
     public static class Instruction {
         String name; // E.g., "iadd", "call"
         int[] type = new int[3];
         int n;
+        int flow;
+        int pops = -1;  // operand stack effect, -1 if the ISA has no operand stack
+        int pushes = -1;
+        String roles;   // per operand: 'u' register read, 'd' register written, '-' not a register
+        InstructionHandler<?> handler; // see HandlerDispatch
 
         public Instruction(String name) { this(name,0,0,0); n=0; }
         public Instruction(String name, int a) { this(name,a,0,0); n=1; }
@@ -22,6 +35,51 @@ public abstract class BytecodeDefBase {
             type[1] = b;
             type[2] = c;
             n = 3;
+            flow = flowOf(name);
+        }
+
+        /** Declare the operand stack effect; call pops its callee's args instead. */
+        public Instruction stack(int pops, int pushes) {
+            this.pops = pops;
+            this.pushes = pushes;
+
+            return this;
+        }
+
+        /** Declare which REG operands are read and written; call's are implicit. */
+        public Instruction regs(String roles) {
+            this.roles = roles;
+
+            return this;
+        }
+
+        /** Attach the code that executes this instruction. */
+        public <V extends InterpreterBase> Instruction handler(InstructionHandler<V> handler) {
+            this.handler = handler;
+
+            return this;
+        }
+
+        public String getName() { return name; }
+        public int getNumOperands() { return n; }
+        public int getOperandType(int i) { return type[i]; }
+        public int getFlow() { return flow; }
+        public int getPops() { return pops; }
+        public int getPushes() { return pushes; }
+        public String getRoles() { return roles; }
+        public InstructionHandler<?> getHandler() { return handler; }
+
+        /* Both instruction sets share mnemonics for their control transfers */
+        static int flowOf(String name) {
+            switch (name) {
+                case "br": return FLOW_JUMP;
+                case "brt":
+                case "brf": return FLOW_BRANCH;
+                case "call": return FLOW_CALL;
+                case "ret": return FLOW_RETURN;
+                case "halt": return FLOW_HALT;
+                default: return FLOW_NEXT;
+            }
         }
     }
 
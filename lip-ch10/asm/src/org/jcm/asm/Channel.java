@@ -0,0 +1,201 @@
+package org.jcm.asm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded multi-producer multi-consumer queue between guest functions
+ *  running on different interpreters, see spawn.  A ring of slots, each
+ *  with a sequence number saying whose turn it is (D. Vyukov's bounded
+ *  queue): senders and receivers claim a position with one CAS and never
+ *  lock.  Capacity is rounded up to a power of two, at least 2.
+ *
+ * offer and poll never block.  send and receive spin briefly, then park
+ *  the calling thread, cheap for the virtual threads spawn uses, until
+ *  the other side makes progress.  If the thread is interrupted they throw
+ *  IllegalStateException instead, leaving its interrupt status set, as
+ *  GuestTask.join does.  Any value may be sent, null included.
+ *
+ * @author jmarchesini
+ */
+public final class Channel {
+    /** What poll returns when the channel is empty. */
+    public static final Object EMPTY = new Object();
+
+    static final int SPINS = 64; // retries before parking
+
+    private static final VarHandle SEQUENCE = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(Channel.class, "head", long.class);
+            TAIL = lookup.findVarHandle(Channel.class, "tail", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object[] slots;
+    private final long[] sequence; // pos: free for send at pos, full for receive at pos + 1
+    private final int mask;
+
+    private volatile long head; // next position to receive from
+    private volatile long tail; // next position to send to
+
+    private final ConcurrentLinkedQueue<Thread> receivers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Thread> senders = new ConcurrentLinkedQueue<>();
+
+    public Channel(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("bad channel capacity " + capacity);
+
+        // one slot cannot tell full from free: both would be pos + 1
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+
+        slots = new Object[size];
+        sequence = new long[size];
+        mask = size - 1;
+
+        for (int i = 0; i < size; i++)
+            sequence[i] = i;
+    }
+
+    /** Send v if there is room; false if the channel is full. */
+    public boolean offer(Object v) {
+        long pos = tail;
+
+        while (true) {
+            int i = (int) pos & mask;
+            long d = (long) SEQUENCE.getAcquire(sequence, i) - pos;
+
+            if (d == 0) {
+                if (TAIL.compareAndSet(this, pos, pos + 1)) {
+                    slots[i] = v;
+                    SEQUENCE.setRelease(sequence, i, pos + 1);
+                    wake(receivers);
+
+                    return true;
+                }
+
+                pos = tail;
+            } else if (d < 0) {
+                return false; // the slot still holds a value from a lap ago
+            } else {
+                pos = tail;   // another sender took pos
+            }
+        }
+    }
+
+    /** The oldest value, or EMPTY if there is none. */
+    public Object poll() {
+        long pos = head;
+
+        while (true) {
+            int i = (int) pos & mask;
+            long d = (long) SEQUENCE.getAcquire(sequence, i) - (pos + 1);
+
+            if (d == 0) {
+                if (HEAD.compareAndSet(this, pos, pos + 1)) {
+                    Object v = slots[i];
+                    slots[i] = null;
+                    SEQUENCE.setRelease(sequence, i, pos + mask + 1);
+                    wake(senders);
+
+                    return v;
+                }
+
+                pos = head;
+            } else if (d < 0) {
+                return EMPTY;
+            } else {
+                pos = head;
+            }
+        }
+    }
+
+    /** Send v, waiting for room. */
+    public void send(Object v) {
+        for (int spins = 0; !offer(v); spins++) {
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            // queue up, then check again so a receive in between is not missed
+            Thread me = Thread.currentThread();
+            senders.add(me);
+
+            if (offer(v)) {
+                senders.remove(me);
+                return;
+            }
+
+            LockSupport.park(this);
+            senders.remove(me);
+
+            if (me.isInterrupted())
+                throw new IllegalStateException("interrupted sending to " + this);
+        }
+    }
+
+    /** Receive the oldest value, waiting for one. */
+    public Object receive() {
+        for (int spins = 0; ; spins++) {
+            Object v = poll();
+
+            if (v != EMPTY)
+                return v;
+
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            Thread me = Thread.currentThread();
+            receivers.add(me);
+            v = poll();
+
+            if (v != EMPTY) {
+                receivers.remove(me);
+                return v;
+            }
+
+            LockSupport.park(this);
+            receivers.remove(me);
+
+            if (me.isInterrupted())
+                throw new IllegalStateException("interrupted receiving from " + this);
+        }
+    }
+
+    private static void wake(ConcurrentLinkedQueue<Thread> waiting) {
+        // the sequence store must be visible before looking for waiters,
+        //  which add themselves and then look at the sequence
+        VarHandle.fullFence();
+
+        if (waiting.isEmpty())
+            return;
+
+        Thread t = waiting.poll();
+
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    public int capacity() { return slots.length; }
+
+    /** Values in the channel; only a snapshot while others use it. */
+    public int size() {
+        long n = tail - head;
+
+        return (int) Math.max(0, Math.min(n, slots.length));
+    }
+
+    @Override
+    public String toString() { return "channel[" + size() + "/" + capacity() + "]"; }
+}
@@ -0,0 +1,286 @@
+package org.jcm.asm;
+
+import java.util.Arrays;
+
+/**
+ * Intraprocedural control-flow graph over a range of DecodedCode, usually
+ *  one function.  Calls do not end a block (control comes back to the next
+ *  instruction); ret and halt end a block with no successors.  Dominators
+ *  are computed with the Cooper/Harvey/Kennedy iterative algorithm over
+ *  reverse postorder, which is linear in practice for reducible code.
+ *
+ * @author jmarchesini
+ */
+public class ControlFlowGraph {
+    final DecodedCode code;
+    final BasicBlock[] blocks;
+    final int[] blockOf;      // instruction index - first -> block index
+    final int first;          // first instruction index of the range
+    final int[] rpo;          // reachable blocks in reverse postorder
+
+    private ControlFlowGraph(DecodedCode code, BasicBlock[] blocks, int[] blockOf, int first, int[] rpo) {
+        this.code = code;
+        this.blocks = blocks;
+        this.blockOf = blockOf;
+        this.first = first;
+        this.rpo = rpo;
+    }
+
+    /** Graph for function f, whose code runs up to the next function. */
+    public static ControlFlowGraph build(DecodedCode code, FunctionSymbol f, Object[] constPool) {
+        return build(code, f.address, f.getEndAddress(constPool, code.getEnd()));
+    }
+
+    /** Graph for f, with boundaries from FunctionSymbol.boundaries(). */
+    public static ControlFlowGraph build(DecodedCode code, FunctionSymbol f, int[] boundaries) {
+        return build(code, f.address, f.getEndAddress(boundaries));
+    }
+
+    /** Graph for the instructions in [startAddr, endAddr); entry is startAddr. */
+    public static ControlFlowGraph build(DecodedCode code, int startAddr, int endAddr) {
+        int first = code.indexAtOrAfter(startAddr);
+        int limit = code.indexAtOrAfter(endAddr);
+        int count = limit - first;
+
+        if (count <= 0)
+            return new ControlFlowGraph(code, new BasicBlock[0], new int[0], first, new int[0]);
+
+        // 1. leaders
+        boolean[] leader = new boolean[count];
+        leader[0] = true;
+
+        for (int i = first; i < limit; i++) {
+            int flow = code.flow(i);
+
+            if (flow == BytecodeDefBase.FLOW_NEXT || flow == BytecodeDefBase.FLOW_CALL)
+                continue;
+
+            int target = code.branchTarget(i);
+
+            if (target >= 0) {
+                int t = code.indexOf(target);
+
+                if (t >= first && t < limit)
+                    leader[t - first] = true;
+            }
+
+            if (i + 1 < limit)
+                leader[i + 1 - first] = true;
+        }
+
+        // 2. blocks
+        int numBlocks = 0;
+
+        for (boolean l : leader) {
+            if (l) numBlocks++;
+        }
+
+        BasicBlock[] blocks = new BasicBlock[numBlocks];
+        int[] blockOf = new int[count];
+        int b = -1;
+
+        for (int i = 0; i < count; i++) {
+            if (leader[i]) {
+                b++;
+                int idx = first + i;
+                blocks[b] = new BasicBlock(b, idx, idx, code.offset(idx), code.nextOffset(idx));
+            } else {
+                blocks[b].last = first + i;
+                blocks[b].end = code.nextOffset(first + i);
+            }
+
+            blockOf[i] = b;
+        }
+
+        // 3. edges
+        int[] predCount = new int[numBlocks];
+        int[] succ = new int[2];
+
+        for (BasicBlock bb : blocks) {
+            int n = 0;
+            int flow = code.flow(bb.last);
+            int target = code.branchTarget(bb.last);
+            int next = bb.index + 1 < numBlocks ? bb.index + 1 : -1;
+
+            if (target >= 0) {
+                int t = code.indexOf(target);
+
+                if (t >= first && t < limit)
+                    succ[n++] = blockOf[t - first];
+            }
+
+            if ((flow == BytecodeDefBase.FLOW_BRANCH ||
+                 flow == BytecodeDefBase.FLOW_NEXT ||
+                 flow == BytecodeDefBase.FLOW_CALL) &&
+                next >= 0 && (n == 0 || succ[0] != next))
+            {
+                succ[n++] = next;
+            }
+
+            bb.successors = n == 0 ? BasicBlock.NONE : Arrays.copyOf(succ, n);
+
+            for (int s : bb.successors)
+                predCount[s]++;
+        }
+
+        for (BasicBlock bb : blocks) {
+            if (predCount[bb.index] > 0)
+                bb.predecessors = new int[predCount[bb.index]];
+            predCount[bb.index] = 0;
+        }
+
+        for (BasicBlock bb : blocks) {
+            for (int s : bb.successors)
+                blocks[s].predecessors[predCount[s]++] = bb.index;
+        }
+
+        // 4. reverse postorder, dominators, loops
+        int[] rpo = reversePostOrder(blocks);
+        computeDominators(blocks, rpo);
+
+        for (int v : rpo) {
+            for (int s : blocks[v].successors) {
+                if (dominates(blocks, s, v))
+                    blocks[s].loopHeader = true;
+            }
+        }
+
+        return new ControlFlowGraph(code, blocks, blockOf, first, rpo);
+    }
+
+    public DecodedCode getCode() { return code; }
+
+    public BasicBlock[] getBlocks() { return blocks; }
+
+    public BasicBlock getEntry() { return blocks.length > 0 ? blocks[0] : null; }
+
+    /** Reachable block indices, entry first, in reverse postorder. */
+    public int[] reversePostOrder() { return rpo; }
+
+    /** Block containing instruction index i, or null if outside the graph. */
+    public BasicBlock blockOfInstruction(int i) {
+        int k = i - first;
+
+        return k >= 0 && k < blockOf.length ? blocks[blockOf[k]] : null;
+    }
+
+    /** Block containing code address addr, or null if outside the graph. */
+    public BasicBlock blockAt(int addr) {
+        int i = code.indexOf(addr);
+
+        return i < 0 ? null : blockOfInstruction(i);
+    }
+
+    /** True if every path from the entry to block b passes through block a. */
+    public boolean dominates(int a, int b) {
+        return dominates(blocks, a, b);
+    }
+
+    /** An edge from -> to whose target dominates its source closes a loop. */
+    public boolean isBackEdge(int from, int to) {
+        return dominates(blocks, to, from);
+    }
+
+    public int[] getLoopHeaders() {
+        int n = 0;
+        int[] headers = new int[blocks.length];
+
+        for (BasicBlock bb : blocks) {
+            if (bb.loopHeader)
+                headers[n++] = bb.index;
+        }
+
+        return Arrays.copyOf(headers, n);
+    }
+
+    private static boolean dominates(BasicBlock[] blocks, int a, int b) {
+        if (blocks[b].idom < 0)
+            return false;
+
+        while (b != a) {
+            int up = blocks[b].idom;
+
+            if (up == b)
+                return false; // reached the entry
+
+            b = up;
+        }
+
+        return true;
+    }
+
+    private static int[] reversePostOrder(BasicBlock[] blocks) {
+        int n = blocks.length;
+        int[] order = new int[n];
+        int[] stack = new int[n];
+        int[] nextSucc = new int[n];
+        boolean[] visited = new boolean[n];
+        int sp = 0;
+        int k = n;
+
+        stack[sp++] = 0;
+        visited[0] = true;
+
+        while (sp > 0) {
+            int v = stack[sp - 1];
+            int[] succ = blocks[v].successors;
+
+            if (nextSucc[v] < succ.length) {
+                int s = succ[nextSucc[v]++];
+
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack[sp++] = s;
+                }
+            } else {
+                order[--k] = v;
+                sp--;
+            }
+        }
+
+        return Arrays.copyOfRange(order, k, n);
+    }
+
+    private static void computeDominators(BasicBlock[] blocks, int[] rpo) {
+        int[] rpoNumber = new int[blocks.length];
+        Arrays.fill(rpoNumber, -1);
+
+        for (int i = 0; i < rpo.length; i++)
+            rpoNumber[rpo[i]] = i;
+
+        blocks[0].idom = 0;
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+
+            for (int i = 1; i < rpo.length; i++) {
+                BasicBlock bb = blocks[rpo[i]];
+                int newIdom = -1;
+
+                for (int p : bb.predecessors) {
+                    if (blocks[p].idom < 0)
+                        continue; // not processed yet, or unreachable
+
+                    newIdom = newIdom < 0 ? p : intersect(blocks, rpoNumber, p, newIdom);
+                }
+
+                if (newIdom != bb.idom) {
+                    bb.idom = newIdom;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private static int intersect(BasicBlock[] blocks, int[] rpoNumber, int a, int b) {
+        while (a != b) {
+            while (rpoNumber[a] > rpoNumber[b])
+                a = blocks[a].idom;
+            while (rpoNumber[b] > rpoNumber[a])
+                b = blocks[b].idom;
+        }
+
+        return a;
+    }
+}
@@ -0,0 +1,203 @@
+package org.jcm.asm;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which basic blocks of a Program ran, for one or more interpreters
+ *  given it with setCoverage().  Interpreters only mark the addresses
+ *  control is transferred to: function entries, taken branches and the
+ *  fall through of conditional branches not taken, one bit per code
+ *  address.  Interpreters without coverage mark NONE, which has no bits
+ *  to set, so the fast loops never check whether there is any.
+ *
+ * A block ran if its first address was marked, or if the block before it
+ *  ran and falls through into it.  Blocks are per function, see
+ *  ControlFlowGraph.  A block counts as run even if a guest error or halt
+ *  stopped it part way through.
+ *
+ * @author jmarchesini
+ */
+public final class Coverage {
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /** What interpreters mark when not measuring: marks nothing, reports nothing. */
+    static final Coverage NONE = new Coverage(null, new long[0]);
+
+    private final Program program;
+    private final long[] marks; // bit addr set once control reached addr
+
+    public Coverage(Program program) {
+        this(program, new long[(program.codeSize + 63) >>> 6]);
+    }
+
+    private Coverage(Program program, long[] marks) {
+        this.program = program;
+        this.marks = marks;
+    }
+
+    /** Called by the interpreter when control reaches addr; only the first time writes. */
+    public void mark(int addr) {
+        int w = addr >>> 6;
+        long bit = 1L << addr;
+
+        if (w < marks.length && (marks[w] & bit) == 0) // none in NONE; code added by a redefinition is not counted
+            WORDS.getAndBitwiseOr(marks, w, bit); // interpreters started by spawn share marks
+    }
+
+    boolean isMarked(int addr) {
+        return addr < program.codeSize && ((long) WORDS.getOpaque(marks, addr >>> 6) & (1L << addr)) != 0;
+    }
+
+    public Program getProgram() { return program; }
+
+    /** Coverage of a function: the code from its entry up to the next one. */
+    public static final class FunctionCoverage {
+        final String name;
+        final ControlFlowGraph cfg;
+        final boolean[] ran; // by block index
+
+        FunctionCoverage(String name, ControlFlowGraph cfg, boolean[] ran) {
+            this.name = name;
+            this.cfg = cfg;
+            this.ran = ran;
+        }
+
+        public String getName() { return name; }
+
+        public ControlFlowGraph getControlFlowGraph() { return cfg; }
+
+        public boolean ran(BasicBlock b) { return ran[b.index]; }
+
+        public int getBlocks() { return ran.length; }
+
+        public int getBlocksRun() {
+            int n = 0;
+
+            for (boolean r : ran) {
+                if (r) n++;
+            }
+
+            return n;
+        }
+
+        public int getInstructions() {
+            int n = 0;
+
+            for (BasicBlock b : cfg.getBlocks())
+                n += b.last - b.first + 1;
+
+            return n;
+        }
+
+        public int getInstructionsRun() {
+            int n = 0;
+
+            for (BasicBlock b : cfg.getBlocks()) {
+                if (ran[b.index])
+                    n += b.last - b.first + 1;
+            }
+
+            return n;
+        }
+    }
+
+    /** Coverage of each function, in address order. */
+    public List<FunctionCoverage> getFunctions() {
+        DecodedCode dc = program.decode();
+        int[] bounds = FunctionSymbol.boundaries(program.constPool, program.codeSize);
+        List<FunctionCoverage> result = new ArrayList<>();
+
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            ControlFlowGraph cfg = ControlFlowGraph.build(dc, bounds[i], bounds[i + 1]);
+            BasicBlock[] blocks = cfg.getBlocks();
+            boolean[] ran = new boolean[blocks.length];
+
+            for (BasicBlock b : blocks) {
+                BasicBlock prev = b.index > 0 ? blocks[b.index - 1] : null;
+                boolean fallsIn = prev != null && ran[prev.index] && fallsThrough(dc.flow(prev.last));
+
+                ran[b.index] = isMarked(b.start) || fallsIn;
+            }
+
+            result.add(new FunctionCoverage(functionAt(bounds[i]), cfg, ran));
+        }
+
+        return result;
+    }
+
+    /* Branches not taken are marked, so only these reach the next block unmarked */
+    static boolean fallsThrough(int flow) {
+        return flow == BytecodeDefBase.FLOW_NEXT || flow == BytecodeDefBase.FLOW_CALL;
+    }
+
+    private String functionAt(int addr) {
+        for (Object o : program.constPool) {
+            if (o instanceof FunctionSymbol && ((FunctionSymbol) o).address == addr)
+                return ((FunctionSymbol) o).name;
+        }
+
+        return "main"; // code before the first .def runs as main, see implicitMain()
+    }
+
+    /**
+     * A summary line per function, then the disassembly with each
+     *  instruction prefixed '+' if its block ran, '-' if not.
+     */
+    public void writeReport(Appendable out) throws IOException {
+        List<FunctionCoverage> functions = getFunctions();
+        int blocks = 0, blocksRun = 0, instrs = 0, instrsRun = 0;
+
+        for (FunctionCoverage f : functions) {
+            blocks += f.getBlocks();
+            blocksRun += f.getBlocksRun();
+            instrs += f.getInstructions();
+            instrsRun += f.getInstructionsRun();
+        }
+
+        out.append(String.format("Coverage: %d/%d blocks (%.1f%%), %d/%d instructions (%.1f%%)\n",
+            blocksRun, blocks, percent(blocksRun, blocks), instrsRun, instrs, percent(instrsRun, instrs)));
+
+        for (FunctionCoverage f : functions) {
+            out.append(String.format("  %-20s %5d/%-5d blocks %6.1f%%  %6d/%-6d instructions %6.1f%%\n",
+                f.getName(), f.getBlocksRun(), f.getBlocks(), percent(f.getBlocksRun(), f.getBlocks()),
+                f.getInstructionsRun(), f.getInstructions(), percent(f.getInstructionsRun(), f.getInstructions())));
+        }
+
+        out.append("\nDisassembly:\n");
+        DisAssembler disasm = program.newDisAssembler();
+        StringBuilder line = new StringBuilder();
+
+        for (FunctionCoverage f : functions) {
+            out.append(f.getName()).append(":\n");
+
+            for (BasicBlock b : f.cfg.getBlocks()) {
+                char mark = f.ran[b.index] ? '+' : '-';
+
+                for (int ip = b.start; ip < b.end; ) {
+                    line.setLength(0);
+                    line.append(mark).append(' ');
+                    ip = disasm.disassembleInstruction(ip, line);
+                    out.append(line).append('\n');
+                }
+            }
+        }
+    }
+
+    public void writeReport(Path file) {
+        try (Writer out = Files.newBufferedWriter(file)) {
+            writeReport(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static double percent(int n, int of) { return of == 0 ? 100 : 100.0 * n / of; }
+}
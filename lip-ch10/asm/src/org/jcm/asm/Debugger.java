@@ -0,0 +1,232 @@
+package org.jcm.asm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Breakpoints on code addresses, watchpoints on globals and single
+ *  stepping for interpreters it is attached to with setDebugger().  While
+ *  attached an interpreter runs its instrumented loop, which calls the
+ *  Listener, on the interpreter's own thread, whenever one of them stops
+ *  it; the interpreter waits until stopped() returns.  Detached, nothing
+ *  is checked.
+ *
+ * Breakpoints and watchpoints may be changed from any thread.  Spawned
+ *  interpreters share their parent's debugger, so a listener used with
+ *  spawn must be thread-safe.
+ *
+ * @author jmarchesini
+ */
+public class Debugger {
+
+    public interface Listener {
+        /** vm stopped before the instruction at its ip, for reason. */
+        void stopped(InterpreterBase vm, Debugger debugger, String reason);
+    }
+
+    /* Watched global not looked at yet; the first look never stops */
+    private static final Object UNSEEN = new Object();
+
+    private final Listener listener;
+    private volatile BitSet breakpoints = new BitSet(); // copied on write
+    private volatile int[] watched = new int[0];
+    private volatile Object[] lastSeen = new Object[0]; // values of watched
+    private volatile boolean stepping;
+
+    public Debugger(Listener listener) { this.listener = listener; }
+
+    public synchronized Debugger breakAt(int addr) {
+        BitSet b = (BitSet) breakpoints.clone();
+        b.set(addr);
+        breakpoints = b;
+
+        return this;
+    }
+
+    public synchronized Debugger clearBreak(int addr) {
+        BitSet b = (BitSet) breakpoints.clone();
+        b.clear(addr);
+        breakpoints = b;
+
+        return this;
+    }
+
+    /** Stop when global index changes value, compared with equals. */
+    public synchronized Debugger watchGlobal(int index) {
+        for (int w : watched) {
+            if (w == index)
+                return this;
+        }
+
+        int n = watched.length;
+        Object[] seen = Arrays.copyOf(lastSeen, n + 1);
+        seen[n] = UNSEEN;
+        int[] w = Arrays.copyOf(watched, n + 1);
+        w[n] = index;
+        lastSeen = seen;
+        watched = w;
+
+        return this;
+    }
+
+    public synchronized Debugger unwatchGlobal(int index) {
+        int[] w = watched;
+        int[] keep = new int[w.length];
+        Object[] seen = new Object[w.length];
+        int n = 0;
+
+        for (int i = 0; i < w.length; i++) {
+            if (w[i] != index) {
+                keep[n] = w[i];
+                seen[n++] = lastSeen[i];
+            }
+        }
+
+        lastSeen = Arrays.copyOf(seen, n);
+        watched = Arrays.copyOf(keep, n);
+
+        return this;
+    }
+
+    /** Stop before every instruction until resume(). */
+    public Debugger step() {
+        stepping = true;
+        return this;
+    }
+
+    /** Run on to the next breakpoint or watchpoint. */
+    public Debugger resume() {
+        stepping = false;
+        return this;
+    }
+
+    public boolean isStepping() { return stepping; }
+
+    public BitSet getBreakpoints() { return (BitSet) breakpoints.clone(); }
+
+    /* Called by instrumentedCpu() before the instruction at vm.ip */
+    void before(InterpreterBase vm) {
+        if (stepping)
+            listener.stopped(vm, this, "step");
+        else if (breakpoints.get(vm.ip))
+            listener.stopped(vm, this, "breakpoint at " + vm.ip);
+    }
+
+    /* Called by instrumentedCpu() after each instruction */
+    void after(InterpreterBase vm) {
+        int[] w = watched;
+        Object[] seen = lastSeen;
+
+        for (int i = 0; i < w.length && i < seen.length; i++) {
+            int g = w[i];
+
+            if (g >= vm.globals.length)
+                continue;
+
+            Object v = vm.globals[g];
+
+            if (seen[i] == UNSEEN) {
+                seen[i] = v;
+            } else if (!Objects.equals(seen[i], v)) {
+                Object old = seen[i];
+                seen[i] = v;
+                listener.stopped(vm, this, "global " + g + " changed from " + old + " to " + v);
+            }
+        }
+    }
+
+    /**
+     * A Debugger driven by commands read from in, one per line, with
+     *  prompts and results on out.  It starts stepping, so the first stop
+     *  is before the first instruction.
+     *
+     * <pre>
+     *     s            step one instruction
+     *     c            continue to the next breakpoint or watchpoint
+     *     b addr       set a breakpoint;  d addr  delete it
+     *     w global     watch a global;    u global  stop watching it
+     *     p            print the call stack and frame slots
+     *     h            print what ran up to here, see ExecutionHistory
+     *     t            toggle tracing
+     *     q            detach and run on at full speed
+     * </pre>
+     */
+    public static Debugger console(InputStream in, PrintStream out) {
+        BufferedReader lines = new BufferedReader(new InputStreamReader(in));
+
+        Debugger debugger = new Debugger((vm, d, reason) -> {
+            StringBuilder sb = new StringBuilder();
+            vm.getDisAssembler().disassembleInstruction(vm.ip, sb);
+            out.println("stopped: " + reason);
+            out.println(sb);
+
+            while (true) {
+                out.print("(debug) ");
+                out.flush();
+                String line;
+
+                try {
+                    line = lines.readLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                String[] words = line == null ? new String[] {"q"} : line.trim().split("\\s+");
+
+                try {
+                    switch (words[0]) {
+                        case "s":
+                            d.step();
+                            return;
+                        case "c":
+                            d.resume();
+                            return;
+                        case "b":
+                            d.breakAt(Integer.parseInt(words[1]));
+                            break;
+                        case "d":
+                            d.clearBreak(Integer.parseInt(words[1]));
+                            break;
+                        case "w":
+                            d.watchGlobal(Integer.parseInt(words[1]));
+                            break;
+                        case "u":
+                            d.unwatchGlobal(Integer.parseInt(words[1]));
+                            break;
+                        case "p":
+                            printStack(vm, out);
+                            break;
+                        case "h":
+                            out.print(vm.getHistory());
+                            break;
+                        case "t":
+                            vm.setTrace(!vm.trace);
+                            break;
+                        case "q":
+                            d.resume();
+                            vm.setDebugger(null);
+                            return;
+                        default:
+                            out.println("commands: s, c, b addr, d addr, w global, u global, p, h, t, q");
+                    }
+                } catch (RuntimeException e) { // bad or missing number
+                    out.println("commands: s, c, b addr, d addr, w global, u global, p, h, t, q");
+                }
+            }
+        });
+
+        return debugger.step();
+    }
+
+    private static void printStack(InterpreterBase vm, PrintStream out) {
+        for (int i = vm.fp; i >= 0; i--)
+            out.println("  " + vm.frameFunction(i).name + " " + Arrays.toString(vm.frameSlots(i)));
+    }
+}
@@ -0,0 +1,94 @@
+package org.jcm.asm;
+
+import java.util.Arrays;
+
+/**
+ * Code memory decoded into compact instruction records, stored column-wise
+ *  in parallel arrays: instruction i starts at offset(i), has opcode(i) and
+ *  operands operand(i, 0..n-1) whose kinds are REG, FUNC, INT or POOL.
+ *  Produced by InstructionDecoder; immutable once built.
+ *
+ * @author jmarchesini
+ */
+public class DecodedCode {
+    public static final int MAX_OPERANDS = 3;
+
+    final BytecodeDefBase.Instruction[] instructions;
+    final int[] offsets;
+    final short[] opcodes;
+    final int[] operands; // MAX_OPERANDS slots per instruction
+    final int size;
+    final int start;
+    final int end;
+
+    DecodedCode(
+        BytecodeDefBase.Instruction[] instructions,
+        int[] offsets,
+        short[] opcodes,
+        int[] operands,
+        int size,
+        int start,
+        int end
+    ) {
+        this.instructions = instructions;
+        this.offsets = offsets;
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.size = size;
+        this.start = start;
+        this.end = end;
+    }
+
+    /** Number of decoded instructions. */
+    public int size() { return size; }
+
+    /** First code address covered. */
+    public int getStart() { return start; }
+
+    /** Address just past the last decoded instruction. */
+    public int getEnd() { return end; }
+
+    public int offset(int i) { return offsets[i]; }
+
+    public int opcode(int i) { return opcodes[i]; }
+
+    public BytecodeDefBase.Instruction instruction(int i) { return instructions[opcodes[i]]; }
+
+    public int operandCount(int i) { return instructions[opcodes[i]].n; }
+
+    public int operandKind(int i, int k) { return instructions[opcodes[i]].type[k]; }
+
+    public int operand(int i, int k) { return operands[i * MAX_OPERANDS + k]; }
+
+    public int flow(int i) { return instructions[opcodes[i]].flow; }
+
+    /** Address following instruction i. */
+    public int nextOffset(int i) { return i + 1 < size ? offsets[i + 1] : end; }
+
+    /**
+     * Branch target of a br/brt/brf, which is always the instruction's
+     *  last operand; -1 for anything else.
+     */
+    public int branchTarget(int i) {
+        int flow = flow(i);
+
+        if (flow != BytecodeDefBase.FLOW_JUMP && flow != BytecodeDefBase.FLOW_BRANCH)
+            return -1;
+
+        return operand(i, operandCount(i) - 1);
+    }
+
+    /** Index of the instruction starting at addr, or -1 if none does. */
+    public int indexOf(int addr) {
+        int i = Arrays.binarySearch(offsets, 0, size, addr);
+
+        return i >= 0 ? i : -1;
+    }
+
+    /** Index of the first instruction at or after addr. */
+    public int indexAtOrAfter(int addr) {
+        int i = Arrays.binarySearch(offsets, 0, size, addr);
+
+        return i >= 0 ? i : -i - 1;
+    }
+}
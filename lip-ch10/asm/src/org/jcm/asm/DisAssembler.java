@@ -8,14 +8,30 @@
  */
 package org.jcm.asm;
 
-import java.util.List;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class DisAssembler {
+    public static final int FLUSH_THRESHOLD = 8192;   // chars buffered before writing out
+    public static final int PARALLEL_THRESHOLD = 64 * 1024; // code bytes per parallel chunk
+
     byte[] code;
     int codeSize;
     protected Object[] constPool;
     BytecodeDefBase bcDef;
+    BytecodeDefBase.Instruction[] instructions; // fetched once, not per instruction
+
+    private final StringBuilder buf = new StringBuilder(FLUSH_THRESHOLD + 128);
+    private char[] chars; // scratch for Writer output, avoids toString()
+    private PrintStream traceOut; // the stream traceWriter encodes to
+    private Writer traceWriter;
 
     public DisAssembler(
         byte[] code,
@@ -27,81 +43,248 @@ public class DisAssembler {
         this.codeSize = codeSize;
         this.constPool = constPool;
         this.bcDef = bcDef;
+        this.instructions = bcDef.getInstructions();
     }
 
     public void disassemble() {
-        System.out.println("Disassembly:");
+        PrintWriter out = new PrintWriter(System.out);
+
+        try {
+            if (codeSize > 2 * PARALLEL_THRESHOLD)
+                disassembleParallel(out);
+            else
+                disassemble(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        out.flush();
+    }
+
+    public void disassemble(Appendable out) throws IOException {
+        out.append("Disassembly:\n");
+        disassemble(out, 0, codeSize);
+        out.append('\n');
+    }
+
+    /**
+     * Disassemble the instructions in [start, end) to out, one per line.
+     *  Lines are accumulated in a reusable buffer and written out in
+     *  FLUSH_THRESHOLD sized pieces.  Not thread-safe; use one DisAssembler
+     *  per thread or disassembleParallel().
+     */
+    public void disassemble(Appendable out, int start, int end) throws IOException {
+        buf.setLength(0);
+        int i = start;
+
+        while (i < end) {
+            i = disassembleInstruction(i, buf);
+            buf.append('\n');
+
+            if (buf.length() >= FLUSH_THRESHOLD)
+                flush(out);
+        }
+
+        flush(out);
+    }
+
+    /**
+     * Disassemble the whole code memory using pool, splitting the work at
+     *  function boundaries.  Chunk outputs are concatenated in address order
+     *  so the result is identical to disassemble(out).
+     */
+    public void disassembleParallel(Appendable out, ForkJoinPool pool) throws IOException {
+        int[] bounds = chunkBoundaries(
+            FunctionSymbol.boundaries(constPool, codeSize), PARALLEL_THRESHOLD);
 
-        int i = 0;
+        out.append("Disassembly:\n");
 
-        while (i < codeSize) {
-            i = disassembleInstruction(i);
-            System.out.println();
+        if (bounds.length <= 2) {
+            disassemble(out, 0, codeSize);
+        } else {
+            StringBuilder[] chunks = pool.invoke(new Chunk(bounds, 0, bounds.length - 1));
+
+            for (StringBuilder chunk : chunks)
+                out.append(chunk);
         }
 
-        System.out.println();
+        out.append('\n');
+    }
+
+    public void disassembleParallel(Appendable out) throws IOException {
+        disassembleParallel(out, ForkJoinPool.commonPool());
     }
 
-    public int disassembleInstruction(int ip) {
+    /**
+     * Print the instruction at ip to out, the interpreter's output, through
+     *  an encoder for out's charset kept for the next call, so no String is
+     *  made per instruction; used by the tracers.
+     */
+    public int disassembleInstruction(int ip, PrintStream out) {
+        buf.setLength(0);
+        ip = disassembleInstruction(ip, buf);
+
+        if (out != traceOut) {
+            traceOut = out;
+            traceWriter = new OutputStreamWriter(out, out.charset());
+        }
+
+        try {
+            flush(traceWriter);
+            traceWriter.flush(); // before the tracer prints to out directly
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return ip;
+    }
+
+    /**
+     * Append the instruction at ip to sb without a trailing newline and
+     *  return the address of the next instruction.
+     */
+    public int disassembleInstruction(int ip, StringBuilder sb) {
         int opcode = code[ip];
-        BytecodeDefBase.Instruction instruction = bcDef.getInstructions()[opcode];
+        BytecodeDefBase.Instruction instruction = instructions[opcode];
         String instrName = instruction.name;
-        System.out.printf("%04d:\t%-11s", ip, instrName);
+
+        appendAddress(sb, ip);
+        sb.append(":\t").append(instrName);
+
+        for (int pad = instrName.length(); pad < 11; pad++)
+            sb.append(' ');
+
         ip++;
 
         if (instruction.n == 0) {
-            System.out.print("  ");
+            sb.append("  ");
             return ip;
         }
 
-        List<String> operands = new ArrayList<>();
-
         for (int i = 0; i < instruction.n; i++) {
             int operand = BytecodeAssembler.getInt(code, ip);
             ip += 4;
 
+            if (i > 0)
+                sb.append(", ");
+
             switch (instruction.type[i]) {
                 case BytecodeDefinition.REG:
-                    operands.add("r" + operand);
+                    sb.append('r').append(operand);
                     break;
                 case BytecodeDefinition.FUNC:
                 case BytecodeDefinition.POOL:
-                    operands.add(showConstPoolOperand(operand));
+                    showConstPoolOperand(sb, operand);
                     break;
                 case BytecodeDefinition.INT:
-                    operands.add(String.valueOf(operand));
+                    sb.append(operand);
                     break;
             }
         }
 
-        for (int i = 0; i < operands.size(); i++) {
-            String s = operands.get(i);
+        return ip;
+    }
 
-            if (i > 0)
-                System.out.print(", ");
+    private void showConstPoolOperand(StringBuilder sb, int poolIndex) {
+        Object o = constPool[poolIndex];
+        sb.append('#').append(poolIndex).append(':');
 
-            System.out.print(s);
+        if (o instanceof String) {
+            sb.append('"').append((String) o).append('"');
+        } else if (o instanceof FunctionSymbol) {
+            FunctionSymbol fs = (FunctionSymbol) o;
+            sb.append(fs.name).append("()@").append(fs.address);
+        } else if (o instanceof Float) {
+            sb.append(((Float) o).floatValue());
+        } else {
+            sb.append(o);
         }
+    }
 
-        return ip;
+    /* %04d without the Formatter */
+    static void appendAddress(StringBuilder sb, int addr) {
+        if (addr < 1000) sb.append('0');
+        if (addr < 100) sb.append('0');
+        if (addr < 10) sb.append('0');
+
+        sb.append(addr);
+    }
+
+    private void flush(Appendable out) throws IOException {
+        int len = buf.length();
+
+        if (len == 0)
+            return;
+
+        if (out instanceof Writer) {
+            if (chars == null || chars.length < len)
+                chars = new char[Math.max(len, FLUSH_THRESHOLD + 128)];
+
+            buf.getChars(0, len, chars, 0);
+            ((Writer) out).write(chars, 0, len);
+        } else {
+            out.append(buf);
+        }
+
+        buf.setLength(0);
     }
 
-    private String showConstPoolOperand(int poolIndex) {
-        StringBuilder buf = new StringBuilder();
-        buf.append("#");
-        buf.append(poolIndex);
-        String s = constPool[poolIndex].toString();
-
-        if (constPool[poolIndex] instanceof String) {
-            s = '"' + s + '"';
-        } else if (constPool[poolIndex] instanceof FunctionSymbol) {
-            FunctionSymbol fs = (FunctionSymbol) constPool[poolIndex];
-            s = fs.name + "()@" + fs.address;
+    /* Coalesce adjacent functions into chunks of at least minChunk bytes */
+    static int[] chunkBoundaries(int[] functions, int minChunk) {
+        int[] bounds = new int[functions.length];
+        int n = 0;
+        bounds[n++] = functions[0];
+
+        for (int i = 1; i < functions.length - 1; i++) {
+            if (functions[i] - bounds[n - 1] >= minChunk)
+                bounds[n++] = functions[i];
+        }
+
+        bounds[n++] = functions[functions.length - 1];
+
+        return Arrays.copyOf(bounds, n);
+    }
+
+    /* Disassembles chunks [lo, hi) of bounds, each into its own buffer */
+    private class Chunk extends RecursiveTask<StringBuilder[]> {
+        private static final long serialVersionUID = 1L;
+
+        final int[] bounds;
+        final int lo;
+        final int hi;
+
+        Chunk(int[] bounds, int lo, int hi) {
+            this.bounds = bounds;
+            this.lo = lo;
+            this.hi = hi;
         }
 
-        buf.append(":");
-        buf.append(s);
+        @Override
+        protected StringBuilder[] compute() {
+            StringBuilder[] result = new StringBuilder[hi - lo];
 
-        return buf.toString();
+            if (hi - lo == 1) {
+                int start = bounds[lo];
+                int end = bounds[lo + 1];
+                StringBuilder sb = new StringBuilder((end - start) * 4);
+
+                for (int i = start; i < end; sb.append('\n'))
+                    i = disassembleInstruction(i, sb);
+
+                result[0] = sb;
+                return result;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            Chunk left = new Chunk(bounds, lo, mid);
+            left.fork();
+            StringBuilder[] right = new Chunk(bounds, mid, hi).compute();
+            StringBuilder[] l = left.join();
+
+            System.arraycopy(l, 0, result, 0, l.length);
+            System.arraycopy(right, 0, result, l.length, right.length);
+
+            return result;
+        }
     }
 }
@@ -0,0 +1,81 @@
+package org.jcm.asm;
+
+/**
+ * The last instructions an interpreter executed, so that a guest error
+ *  deep in cpu() can be explained after the fact without running again
+ *  with -trace.  Like a processor's last branch record, only the control
+ *  transfers that decoding cannot follow are stored: every call, ret and
+ *  conditional branch, taken or not, stores where control went and
+ *  the frame pointer there as one long, with a plain array store, into a
+ *  ring whose length is a power of two.  Straight-line code and br cost
+ *  nothing; they are recovered when decoding, by disassembling from each
+ *  target and following br up to the next instruction that stored, or
+ *  for the last, up to the interpreter's ip.  The ring is per
+ *  interpreter, so nothing is shared between threads, and it is always
+ *  on.
+ *
+ * The ring holds SIZE transfers, 256 unless -Djcm.history says otherwise.
+ *
+ * @author jmarchesini
+ */
+public final class ExecutionHistory {
+    public static final int SIZE = Integer.highestOneBit(Math.max(1, Integer.getInteger("jcm.history", 256) * 2 - 1));
+
+    private ExecutionHistory() { }
+
+    /** The entry for control going to ip in frame fp. */
+    public static long entry(int ip, int fp) { return (long) ip << 32 | fp & 0xFFFFFFFFL; }
+
+    public static int ip(long entry) { return (int) (entry >>> 32); }
+
+    public static int fp(long entry) { return (int) entry; }
+
+    /**
+     * Append the instructions recorded in ring, after transfers transfers,
+     *  to out oldest first, one per line with the frame pointer they ran
+     *  in, each disassembled by dis; ip is where the interpreter stopped.
+     *  The last line is the instruction that was running then, which is
+     *  the one that failed if a guest error stopped it.
+     */
+    public static void decode(long[] ring, long transfers, int ip, DisAssembler dis, StringBuilder out) {
+        int n = (int) Math.min(transfers, ring.length);
+
+        out.append("last ").append(n).append(" of ").append(transfers)
+            .append(" calls, returns and branches, and what ran after each:\n");
+
+        for (long k = transfers - n; k < transfers; k++) {
+            long entry = ring[(int) k & (ring.length - 1)];
+            boolean last = k == transfers - 1;
+            int fp = fp(entry);
+            int addr = ip(entry);
+
+            // a loop of br alone would never end; no run is longer than the code
+            for (int count = 0; addr < dis.codeSize && count < dis.codeSize; count++) {
+                if (last && addr == ip)
+                    break; // it is next
+
+                int opcode = dis.code[addr];
+                out.append("  fp=").append(fp).append('\t');
+
+                if (opcode < 0 || opcode >= dis.instructions.length || dis.instructions[opcode] == null) {
+                    DisAssembler.appendAddress(out, addr);
+                    out.append(":\tinvalid opcode ").append(opcode).append('\n');
+                    break;
+                }
+
+                int start = addr;
+                int flow = dis.instructions[opcode].flow;
+                addr = dis.disassembleInstruction(addr, out);
+                out.append('\n');
+
+                if (last && start < ip && ip < addr)
+                    break; // failed part way through its operands
+
+                if (flow == BytecodeDefBase.FLOW_JUMP)
+                    addr = BytecodeAssembler.getInt(dis.code, start + 1);
+                else if (flow != BytecodeDefBase.FLOW_NEXT)
+                    break; // it stored the next entry
+            }
+        }
+    }
+}
@@ -8,11 +8,14 @@
  */
 package org.jcm.asm;
 
+import java.util.Arrays;
+
 public class FunctionSymbol {
     String name;
     int numArgs;
     int numLocals;
     int address;
+    int maxStack = OperandStackDepth.UNKNOWN; // set when its Program is built
 
     public FunctionSymbol(String name) { this.name = name; }
 
@@ -23,6 +26,12 @@ public class FunctionSymbol {
         this.address = address;
     }
 
+    /* A copy for the next version of a Program, see Program.redefine() */
+    FunctionSymbol(FunctionSymbol f) {
+        this(f.name, f.numArgs, f.numLocals, f.address);
+        this.maxStack = f.maxStack;
+    }
+
     @Override
     public int hashCode() { return name.hashCode(); }
 
@@ -48,4 +57,54 @@ public class FunctionSymbol {
     public int getNumLocals() { return numLocals; }
 
     public int getAddress() { return address; }
+
+    /** Bound on operand stack slots this function uses above its entry depth. */
+    public int getMaxStack() { return maxStack; }
+
+    /**
+     * Sorted, distinct start addresses of the functions defined in constPool,
+     *  bracketed by 0 and codeSize.  Function i occupies [b[i], b[i+1]).
+     */
+    public static int[] boundaries(Object[] constPool, int codeSize) {
+        int[] addrs = new int[constPool.length + 2];
+        int n = 0;
+        addrs[n++] = 0;
+
+        for (Object o : constPool) {
+            if (o instanceof FunctionSymbol) {
+                int addr = ((FunctionSymbol) o).address;
+
+                if (addr > 0 && addr < codeSize)
+                    addrs[n++] = addr;
+            }
+        }
+
+        addrs[n++] = codeSize;
+        Arrays.sort(addrs, 0, n);
+
+        int distinct = 1;
+
+        for (int i = 1; i < n; i++) {
+            if (addrs[i] != addrs[distinct - 1])
+                addrs[distinct++] = addrs[i];
+        }
+
+        return Arrays.copyOf(addrs, distinct);
+    }
+
+    /** First address past the end of this function's code. */
+    public int getEndAddress(Object[] constPool, int codeSize) {
+        return getEndAddress(boundaries(constPool, codeSize));
+    }
+
+    /**
+     * First address past the end of this function's code, given b from
+     *  boundaries(); compute that once to find the ends of many functions.
+     */
+    public int getEndAddress(int[] b) {
+        int codeSize = b[b.length - 1];
+        int i = Arrays.binarySearch(b, address);
+
+        return i >= 0 && i + 1 < b.length ? b[i + 1] : codeSize;
+    }
 }
@@ -0,0 +1,31 @@
+package org.jcm.asm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A sampled guest function call, from call to ret.  Only one call per
+ *  interpreter is in flight at a time, so a sampled call hides any
+ *  samples nested inside it.
+ *
+ * @author jmarchesini
+ */
+@Name("org.jcm.GuestCall")
+@Label("Guest Call")
+@Category({ "Guest VM", "Execution" })
+@Description("A sampled guest function call from call to ret")
+@StackTrace(false)
+public class GuestCallEvent extends Event {
+    @Label("Function")
+    public String function;
+
+    @Label("Call Depth")
+    public int depth;
+
+    @Label("Interpreter")
+    public String interpreter;
+}
@@ -0,0 +1,35 @@
+package org.jcm.asm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Periodic counters for each interpreter inside exec().  Instruction
+ *  counts are as of the interpreter's last time slice.
+ *
+ * @author jmarchesini
+ */
+@Name("org.jcm.GuestCounters")
+@Label("Guest Counters")
+@Category({ "Guest VM", "Execution" })
+@Description("Periodic counters of a running interpreter")
+@Period("1 s")
+@StackTrace(false)
+public class GuestCountersEvent extends Event {
+    @Label("Interpreter")
+    public String interpreter;
+
+    @Label("Instructions Retired")
+    public long instructionsRetired;
+
+    @Label("Call Depth")
+    public int callDepth;
+
+    @Label("Operand Stack Depth")
+    public int stackDepth;
+}
@@ -0,0 +1,89 @@
+package org.jcm.asm;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Switches for the JFR events the interpreters emit.  The flags follow
+ *  the recordings: whenever one starts or stops they are recomputed from
+ *  whether the event types are enabled, so events can be turned on and off
+ *  in a running process (e.g. jcmd JFR.start).  cpu() reads a flag only at
+ *  struct allocations; call events are emitted by the instrumented loop,
+ *  which interpreters change over to at their next safe point while they
+ *  are enabled.  With no recording that is all they cost.
+ *
+ * JFR's own metadata is not touched until a recording exists.
+ *
+ * @author jmarchesini
+ */
+public final class GuestEvents {
+    /* One call in this many is timed; -Djcm.jfr.callSampleRate=n */
+    public static final int CALL_SAMPLE_RATE = Integer.getInteger("jcm.jfr.callSampleRate", 100);
+
+    private static volatile boolean calls;
+    private static volatile boolean structs;
+    private static volatile boolean counters;
+    private static boolean periodicRegistered;
+
+    /* Interpreters inside run(), whoever drives it; added every slice */
+    static final Set<InterpreterBase> running = ConcurrentHashMap.newKeySet();
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) { refresh(); }
+
+            @Override
+            public void recordingStateChanged(Recording recording) { refresh(); }
+        });
+    }
+
+    private GuestEvents() { }
+
+    public static boolean callsEnabled() { return calls; }
+
+    public static boolean structsEnabled() { return structs; }
+
+    public static boolean countersEnabled() { return counters; }
+
+    static synchronized void refresh() {
+        if (!periodicRegistered) {
+            FlightRecorder.addPeriodicEvent(GuestCountersEvent.class, GuestEvents::emitCounters);
+            periodicRegistered = true;
+        }
+
+        calls = EventType.getEventType(GuestCallEvent.class).isEnabled();
+        structs = EventType.getEventType(StructAllocationEvent.class).isEnabled();
+        counters = EventType.getEventType(GuestCountersEvent.class).isEnabled();
+
+        for (InterpreterBase interp : running)
+            interp.pollRequested = true; // to change loops if calls changed
+    }
+
+    static void emitCounters() {
+        for (InterpreterBase interp : running) {
+            GuestCountersEvent e = new GuestCountersEvent();
+            e.interpreter = interp.toString();
+            e.instructionsRetired = interp.instructionsRetired;
+            e.callDepth = interp.fp + 1;
+            e.stackDepth = interp.sp + 1;
+            e.commit();
+        }
+    }
+
+    static void structAllocated(InterpreterBase interp, int fields) {
+        StructAllocationEvent e = new StructAllocationEvent();
+
+        if (e.shouldCommit()) {
+            e.fields = fields;
+            e.function = interp.fp >= 0 ? interp.frameFunction(interp.fp).name : null;
+            e.ip = interp.ip;
+            e.commit();
+        }
+    }
+}
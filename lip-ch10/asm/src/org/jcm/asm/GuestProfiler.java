@@ -0,0 +1,127 @@
+package org.jcm.asm;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampling profiler for guest code.  A timer thread wakes hz times a
+ *  second and flags every interpreter running with this profiler; each
+ *  records its guest call stack, main first, at its next safe point (a
+ *  call or backward branch, see InterpreterBase.safePoint()) and carries
+ *  on.  Between samples the only cost is one volatile read per safe
+ *  point.  Samples land on safe points, so time in straight-line code is
+ *  charged to the call or loop that follows it.
+ *
+ * Interpreters started by spawn inherit the profiler; their stacks start
+ *  at the spawned function.  writeCollapsed() prints one line per distinct
+ *  stack, "main;f;g count", the input format of flamegraph.pl and most
+ *  other flame graph tools.
+ *
+ * @author jmarchesini
+ */
+public final class GuestProfiler implements AutoCloseable {
+    public static final int DEFAULT_HZ = Integer.getInteger("jcm.profile.hz", 99);
+
+    private final long periodNanos;
+    private final Set<InterpreterBase> running = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, LongAdder> stacks = new ConcurrentHashMap<>();
+    private final LongAdder samples = new LongAdder();
+    private final Thread timer;
+    private volatile boolean closed;
+
+    public GuestProfiler() { this(DEFAULT_HZ); }
+
+    public GuestProfiler(int hz) {
+        if (hz < 1 || hz > 100_000)
+            throw new IllegalArgumentException("bad sample rate " + hz + " Hz");
+
+        periodNanos = TimeUnit.SECONDS.toNanos(1) / hz;
+        // a platform thread, so busy virtual threads cannot hold up the timer
+        timer = Thread.ofPlatform().daemon().name("guest-profiler").start(this::tick);
+    }
+
+    private void tick() {
+        long next = System.nanoTime() + periodNanos;
+
+        while (!closed) {
+            LockSupport.parkNanos(next - System.nanoTime());
+
+            if (System.nanoTime() < next)
+                continue; // woke early
+
+            for (InterpreterBase interp : running) {
+                interp.sampleRequested = true;
+                interp.pollRequested = true; // last, see InterpreterBase.poll()
+            }
+
+            next = Math.max(next + periodNanos, System.nanoTime()); // drop missed ticks
+        }
+    }
+
+    /* Called by run() around each slice, so yielded interpreters are not sampled */
+    void attach(InterpreterBase interp) { running.add(interp); }
+
+    void detach(InterpreterBase interp) {
+        running.remove(interp);
+        interp.sampleRequested = false; // usually; tick() may still flag it, see poll()
+    }
+
+    /** Called by interp at a safe point, on its own thread, once flagged. */
+    void record(InterpreterBase interp) {
+        StringBuilder stack = new StringBuilder();
+
+        for (int i = 0; i <= interp.fp; i++) {
+            if (i > 0)
+                stack.append(';');
+
+            stack.append(interp.frameFunction(i).name);
+        }
+
+        stacks.computeIfAbsent(stack.toString(), s -> new LongAdder()).increment();
+        samples.increment();
+    }
+
+    public long getSampleCount() { return samples.sum(); }
+
+    /** Sample counts by stack, most frequent first. */
+    public List<Map.Entry<String, Long>> getStacks() {
+        List<Map.Entry<String, Long>> result = new ArrayList<>();
+
+        stacks.forEach((stack, count) -> result.add(Map.entry(stack, count.sum())));
+        result.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+
+        return result;
+    }
+
+    /** One "stack count" line per distinct stack. */
+    public void writeCollapsed(PrintStream out) {
+        for (Map.Entry<String, Long> e : getStacks())
+            out.println(e.getKey() + " " + e.getValue());
+    }
+
+    public void writeCollapsed(Path file) {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(file))) {
+            writeCollapsed(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Stop the timer; the samples so far are kept. */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(timer);
+    }
+}
@@ -0,0 +1,13 @@
+package org.jcm.asm;
+
+/**
+ * Thrown when a guest program needs more operand stack slots or call
+ *  frames than its interpreter's limit (see InterpreterBase.setStackLimits).
+ *
+ * @author jmarchesini
+ */
+public class GuestStackOverflowError extends Error {
+    private static final long serialVersionUID = 1L;
+
+    public GuestStackOverflowError(String message) { super(message); }
+}
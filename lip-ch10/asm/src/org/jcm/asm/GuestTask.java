@@ -0,0 +1,82 @@
+package org.jcm.asm;
+
+import java.util.Set;
+
+/**
+ * A guest function started by spawn, running to completion on its own
+ *  interpreter and virtual thread.  The interpreter shares the Program and
+ *  the globals of the one that spawned it and nothing else.  join waits
+ *  for it and yields what the function returned.
+ *
+ * Starting the thread happens-before the function's first instruction,
+ *  and its last happens-before join returns, so plain gload and gstore
+ *  are enough for data handed over at those points.  Anything else
+ *  shared while both run needs gcas or gadd.
+ *
+ * Stopping the interpreter that spawned it stops the task too, see
+ *  InterpreterBase.stop(); join then throws.
+ *
+ * @author jmarchesini
+ */
+public final class GuestTask {
+    final InterpreterBase interp;
+    final Thread thread;
+    private final Set<GuestTask> running; // the spawning interpreter's, until this one ends
+    private volatile Throwable failure;
+
+    private GuestTask(InterpreterBase interp, String name, Set<GuestTask> running) {
+        this.interp = interp;
+        this.thread = Thread.ofVirtual().name(name).unstarted(this::exec);
+        this.running = running;
+    }
+
+    static GuestTask start(InterpreterBase interp, String name, Set<GuestTask> running) {
+        GuestTask task = new GuestTask(interp, name, running);
+        running.add(task);
+        task.thread.start();
+
+        return task;
+    }
+
+    private void exec() {
+        try {
+            interp.exec();
+
+            if (interp.isStopped())
+                failure = new IllegalStateException(thread.getName() + " was stopped");
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            running.remove(this);
+        }
+    }
+
+    /* Stop the interpreter at its next safe point, and wake it if it waits */
+    void stop() {
+        interp.stop();
+        thread.interrupt();
+    }
+
+    /** Wait for the function and return its result, or rethrow what stopped it. */
+    public Object join() {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted joining " + thread.getName(), e);
+        }
+
+        if (failure instanceof Error)
+            throw (Error) failure; // guest errors, e.g. GuestStackOverflowError
+
+        if (failure != null)
+            throw new IllegalStateException(thread.getName() + " failed", failure);
+
+        return interp.forkResult();
+    }
+
+    public boolean isDone() { return !thread.isAlive(); }
+
+    @Override
+    public String toString() { return thread.getName(); }
+}
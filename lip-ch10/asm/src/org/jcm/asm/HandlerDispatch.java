@@ -0,0 +1,112 @@
+package org.jcm.asm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+/**
+ * Builds the handler-driven dispatch loop for an instruction set: the
+ *  InstructionHandler of every instruction, composed into one
+ *  MethodHandles.tableSwitch over the opcode, becomes a constant of its
+ *  own copy of HandlerLoopTemplate.  This loop needs nothing but the
+ *  handlers, but cpu() stays the default and a new opcode still needs
+ *  its case in each interpreter's switch: DispatchComparison measures
+ *  this loop at 0.7 to 0.9 times the switch's instructions per second.
+ *  The instrumented loop runs the handlers too, so DispatchCheck, which
+ *  runs programs with all three loops and compares what they do, is what
+ *  keeps the two implementations of each opcode in agreement.
+ *
+ * Built once per BytecodeDefBase class and shared by all its programs.
+ *  Used by an interpreter instead of its cpu() switch when enabled with
+ *  setHandlerDispatch(true), -handlers or -Djcm.dispatch=handlers.
+ *
+ * @author jmarchesini
+ */
+public final class HandlerDispatch {
+    /** The generated loop, in the role of InterpreterBase.cpu(). */
+    public interface Loop {
+        void cpu(InterpreterBase vm) throws Throwable;
+    }
+
+    private static final ClassValue<Loop> LOOPS = new ClassValue<Loop>() {
+        @Override
+        protected Loop computeValue(Class<?> type) {
+            try {
+                return build((BytecodeDefBase) type.getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("cannot instantiate " + type.getName(), e);
+            }
+        }
+    };
+
+    private static final MethodHandle EXECUTE;
+    private static final MethodHandle INVALID;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            EXECUTE = lookup.findVirtual(InstructionHandler.class, "execute",
+                MethodType.methodType(boolean.class, InterpreterBase.class));
+            INVALID = lookup.findStatic(HandlerDispatch.class, "invalid",
+                MethodType.methodType(boolean.class, int.class, InterpreterBase.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private HandlerDispatch() { }
+
+    /** The loop for bcDef's instruction set; every instruction but halt needs a handler. */
+    public static Loop forDefinition(BytecodeDefBase bcDef) {
+        return LOOPS.get(bcDef.getClass());
+    }
+
+    static Loop build(BytecodeDefBase bcDef) {
+        BytecodeDefBase.Instruction[] instructions = bcDef.getInstructions();
+        MethodHandle[] cases = new MethodHandle[instructions.length];
+        int halt = -1;
+
+        for (int op = 0; op < instructions.length; op++) {
+            BytecodeDefBase.Instruction instr = instructions[op];
+
+            if (instr != null && instr.flow == BytecodeDefBase.FLOW_HALT)
+                halt = op;
+
+            if (instr == null || instr.handler == null) {
+                if (instr != null && op != halt)
+                    throw new IllegalArgumentException("instruction " + instr.name + " has no handler");
+
+                cases[op] = INVALID;
+                continue;
+            }
+
+            // (InterpreterBase)boolean bound to this handler, ignoring the opcode
+            cases[op] = MethodHandles.dropArguments(EXECUTE.bindTo(instr.handler), 0, int.class);
+        }
+
+        MethodHandle dispatch = MethodHandles.tableSwitch(INVALID, cases);
+
+        try (InputStream in = HandlerDispatch.class.getResourceAsStream("HandlerLoopTemplate.class")) {
+            if (in == null)
+                throw new IllegalStateException("HandlerLoopTemplate.class not found");
+
+            MethodHandles.Lookup loop = MethodHandles.lookup().defineHiddenClassWithClassData(
+                in.readAllBytes(), List.of(dispatch, halt), true);
+
+            return (Loop) loop.findConstructor(loop.lookupClass(), MethodType.methodType(void.class))
+                .invoke();
+        } catch (Error | RuntimeException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("cannot define dispatch loop for " +
+                bcDef.getClass().getName(), t);
+        }
+    }
+
+    private static boolean invalid(int opcode, InterpreterBase vm) {
+        throw new Error("invalid opcode: " + opcode + " at ip=" + (vm.ip - 1));
+    }
+}
@@ -0,0 +1,52 @@
+package org.jcm.asm;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Class file that HandlerDispatch defines again, as a hidden class, for
+ *  every instruction set.  The copy's class data holds that instruction
+ *  set's dispatch table, so DISPATCH and HALT are constants the JIT folds
+ *  into cpu() and handlers inline into the loop.  Never loaded as itself.
+ *
+ * @author jmarchesini
+ */
+final class HandlerLoopTemplate implements HandlerDispatch.Loop {
+    static final MethodHandle DISPATCH; // (int opcode, InterpreterBase)boolean
+    static final int HALT;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            DISPATCH = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, 0);
+            HALT = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, Integer.class, 1);
+        } catch (IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Override
+    public void cpu(InterpreterBase vm) throws Throwable {
+        byte[] code = vm.code;
+        int codeSize = vm.codeSize;
+        long retired = 0;
+
+        vm.status = InterpreterBase.HALTED;
+
+        while (vm.ip < codeSize) {
+            int opcode = code[vm.ip];
+
+            if (opcode == HALT)
+                break;
+
+            vm.ip++;
+            retired++;
+
+            if ((boolean) DISPATCH.invokeExact(opcode, vm))
+                break;
+        }
+
+        vm.instructionsRetired += retired;
+    }
+}
@@ -0,0 +1,179 @@
+package org.jcm.asm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A Java static method that guest code calls with ncall, by the name it
+ *  was registered under.  The name is a string in the constant pool and
+ *  Program binds it once, at load time, to the HostFunction registered
+ *  then.
+ *
+ * The method's exact type is kept.  Its invoker reads the args straight
+ *  out of the caller's operand stack or registers and unboxes each to
+ *  the declared parameter type, so the method itself sees int, float,
+ *  boolean or char.  Parameters and result may be those, String, int[],
+ *  float[] or Object; a void method leaves null as its result.
+ *
+ * The functions of HostLibrary are registered under their own names.
+ *  The assembler rejects an ncall of a name not registered by then.
+ *
+ * The interpreters call every host function through invoke(), whose one
+ *  call site sees a different invoker for each function, so the JIT does
+ *  not inline the method into it: an ncall costs a method handle dispatch
+ *  on top of the call.  Code from the AOT compiler calls the method
+ *  directly.
+ *
+ * @author jmarchesini
+ */
+public final class HostFunction {
+    private static final Map<String, HostFunction> REGISTRY = new ConcurrentHashMap<>();
+
+    private static final Set<Class<?>> TYPES = Set.of(
+        int.class, float.class, boolean.class, char.class,
+        String.class, int[].class, float[].class, Object.class);
+
+    private static final MethodHandle ADD;
+
+    static {
+        try {
+            ADD = MethodHandles.lookup().findStatic(Integer.class, "sum",
+                MethodType.methodType(int.class, int.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+        registerAll(HostLibrary.class);
+    }
+
+    final String name;
+    final MethodHandle target;  // as registered
+    final MethodHandle invoker; // (Object[] slots, int first)Object
+    final int numArgs;
+
+    private HostFunction(String name, MethodHandle target) {
+        this.name = name;
+        this.target = target;
+        this.numArgs = target.type().parameterCount();
+        this.invoker = invoker(target);
+    }
+
+    /** Make target callable as name; replaces an earlier function of that name. */
+    public static void register(String name, MethodHandle target) {
+        MethodType type = target.type();
+
+        for (Class<?> p : type.parameterList()) {
+            if (!TYPES.contains(p))
+                throw new IllegalArgumentException(name + ": unsupported parameter type " + p.getName());
+        }
+
+        if (type.returnType() != void.class && !TYPES.contains(type.returnType()))
+            throw new IllegalArgumentException(name + ": unsupported result type " +
+                type.returnType().getName());
+
+        REGISTRY.put(name, new HostFunction(name, target));
+    }
+
+    /** Register every public static method of owner under its own name. */
+    public static void registerAll(Class<?> owner) {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+        for (Method m : owner.getDeclaredMethods()) {
+            if (!Modifier.isPublic(m.getModifiers()) || !Modifier.isStatic(m.getModifiers()))
+                continue;
+
+            try {
+                register(m.getName(), lookup.unreflect(m));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("cannot access " + m, e);
+            }
+        }
+    }
+
+    /** The function registered as name, or null. */
+    public static HostFunction lookup(String name) { return REGISTRY.get(name); }
+
+    /**
+     * Host functions for the ncall instructions of program, whose code is
+     *  dc, indexed like its constant pool; null for other entries, or no
+     *  array at all if the instruction set has no ncall.
+     */
+    static HostFunction[] resolve(Program program, DecodedCode dc) {
+        int opcode = -1;
+        BytecodeDefBase.Instruction[] instructions = program.bcDef.getInstructions();
+
+        for (int i = 0; i < instructions.length; i++) {
+            if (instructions[i] != null && instructions[i].name.equals("ncall"))
+                opcode = i;
+        }
+
+        if (opcode < 0)
+            return null;
+
+        HostFunction[] functions = new HostFunction[program.constPool.length];
+
+        for (int i = 0; i < dc.size(); i++) {
+            if (dc.opcode(i) != opcode)
+                continue;
+
+            int index = dc.operand(i, 0);
+
+            if (functions[index] == null) {
+                String name = (String) program.constPool[index];
+                functions[index] = lookup(name);
+
+                if (functions[index] == null) // only in a Program built without the assembler
+                    throw new IllegalStateException("unknown host function \"" + name + "\" at " + dc.offset(i));
+            }
+        }
+
+        return functions;
+    }
+
+    /* target with its args read from slots[first..first+numArgs-1] */
+    private static MethodHandle invoker(MethodHandle target) {
+        int n = target.type().parameterCount();
+        MethodHandle spread = target.asType(MethodType.genericMethodType(n)); // unboxing casts
+        MethodHandle element = MethodHandles.arrayElementGetter(Object[].class);
+        int[] reorder = new int[2 * n];
+
+        if (n == 0)
+            return MethodHandles.dropArguments(spread, 0, Object[].class, int.class);
+
+        // last to first so the earlier positions stay put
+        for (int i = n - 1; i >= 0; i--) {
+            MethodHandle get = MethodHandles.filterArguments(element, 1, MethodHandles.insertArguments(ADD, 1, i));
+            spread = MethodHandles.collectArguments(spread, i, get); // arg i is slots[first + i]
+            reorder[2 * i + 1] = 1;
+        }
+
+        return MethodHandles.permuteArguments(spread,
+            MethodType.methodType(Object.class, Object[].class, int.class), reorder);
+    }
+
+    /** Call with the args in slots[first..first+getNumArgs()-1]; not inlined, see above. */
+    public Object invoke(Object[] slots, int first) {
+        try {
+            return (Object) invoker.invokeExact(slots, first);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("host function " + name + " failed", t);
+        }
+    }
+
+    public String getName() { return name; }
+
+    public int getNumArgs() { return numArgs; }
+
+    public MethodType type() { return target.type(); }
+
+    @Override
+    public String toString() { return name + target.type(); }
+}
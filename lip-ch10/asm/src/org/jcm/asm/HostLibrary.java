@@ -0,0 +1,60 @@
+package org.jcm.asm;
+
+/**
+ * Host functions every program can ncall, by method name.  Guest floats
+ *  are float, so the math is done in double and narrowed back.
+ *
+ * @author jmarchesini
+ */
+public final class HostLibrary {
+    private HostLibrary() { }
+
+    public static float sqrt(float x) { return (float) Math.sqrt(x); }
+
+    public static float sin(float x) { return (float) Math.sin(x); }
+
+    public static float cos(float x) { return (float) Math.cos(x); }
+
+    public static float pow(float x, float y) { return (float) Math.pow(x, y); }
+
+    public static float fabs(float x) { return Math.abs(x); }
+
+    public static int iabs(int x) { return Math.abs(x); }
+
+    public static int imin(int a, int b) { return Math.min(a, b); }
+
+    public static int imax(int a, int b) { return Math.max(a, b); }
+
+    public static int idiv(int a, int b) { return a / b; }
+
+    public static int imod(int a, int b) { return a % b; }
+
+    /** Float to int, truncating. */
+    public static int ftoi(float x) { return (int) x; }
+
+    public static int strlen(String s) { return s.length(); }
+
+    public static char charAt(String s, int i) { return s.charAt(i); }
+
+    public static String concat(Object a, Object b) { return String.valueOf(a) + b; }
+
+    public static String str(Object v) { return String.valueOf(v); }
+
+    public static int isum(int[] a) {
+        int sum = 0;
+
+        for (int v : a)
+            sum += v;
+
+        return sum;
+    }
+
+    public static float fsum(float[] a) {
+        float sum = 0;
+
+        for (float v : a)
+            sum += v;
+
+        return sum;
+    }
+}
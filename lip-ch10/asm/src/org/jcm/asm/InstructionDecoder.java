@@ -0,0 +1,62 @@
+package org.jcm.asm;
+
+import java.util.Arrays;
+
+/**
+ * Decodes code memory for either instruction set into DecodedCode, the
+ *  same walk DisAssembler does but producing data instead of text.
+ *
+ * @author jmarchesini
+ */
+public class InstructionDecoder {
+    protected final BytecodeDefBase.Instruction[] instructions;
+
+    public InstructionDecoder(BytecodeDefBase bcDef) {
+        this.instructions = bcDef.getInstructions();
+    }
+
+    public DecodedCode decode(byte[] code, int codeSize) {
+        return decode(code, 0, codeSize);
+    }
+
+    /** Decode the instructions in [start, end). */
+    public DecodedCode decode(byte[] code, int start, int end) {
+        // every instruction is at least one byte; most are 5 or more
+        int capacity = Math.max(16, (end - start) / 4);
+        int[] offsets = new int[capacity];
+        short[] opcodes = new short[capacity];
+        int[] operands = new int[capacity * DecodedCode.MAX_OPERANDS];
+        int n = 0;
+        int ip = start;
+
+        while (ip < end) {
+            int opcode = code[ip] & 0xFF;
+
+            if (opcode == 0 || opcode >= instructions.length)
+                throw new Error("invalid opcode: " + opcode + " at ip=" + ip);
+
+            if (n == offsets.length) {
+                capacity = n * 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                opcodes = Arrays.copyOf(opcodes, capacity);
+                operands = Arrays.copyOf(operands, capacity * DecodedCode.MAX_OPERANDS);
+            }
+
+            offsets[n] = ip;
+            opcodes[n] = (short) opcode;
+            ip++;
+
+            BytecodeDefBase.Instruction instr = instructions[opcode];
+            int base = n * DecodedCode.MAX_OPERANDS;
+
+            for (int k = 0; k < instr.n; k++) {
+                operands[base + k] = BytecodeAssembler.getInt(code, ip);
+                ip += 4;
+            }
+
+            n++;
+        }
+
+        return new DecodedCode(instructions, offsets, opcodes, operands, n, start, ip);
+    }
+}
@@ -0,0 +1,14 @@
+package org.jcm.asm;
+
+/**
+ * Executes one instruction for interpreter type V.  Called with ip just
+ *  past the opcode; reads its operands from there (which leaves ip at the
+ *  next instruction) unless it transfers control.  Returns true when cpu()
+ *  must stop at this point, i.e. when a safe point says the budget is gone.
+ *
+ * @author jmarchesini
+ */
+@FunctionalInterface
+public interface InstructionHandler<V extends InterpreterBase> {
+    boolean execute(V vm);
+}
@@ -1,22 +1,56 @@
 package org.jcm.asm;
 
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.jcm.asm.gen.AssemblerLexer;
-
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.ObjectName;
 
 /**
+ * Execution state for one run of a Program.  The Program is shared and
+ *  read-only; everything here belongs to this interpreter, so instances
+ *  are cheap and independent of each other.
+ *
  * @author jmarchesini
  */
 abstract public class InterpreterBase {
-    public static final int DEFAULT_OPERAND_STACK_SIZE = 100;
-    public static final int DEFAULT_CALL_STACK_SIZE = 1000;
+    /* Stacks start this small and grow on demand up to their limits */
+    public static final int INITIAL_OPERAND_STACK_SIZE = 32;
+    public static final int INITIAL_CALL_STACK_SIZE = 16;
+    public static final int STACK_SEGMENT = 256; // growth granularity, in slots or frames
+
+    public static final int DEFAULT_OPERAND_STACK_LIMIT =
+        Integer.getInteger("jcm.stack.operands", 1 << 20);
+    public static final int DEFAULT_CALL_STACK_LIMIT =
+        Integer.getInteger("jcm.stack.calls", 100_000);
+
+    /* Budget meaning "run until halt" */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /* exec() runs in slices this long so counters are published regularly */
+    public static final int EXEC_SLICE = 1 << 20;
+
+    /* What println ends a line with, for the printBytes metric */
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    /* Dispatch through instruction handlers instead of cpu()'s switch */
+    static final boolean HANDLER_DISPATCH = "handlers".equals(System.getProperty("jcm.dispatch"));
+
+    /* Execution status */
+    public static final int NEW = 0;     // main not entered yet
+    public static final int YIELDED = 1; // budget ran out; run() again to continue
+    public static final int HALTED = 2;
 
-    protected DisAssembler disasm;
+    protected Program program;
+    protected DisAssembler disasm; // created on first use
     protected boolean trace = false;
+    protected PrintStream out = System.out; // where print writes
+    private boolean utf8Out = isUtf8(out);   // so print can count its bytes without encoding
 
     protected byte[] code;        // byte-addressable code memory
     protected int ip;             // instruction pointer register
@@ -24,14 +58,707 @@ abstract public class InterpreterBase {
     protected Object[] globals;   // global variable space
     protected Object[] constPool; // the constant pool
 
-    /* Operand stack, grows upwards */
-    protected Object[] operands = new Object[DEFAULT_OPERAND_STACK_SIZE];
+    /* Operand stack, grows upwards; see reserveOperands() */
+    protected Object[] operands = new Object[INITIAL_OPERAND_STACK_SIZE];
     protected int sp = -1;        // stack pointer register
     protected int fp = -1;        // frame pointer register
+    protected int operandStackLimit = DEFAULT_OPERAND_STACK_LIMIT;
+    private int unboundedFp = Integer.MAX_VALUE; // lowest frame without a bound, see reserveOperands()
+    protected int callStackLimit = DEFAULT_CALL_STACK_LIMIT;
 
     protected FunctionSymbol mainFunction;
 
-    protected abstract void exec();
+    protected HandlerDispatch.Loop handlerLoop; // null to use cpu()
+    protected StructLayout[] layouts; // see tstruct
+    protected HostFunction[] hostFunctions; // see ncall
+    protected StructArena arena = new StructArena();
+
+    protected int status = NEW;
+    protected int budget = UNLIMITED;     // ticks left in the current slice
+    protected long instructionsRetired;
+
+    /* Where calls, returns and conditional branches went, see ExecutionHistory */
+    private final long[] history = new long[ExecutionHistory.SIZE];
+    private long transfers;
+
+    /* Metrics, see InterpreterMetrics; maxima are sampled at safe points */
+    protected long callCount;
+    protected long structAllocations;
+    protected long printBytes;
+    protected int maxFp = -1;
+    protected int maxSp = -1;
+    protected long execNanos;
+    final long[] published = new long[5];
+
+    /* The sampled call in flight, see GuestEvents */
+    private GuestCallEvent callEvent;
+    private int callEventFp = -1;
+    private int callSampleCountdown = GuestEvents.CALL_SAMPLE_RATE;
+
+    /*
+     * Other threads ask for something at the next safe point by setting
+     *  pollRequested last; that one volatile read is all the fast loops pay
+     *  for profiling and debugging.  See poll().
+     */
+    volatile boolean pollRequested;
+    boolean sampleRequested; // by the profiler's timer, see GuestProfiler
+    protected GuestProfiler profiler;
+    private volatile boolean stopRequested; // by stop(), for good
+
+    /* Tasks started by spawn and still running, for stop() */
+    private final Set<GuestTask> tasks = ConcurrentHashMap.newKeySet();
+
+    /* Tracing, a debugger or call events run the instrumented loop instead of cpu() */
+    protected volatile Debugger debugger;
+    private boolean instrumenting;  // which loop run() is in
+    private boolean switchLoops;    // left it for the other one, or for new code
+    private InstructionHandler<InterpreterBase>[] handlers; // instrumentedCpu()'s, by opcode
+    private int[] flows; // BytecodeDefBase.FLOW_ of each opcode, for instrumentedCpu()
+    private int[] pushes; // most each opcode pushes, for instrumentedCpu() above unboundedFp
+    private int haltOpcode = -1;
+
+    /* Versions of the program from redefine(), for poll() to install */
+    private volatile Program pendingProgram;
+    private volatile Program latestProgram;
+
+    protected Coverage coverage = Coverage.NONE; // marks nothing unless measuring, see Coverage
+
+    protected InterpreterBase() { }
+
+    protected InterpreterBase(Program program) { load(program); }
+
+    /** Push the frame for main and point ip at its first instruction. */
+    protected abstract void enter();
+
+    /**
+     * The fetch-decode-execute cycle.  Runs until halt, or until budget
+     *  drops to zero, in which case it sets status to YIELDED and returns
+     *  with ip at the next instruction to execute.  budget is charged one
+     *  tick per call and per taken backward branch, so straight-line code
+     *  never pays for the check and every loop iteration does.  Has no
+     *  tracing or debugging checks; run() uses instrumentedCpu() for those.
+     */
+    protected abstract void cpu();
+
+    /** Print the instruction at ip and the machine state, before executing it. */
+    protected void trace() { }
+
+    /* Call stack access for tools that work with either interpreter */
+    protected abstract FunctionSymbol frameFunction(int i);
+
+    protected abstract int frameReturnAddress(int i);
+
+    /** Locals (stack VM) or registers (register VM) of frame i. */
+    protected abstract Object[] frameSlots(int i);
+
+    /** Push a frame for sym and return its slots for the caller to fill. */
+    protected abstract Object[] pushFrame(FunctionSymbol sym, int returnAddress);
+
+    /**
+     * A new interpreter for the same program that runs f, with its args
+     *  copied from args[first..], until f returns; see startTask().
+     */
+    protected abstract InterpreterBase fork(FunctionSymbol f, Object[] args, int first);
+
+    /** What the function a forked interpreter ran returned, once it has. */
+    protected abstract Object forkResult();
+
+    /** Translator of program to a JVM class, or null if this instruction set has none. */
+    protected AotCompiler newAotCompiler(Program program) { return null; }
+
+    /** Run the program from its main function until halt. */
+    public void exec() {
+        ObjectName mbean = null;
+
+        if (InterpreterMetrics.AUTO_REGISTER) {
+            InterpreterMetrics.registerAggregate();
+            mbean = InterpreterMetrics.register(this);
+        }
+
+        try {
+            while (run(EXEC_SLICE) == YIELDED && !stopRequested) {
+                // instructionsRetired is current between slices
+            }
+        } finally {
+            if (mbean != null)
+                InterpreterMetrics.unregister(mbean);
+        }
+    }
+
+    /**
+     * Run for at most budget ticks (calls plus backward branches) and
+     *  return YIELDED or HALTED.  All execution state lives in fields so a
+     *  yielded interpreter may be resumed later, on any thread.
+     */
+    public int run(int budget) {
+        if (status == HALTED || stopRequested)
+            return status;
+
+        if (status == NEW) {
+            enter();
+            transferred(ip);
+            coverage.mark(ip);
+        }
+
+        this.budget = budget;
+        long start = System.nanoTime();
+
+        GuestEvents.running.add(this); // however run() is driven: exec(), Scheduler, BatchRunner
+        GuestProfiler profiler = this.profiler; // detach from the one attached to, whatever setProfiler() does
+
+        if (profiler != null)
+            profiler.attach(this);
+
+        try {
+            do {
+                switchLoops = false;
+                instrumenting = instrumented();
+
+                if (instrumenting)
+                    instrumentedCpu();
+                else if (handlerLoop != null)
+                    handlerCpu();
+                else
+                    cpu();
+            } while (switchLoops);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // no code should get here, see reserveOperands(); report it as an overflow anyway
+            if (sp >= operands.length)
+                throw new GuestStackOverflowError("operand stack overflow at ip=" + ip +
+                    ": limit is " + operandStackLimit + " slots");
+
+            throw e;
+        } finally {
+            GuestEvents.running.remove(this);
+
+            if (profiler != null)
+                profiler.detach(this);
+
+            execNanos += System.nanoTime() - start;
+            InterpreterMetrics.publish(this);
+        }
+
+        if (status == HALTED)
+            arena.release();
+
+        return status;
+    }
+
+    private void handlerCpu() {
+        try {
+            handlerLoop.cpu(this);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t); // handlers throw nothing checked
+        }
+    }
+
+    /* True if run() must use instrumentedCpu(); poll() checks it again */
+    private boolean instrumented() {
+        return trace || debugger != null || GuestEvents.callsEnabled() ||
+            unboundedFp <= fp;
+    }
+
+    /**
+     * The instrumented loop: cpu() plus tracing, the debugger's
+     *  breakpoints, watchpoints and single steps, and call events.  Executes one instruction handler at a time, so every
+     *  instruction boundary is a place to stop or to go back to the fast
+     *  loop.  The fast loops do none of this, not even a check.  Code
+     *  without an operand stack bound runs here too, checking for room
+     *  before every instruction.
+     */
+    private void instrumentedCpu() {
+        InstructionHandler<InterpreterBase>[] handlers = instrumentedHandlers();
+        int[] flows = this.flows;
+        int[] pushes = this.pushes;
+        Debugger d = debugger;
+        long retired = 0;
+
+        status = HALTED;
+
+        try {
+            while (ip < codeSize) {
+                int opcode = code[ip];
+
+                if (d != null)
+                    d.before(this);
+
+                if (opcode == haltOpcode)
+                    break;
+
+                if (trace)
+                    trace();
+
+                ip++;
+                retired++;
+
+                InstructionHandler<InterpreterBase> h = opcode < handlers.length ? handlers[opcode] : null;
+
+                if (h == null)
+                    throw new Error("invalid opcode: " + opcode + " at ip=" + (ip - 1));
+
+                if (unboundedFp <= fp && sp + pushes[opcode] >= operands.length)
+                    growOperands(sp + pushes[opcode]);
+
+                boolean stop = h.execute(this);
+                int flow = flows[opcode];
+
+                if (flow == BytecodeDefBase.FLOW_RETURN && fp < unboundedFp && unboundedFp != Integer.MAX_VALUE) {
+                    unboundedFp = Integer.MAX_VALUE; // bounded again; back to the fast loop
+                    pollRequested = true;
+                }
+
+                if (flow == BytecodeDefBase.FLOW_CALL && GuestEvents.callsEnabled())
+                    sampleCall(); // in the callee, before any safe point yields
+
+                if (stop)
+                    break;
+
+                if (d != null)
+                    d.after(this);
+
+                if (pollRequested && poll()) {
+                    status = YIELDED;
+                    break;
+                }
+            }
+        } finally {
+            instructionsRetired += retired;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private InstructionHandler<InterpreterBase>[] instrumentedHandlers() {
+        if (handlers == null) {
+            BytecodeDefBase.Instruction[] instructions = program.bcDef.getInstructions();
+            handlers = (InstructionHandler<InterpreterBase>[]) new InstructionHandler<?>[instructions.length];
+            flows = new int[instructions.length];
+            pushes = new int[instructions.length];
+
+            for (int op = 0; op < instructions.length; op++) {
+                if (instructions[op] == null)
+                    continue;
+
+                flows[op] = instructions[op].flow;
+                pushes[op] = Math.max(0, instructions[op].pushes);
+
+                if (instructions[op].flow == BytecodeDefBase.FLOW_HALT)
+                    haltOpcode = op;
+
+                handlers[op] = (InstructionHandler<InterpreterBase>) instructions[op].handler;
+            }
+        }
+
+        return handlers;
+    }
+
+    public int getStatus() { return status; }
+
+    public long getInstructionsRetired() { return instructionsRetired; }
+
+    /**
+     * The last instructions executed, disassembled, oldest first; after a
+     *  guest error, the last is the one that failed.  See ExecutionHistory.
+     */
+    public String getHistory() {
+        StringBuilder sb = new StringBuilder();
+        ExecutionHistory.decode(history, transfers, ip, getDisAssembler(), sb);
+
+        return sb.toString();
+    }
+
+    /** Print with the bookkeeping for the metrics. */
+    protected final void print(Object v) {
+        String s = String.valueOf(v);
+        out.println(s);
+        printBytes += encodedLength(s) + LINE_SEPARATOR.length(); // ASCII, a byte a char in UTF-8
+    }
+
+    private static boolean isUtf8(PrintStream out) {
+        return out.charset().equals(StandardCharsets.UTF_8);
+    }
+
+    /* Bytes s takes in out's charset; UTF-8, the usual one, is counted in place */
+    private int encodedLength(String s) {
+        if (!utf8Out)
+            return s.getBytes(out.charset()).length;
+
+        int n = s.length();
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c >= 0x800)
+                n += Character.isSurrogate(c) ? 1 : 2; // a pair is 4 bytes
+            else if (c >= 0x80)
+                n++;
+        }
+
+        return n;
+    }
+
+    public Program getProgram() { return program; }
+
+    public Object[] getGlobals() { return globals; }
+
+    public void setOutput(PrintStream out) {
+        this.out = out;
+        this.utf8Out = isUtf8(out);
+    }
+
+    /** Trace every instruction from the next safe point on, or stop tracing. */
+    public void setTrace(boolean trace) {
+        this.trace = trace;
+        pollRequested = true;
+    }
+
+    /**
+     * Attach debugger, or detach with null.  Safe from any thread; takes
+     *  effect at the next safe point, where the interpreter changes over to
+     *  the instrumented loop or back to the fast one.
+     */
+    public void setDebugger(Debugger debugger) {
+        this.debugger = debugger;
+        pollRequested = true;
+    }
+
+    public Debugger getDebugger() { return debugger; }
+
+    /**
+     * Stop for good: run() returns YIELDED at the next safe point and at
+     *  once when called again, and the tasks spawn started are stopped and
+     *  interrupted, so their send, receive and join give up.  Safe from
+     *  any thread; see BatchRunner's -timeout.
+     */
+    public void stop() {
+        stopRequested = true;
+        pollRequested = true;
+
+        for (GuestTask task : tasks)
+            task.stop();
+    }
+
+    public boolean isStopped() { return stopRequested; }
+
+    /**
+     * Switch to newVersion, a redefinition of this interpreter's program
+     *  (see Program.redefine()), at the next safe point.  Safe from any
+     *  thread; frames already running keep running their code, and calls
+     *  from then on use newVersion's functions.  Interpreters started by
+     *  spawn before then keep the version they started with.
+     */
+    public synchronized void redefine(Program newVersion) {
+        if (newVersion.hasErrors() || !newVersion.extendsProgram(latestProgram))
+            throw new IllegalArgumentException("not a redefinition of the running program");
+
+        latestProgram = newVersion;
+        pendingProgram = newVersion;
+        pollRequested = true;
+    }
+
+    /**
+     * Assemble the .defs in source as a redefinition of the latest version
+     *  of this interpreter's program and switch to it, unless it has
+     *  errors.  Returns the new version.
+     */
+    public synchronized Program redefine(String source) {
+        Program next = latestProgram.redefine(source);
+
+        if (!next.hasErrors())
+            redefine(next);
+
+        return next;
+    }
+
+    /** Sample guest call stacks with profiler, or stop sampling if null. */
+    public void setProfiler(GuestProfiler profiler) {
+        this.profiler = profiler;
+        sampleRequested = false; // a sample flagged for the last one
+    }
+
+    /** Record the code this interpreter runs in coverage, or stop if null. */
+    public void setCoverage(Coverage coverage) {
+        this.coverage = coverage != null ? coverage : Coverage.NONE;
+    }
+
+    /** Execute with the instruction set's handlers (see HandlerDispatch) or cpu(). */
+    public void setHandlerDispatch(boolean on) {
+        handlerLoop = on ? HandlerDispatch.forDefinition(program.bcDef) : null;
+    }
+
+    /** Most operand stack slots and call frames the stacks may grow to. */
+    public void setStackLimits(int operandStackLimit, int callStackLimit) {
+        this.operandStackLimit = operandStackLimit;
+        this.callStackLimit = callStackLimit;
+    }
+
+    /**
+     * Point this interpreter at program with fresh globals.  Final, since
+     *  the constructor calls it before a subclass is initialized.
+     */
+    protected final void load(Program program) {
+        this.program = program;
+        this.code = program.code;
+        this.codeSize = program.codeSize;
+        this.constPool = program.constPool;
+        this.mainFunction = program.mainFunction;
+        this.globals = new Object[program.dataSize];
+        this.layouts = program.layouts;
+        this.hostFunctions = program.hostFunctions;
+        this.handlerLoop = HANDLER_DISPATCH ? HandlerDispatch.forDefinition(program.bcDef) : null;
+        this.arena = new StructArena();
+        this.disasm = null;
+        this.latestProgram = program;
+        this.pendingProgram = null;
+    }
+
+    /* The code of the running program becomes that of a redefinition; nothing else changes */
+    private void install(Program next) {
+        program = next;
+        code = next.code;
+        codeSize = next.codeSize;
+        constPool = next.constPool;
+        layouts = next.layouts;
+        hostFunctions = next.hostFunctions;
+        disasm = null;
+
+        if (next.mainFunction != null)
+            mainFunction = next.mainFunction;
+    }
+
+    protected DisAssembler getDisAssembler() {
+        if (disasm == null)
+            disasm = program.newDisAssembler();
+
+        return disasm;
+    }
+
+    /**
+     * Branch to addr.  A backward branch is a safe point; returns true if
+     *  cpu() must return there (see safePoint()).
+     */
+    protected final boolean jump(int addr) {
+        boolean backward = addr < ip;
+        ip = addr;
+        coverage.mark(addr);
+
+        return backward && safePoint();
+    }
+
+    /**
+     * Conditional branch to addr: jump() if taken, else carry on at ip,
+     *  noting that for the history and coverage.
+     */
+    protected final boolean branch(boolean taken, int addr) {
+        transferred(taken ? addr : ip);
+
+        if (taken)
+            return jump(addr);
+
+        coverage.mark(ip);
+
+        return false;
+    }
+
+    /**
+     * Called by cpu() when a call, a ret or a conditional branch, taken or
+     *  not, sends control to addr in frame fp.  One plain store; see
+     *  ExecutionHistory.
+     */
+    protected final void transferred(int addr) {
+        history[(int) transfers++ & (history.length - 1)] = ExecutionHistory.entry(addr, fp);
+    }
+
+    /**
+     * Called by cpu() after calls and backward branches, with ip at the
+     *  next instruction and all state in fields.  Charges one tick and
+     *  returns true, with status set to YIELDED, once the budget is gone.
+     */
+    protected final boolean safePoint() {
+        if (fp > maxFp) maxFp = fp;
+        if (sp > maxSp) maxSp = sp;
+
+        if (pollRequested && poll()) {
+            status = YIELDED;
+            return true;
+        }
+
+        if (--budget > 0)
+            return false;
+
+        status = YIELDED;
+
+        return true;
+    }
+
+    /**
+     * Do what other threads asked for with pollRequested.  Returns true if
+     *  the running loop must return so that run() enters the other one, or
+     *  enters it again with new code.
+     */
+    private boolean poll() {
+        pollRequested = false;
+
+        if (sampleRequested) {
+            sampleRequested = false;
+            GuestProfiler profiler = this.profiler;
+
+            if (profiler != null) // the timer may flag it as it is detached
+                profiler.record(this);
+        }
+
+        if (stopRequested)
+            return true;
+
+        Program next = pendingProgram;
+
+        if (next != null && next != program) {
+            install(next);
+            switchLoops = true; // loops keep code in locals
+
+            return true;
+        }
+
+        if (instrumented() == instrumenting)
+            return false;
+
+        switchLoops = true;
+
+        return true;
+    }
+
+    /**
+     * Make room on the operand stack for function f, just entered with its
+     *  args popped, using the bound OperandStackDepth computed at load.
+     *  Pushes in the fast loops never check, so this is their only operand
+     *  stack growth.  A function without a bound sends this frame and those
+     *  above it to the instrumented loop, which checks before every
+     *  instruction and grows the stack only as far as it is used, until
+     *  it returns.
+     */
+    protected final void reserveOperands(FunctionSymbol f) {
+        reserveOperands(f, fp);
+    }
+
+    /* As reserveOperands(f), for f running in frame */
+    final void reserveOperands(FunctionSymbol f, int frame) {
+        int depth = f.maxStack;
+
+        if (depth < 0) {
+            if (frame < unboundedFp) {
+                unboundedFp = frame;
+                pollRequested = true; // to change loops at the next safe point
+            }
+        } else if (sp + depth >= operands.length) {
+            growOperands(sp + depth);
+        }
+    }
+
+    /** The main function to enter for code that starts at 0 without a .def main. */
+    protected final FunctionSymbol implicitMain() {
+        FunctionSymbol main = new FunctionSymbol("main", 0, 0, 0);
+        main.maxStack = program.entryMaxStack;
+
+        return main;
+    }
+
+    final void growOperands(int top) {
+        if (top >= operandStackLimit)
+            throw new GuestStackOverflowError("operand stack overflow in " +
+                frameFunction(fp).name + ": needs " + (top + 1) + " slots, limit is " +
+                operandStackLimit);
+
+        if (top < operands.length)
+            return;
+
+        int size = Math.max(operands.length * 2, (top / STACK_SEGMENT + 1) * STACK_SEGMENT);
+        operands = Arrays.copyOf(operands, Math.min(size, operandStackLimit));
+    }
+
+    /**
+     * New length for a full call stack of the given length; the interpreter
+     *  copies its frames into an array that long before pushing another.
+     */
+    protected final int growCallStack(int length) {
+        if (length >= callStackLimit)
+            throw new GuestStackOverflowError("call stack overflow at ip=" + ip + ": limit is " +
+                callStackLimit + " frames");
+
+        return Math.min(Math.max(length * 2, STACK_SEGMENT), callStackLimit);
+    }
+
+    /**
+     * Called by cpu() just after entering a function, when
+     *  GuestEvents.callsEnabled(); starts timing every CALL_SAMPLE_RATE'th
+     *  call unless one is already being timed.
+     */
+    protected final void sampleCall() {
+        if (callEvent != null || --callSampleCountdown > 0)
+            return;
+
+        callSampleCountdown = GuestEvents.CALL_SAMPLE_RATE;
+        GuestCallEvent e = new GuestCallEvent();
+        e.function = frameFunction(fp).name;
+        e.depth = fp;
+        e.interpreter = toString();
+        e.begin();
+        callEvent = e;
+        callEventFp = fp;
+    }
+
+    /** True if the frame being returned from is the one sampleCall() timed. */
+    protected final boolean isSampledCall() { return fp == callEventFp; }
+
+    /** Called by cpu() at the ret of the sampled call, before popping it. */
+    protected final void endSampledCall() {
+        callEvent.commit();
+        callEvent = null;
+        callEventFp = -1;
+    }
+
+    /** A new struct with the layout at constant pool index layoutIndex. */
+    protected final TypedStruct newTypedStruct(int layoutIndex) {
+        StructLayout layout = layouts[layoutIndex];
+        structAllocations++;
+
+        if (GuestEvents.structsEnabled())
+            structAllocated(layout.size());
+
+        return arena.allocate(layout);
+    }
+
+    /**
+     * Called by cpu() for spawn: run f on a forked interpreter sharing this
+     *  one's globals, output and settings, on a virtual thread.
+     */
+    protected final GuestTask startTask(FunctionSymbol f, Object[] args, int first) {
+        InterpreterBase child = fork(f, args, first);
+        child.globals = globals;
+        child.setOutput(out);
+        child.trace = trace;
+        child.profiler = profiler;
+        child.coverage = coverage;
+        child.debugger = debugger;
+        child.handlerLoop = handlerLoop;
+        child.operandStackLimit = operandStackLimit;
+        child.callStackLimit = callStackLimit;
+        coverage.mark(f.address);
+
+        child.transferred(child.ip);
+
+        GuestTask task = GuestTask.start(child, f.name + "@" + Integer.toHexString(child.hashCode()), tasks);
+
+        if (stopRequested)
+            task.stop(); // stop() may have looked at tasks before it was added
+
+        return task;
+    }
+
+    /** Called by cpu() after a struct is allocated, when GuestEvents.structsEnabled(). */
+    protected final void structAllocated(int numFields) {
+        GuestEvents.structAllocated(this, numFields);
+    }
 
     /**
      * Pull off 4 bytes starting at ip and return 32-bit signed int value.
@@ -53,6 +780,16 @@ abstract public class InterpreterBase {
         boolean trace = false;
         boolean disassemble = false;
         boolean dump = false;
+        String saveFile = null;
+        String restoreFile = null;
+        String cacheDir = null;
+        String profileFile = null;
+        String coverageFile = null;
+        String aotFile = null;
+        boolean debug = false;
+        boolean scalarReplace = false;
+        boolean handlers = false;
+        int ticks = UNLIMITED;
         int i = 0;
 
         String filename = null;
@@ -64,6 +801,10 @@ abstract public class InterpreterBase {
                     trace = true;
                     i++;
                     break;
+                case "-debug":   // breakpoints and stepping from commands on stdin
+                    debug = true;
+                    i++;
+                    break;
                 case "-dis":
                     disassemble = true;
                     i++;
@@ -72,6 +813,42 @@ abstract public class InterpreterBase {
                     dump = true;
                     i++;
                     break;
+                case "-save":    // snapshot to file when stopping
+                    saveFile = args[i + 1];
+                    i += 2;
+                    break;
+                case "-restore": // start from a snapshot instead of main
+                    restoreFile = args[i + 1];
+                    i += 2;
+                    break;
+                case "-cache":   // reuse programs assembled into this directory
+                    cacheDir = args[i + 1];
+                    i += 2;
+                    break;
+                case "-scalar":  // replace non-escaping structs with locals
+                    scalarReplace = true;
+                    i++;
+                    break;
+                case "-handlers": // dispatch through instruction handlers
+                    handlers = true;
+                    i++;
+                    break;
+                case "-profile": // sample guest stacks, write them collapsed to file
+                    profileFile = args[i + 1];
+                    i += 2;
+                    break;
+                case "-coverage": // write code coverage and annotated code to file
+                    coverageFile = args[i + 1];
+                    i += 2;
+                    break;
+                case "-aot":     // translate to a runnable JAR instead of running
+                    aotFile = args[i + 1];
+                    i += 2;
+                    break;
+                case "-ticks":   // stop after n calls and backward branches
+                    ticks = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
                 default:
                     filename = args[i];
                     i++;
@@ -84,48 +861,87 @@ abstract public class InterpreterBase {
         else
             input = System.in;
 
-        boolean hasErrors = load(interpreter, input, bcDef);
+        Program program;
 
-        if (!hasErrors) {
-            this.trace = trace;
-            interpreter.exec();
+        if (cacheDir != null) {
+            ProgramCache cache = new ProgramCache(
+                ProgramCache.DEFAULT_MEMORY_LIMIT, Paths.get(cacheDir), ProgramCache.DEFAULT_DISK_LIMIT);
 
-            if (disassemble)
-                interpreter.disassemble();
-            if (dump)
-                interpreter.coreDump();
+            try (input) {
+                String source = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+                program = cache.load(source, bcDef);
+            }
+        } else {
+            program = Program.load(input, bcDef);
         }
-    }
 
-    private static boolean load(
-        InterpreterBase interp,
-        InputStream input,
-        BytecodeDefBase bcDef
-    ) throws Exception {
-        boolean hasErrors;
+        if (scalarReplace) {
+            ScalarReplacement.Result result = ScalarReplacement.apply(program);
+            System.err.print(result);
+            program = result.getProgram();
+        }
 
-        try (input) {
-            CharStream charStream = CharStreams.fromStream(input);
-            AssemblerLexer lexer = new AssemblerLexer(charStream);
-            CommonTokenStream tokens = new CommonTokenStream(lexer);
-            BytecodeAssembler assembler = new BytecodeAssembler(tokens, bcDef.getInstructions());
+        if (!program.hasErrors() && aotFile != null) {
+            AotCompiler aot = interpreter.newAotCompiler(program);
 
-            assembler.program();
-            interp.code = assembler.getMachineCode();
-            interp.codeSize = assembler.getCodeMemorySize();
-            interp.constPool = assembler.getConstantPool();
-            interp.mainFunction = assembler.getMainFunction();
-            interp.globals = new Object[assembler.getDataSize()];
-            interp.disasm =
-                new DisAssembler(interp.code, interp.codeSize, interp.constPool, bcDef);
+            if (aot == null)
+                throw new UnsupportedOperationException("no translator for " + bcDef.getClass().getName());
 
-            hasErrors = assembler.getNumberOfSyntaxErrors() > 0;
+            aot.writeJar(Paths.get(aotFile), AotCompiler.DEFAULT_CLASS_NAME);
+            int[] unboxed = aot.getUnboxedSlots();
+            System.err.println("wrote " + aotFile + ": " + unboxed[0] + " of " + unboxed[1] + " slots unboxed");
+
+            return;
         }
 
-        return hasErrors;
+        if (!program.hasErrors()) {
+            interpreter.load(program);
+            interpreter.trace = trace;
+
+            if (handlers)
+                interpreter.setHandlerDispatch(true);
+
+            if (restoreFile != null)
+                Snapshot.restore(interpreter, Paths.get(restoreFile));
+
+            GuestProfiler profiler = profileFile != null ? new GuestProfiler() : null;
+            interpreter.setProfiler(profiler);
+            Coverage coverage = coverageFile != null ? new Coverage(program) : null;
+            interpreter.setCoverage(coverage);
+
+            if (debug)
+                interpreter.setDebugger(Debugger.console(System.in, System.err));
+
+            try {
+                if (ticks == UNLIMITED)
+                    interpreter.exec();
+                else
+                    interpreter.run(ticks);
+            } catch (RuntimeException | Error e) {
+                System.err.print(interpreter.getHistory());
+                throw e;
+            } finally {
+                if (profiler != null) {
+                    profiler.close();
+                    profiler.writeCollapsed(Paths.get(profileFile));
+                    System.err.println(profiler.getSampleCount() + " samples written to " + profileFile);
+                }
+
+                if (coverage != null)
+                    coverage.writeReport(Paths.get(coverageFile));
+            }
+
+            if (saveFile != null)
+                Snapshot.save(interpreter, Paths.get(saveFile));
+
+            if (disassemble)
+                interpreter.disassemble();
+            if (dump)
+                interpreter.coreDump();
+        }
     }
 
-    private void disassemble() { disasm.disassemble(); }
+    private void disassemble() { getDisAssembler().disassemble(); }
 
     private void coreDump() {
         if (constPool.length > 0)
@@ -0,0 +1,22 @@
+package org.jcm.asm;
+
+/**
+ * Management view of one interpreter.  Counters are exact as of the end
+ *  of the interpreter's last time slice; depths are high-water marks
+ *  sampled at safe points (calls and backward branches).
+ *
+ * @author jmarchesini
+ */
+public interface InterpreterMXBean {
+    String getProgram();
+    String getStatus();
+    long getInstructionsRetired();
+    long getCalls();
+    int getCallDepth();
+    int getMaxCallDepth();
+    int getMaxOperandStackDepth();
+    long getStructAllocations();
+    long getPrintBytes();
+    long getAssembleNanos();
+    long getExecNanos();
+}
@@ -0,0 +1,189 @@
+package org.jcm.asm;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JMX surface for interpreters.  Each interpreter counts into its own
+ *  plain fields (one writer, no sharing) and adds the deltas to striped
+ *  process-wide LongAdders once per time slice, so thousands of
+ *  concurrent interpreters never contend on a counter.
+ *
+ * Nothing is registered with the platform MBean server until asked:
+ *  registerAggregate() for org.jcm:type=Interpreters and register(interp)
+ *  for one org.jcm:type=Interpreter,id=N per interpreter.  With
+ *  -Djcm.jmx=true exec() does both.
+ *
+ * @author jmarchesini
+ */
+public final class InterpreterMetrics {
+    public static final boolean AUTO_REGISTER = Boolean.getBoolean("jcm.jmx");
+
+    static final LongAdder instructions = new LongAdder();
+    static final LongAdder calls = new LongAdder();
+    static final LongAdder structs = new LongAdder();
+    static final LongAdder printBytes = new LongAdder();
+    static final LongAdder assembleNanos = new LongAdder();
+    static final LongAdder execNanos = new LongAdder();
+    static final LongAdder slices = new LongAdder();
+    static final LongAccumulator maxCallDepth = new LongAccumulator(Math::max, 0);
+    static final LongAccumulator maxStackDepth = new LongAccumulator(Math::max, 0);
+    static final LongAdder registered = new LongAdder();
+
+    private static final AtomicLong ids = new AtomicLong();
+    private static boolean aggregateRegistered;
+
+    /* Indices into InterpreterBase.published */
+    static final int INSTRUCTIONS = 0;
+    static final int CALLS = 1;
+    static final int STRUCTS = 2;
+    static final int PRINT_BYTES = 3;
+    static final int EXEC_NANOS = 4;
+
+    private InterpreterMetrics() { }
+
+    /** Add what interp did since the last call to the process totals. */
+    static void publish(InterpreterBase interp) {
+        long[] last = interp.published;
+
+        instructions.add(interp.instructionsRetired - last[INSTRUCTIONS]);
+        calls.add(interp.callCount - last[CALLS]);
+        structs.add(interp.structAllocations - last[STRUCTS]);
+        printBytes.add(interp.printBytes - last[PRINT_BYTES]);
+        execNanos.add(interp.execNanos - last[EXEC_NANOS]);
+        slices.increment();
+        maxCallDepth.accumulate(interp.maxFp + 1);
+        maxStackDepth.accumulate(interp.maxSp + 1);
+
+        last[INSTRUCTIONS] = interp.instructionsRetired;
+        last[CALLS] = interp.callCount;
+        last[STRUCTS] = interp.structAllocations;
+        last[PRINT_BYTES] = interp.printBytes;
+        last[EXEC_NANOS] = interp.execNanos;
+    }
+
+    static void assembled(long nanos) { assembleNanos.add(nanos); }
+
+    public static synchronized void registerAggregate() {
+        if (aggregateRegistered)
+            return;
+
+        try {
+            server().registerMBean(new Aggregate(), new ObjectName("org.jcm:type=Interpreters"));
+            aggregateRegistered = true;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Register an MBean for interp; returns its name for unregister(). */
+    public static ObjectName register(InterpreterBase interp) {
+        try {
+            ObjectName name = new ObjectName("org.jcm:type=Interpreter,id=" + ids.incrementAndGet());
+            server().registerMBean(new View(interp), name);
+            registered.increment();
+
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void unregister(ObjectName name) {
+        try {
+            server().unregisterMBean(name);
+            registered.decrement();
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MBeanServer server() { return ManagementFactory.getPlatformMBeanServer(); }
+
+    static class View implements InterpreterMXBean {
+        final InterpreterBase interp;
+
+        View(InterpreterBase interp) { this.interp = interp; }
+
+        @Override
+        public String getProgram() {
+            FunctionSymbol main = interp.program.mainFunction;
+
+            return main != null ? main.name + "@" + Long.toHexString(interp.program.fingerprint())
+                                : Long.toHexString(interp.program.fingerprint());
+        }
+
+        @Override
+        public String getStatus() {
+            switch (interp.status) {
+                case InterpreterBase.NEW: return "NEW";
+                case InterpreterBase.YIELDED: return "YIELDED";
+                default: return "HALTED";
+            }
+        }
+
+        @Override
+        public long getInstructionsRetired() { return interp.instructionsRetired; }
+
+        @Override
+        public long getCalls() { return interp.callCount; }
+
+        @Override
+        public int getCallDepth() { return interp.fp + 1; }
+
+        @Override
+        public int getMaxCallDepth() { return interp.maxFp + 1; }
+
+        @Override
+        public int getMaxOperandStackDepth() { return interp.maxSp + 1; }
+
+        @Override
+        public long getStructAllocations() { return interp.structAllocations; }
+
+        @Override
+        public long getPrintBytes() { return interp.printBytes; }
+
+        @Override
+        public long getAssembleNanos() { return interp.program.assembleNanos; }
+
+        @Override
+        public long getExecNanos() { return interp.execNanos; }
+    }
+
+    static class Aggregate implements InterpretersMXBean {
+        @Override
+        public long getInstructionsRetired() { return instructions.sum(); }
+
+        @Override
+        public long getCalls() { return calls.sum(); }
+
+        @Override
+        public long getStructAllocations() { return structs.sum(); }
+
+        @Override
+        public long getPrintBytes() { return printBytes.sum(); }
+
+        @Override
+        public long getAssembleNanos() { return assembleNanos.sum(); }
+
+        @Override
+        public long getExecNanos() { return execNanos.sum(); }
+
+        @Override
+        public long getSlices() { return slices.sum(); }
+
+        @Override
+        public int getMaxCallDepth() { return (int) maxCallDepth.get(); }
+
+        @Override
+        public int getMaxOperandStackDepth() { return (int) maxStackDepth.get(); }
+
+        @Override
+        public long getRegisteredInterpreters() { return registered.sum(); }
+    }
+}
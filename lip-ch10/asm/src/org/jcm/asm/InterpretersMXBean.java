@@ -0,0 +1,20 @@
+package org.jcm.asm;
+
+/**
+ * Totals over every interpreter in the process, as of each one's last
+ *  completed time slice.
+ *
+ * @author jmarchesini
+ */
+public interface InterpretersMXBean {
+    long getInstructionsRetired();
+    long getCalls();
+    long getStructAllocations();
+    long getPrintBytes();
+    long getAssembleNanos();
+    long getExecNanos();
+    long getSlices();
+    int getMaxCallDepth();
+    int getMaxOperandStackDepth();
+    long getRegisteredInterpreters();
+}
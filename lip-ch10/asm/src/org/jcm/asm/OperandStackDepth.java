@@ -0,0 +1,297 @@
+package org.jcm.asm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifier-style bound on how far each function pushes the operand stack
+ *  above the depth it was entered at, from the instructions' declared
+ *  stack effects (BytecodeDefBase.Instruction.stack).  A call pops its
+ *  callee's args and pushes what the callee leaves at ret, which is
+ *  itself computed, so the analysis goes callees first and revisits a
+ *  function's callers whenever what it leaves grows, until none do.  A
+ *  spawn pops its function's args and pushes the task, and an ncall pops
+ *  its host function's args (see Program.hostFunctions) and pushes the
+ *  result.
+ *
+ * The interpreter only has to check for room when entering a function,
+ *  never on a push.  A function whose depth does not converge (a loop
+ *  that leaves values behind on every trip, or recursion that does) gets
+ *  UNKNOWN, as do its callers, and runs in the interpreter's instrumented
+ *  loop, which checks before every push.
+ *
+ * @author jmarchesini
+ */
+public class OperandStackDepth {
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Set maxStack on every function of p, whose code is dc.  Returns the
+     *  bound for code entered at address 0 without a main function, or
+     *  UNKNOWN; also UNKNOWN, touching nothing, if p's ISA has no operand
+     *  stack.
+     */
+    static int annotate(Program p, DecodedCode dc) {
+        BytecodeDefBase.Instruction[] instructions = p.bcDef.getInstructions();
+
+        for (BytecodeDefBase.Instruction instr : instructions) {
+            if (instr != null && instr.pops < 0)
+                return UNKNOWN;
+        }
+
+        Map<FunctionSymbol, Integer> index = new IdentityHashMap<>();
+
+        for (Object o : p.constPool) {
+            if (o instanceof FunctionSymbol && !index.containsKey(o))
+                index.put((FunctionSymbol) o, index.size());
+        }
+
+        FunctionSymbol[] functions = new FunctionSymbol[index.size()];
+        index.forEach((f, i) -> functions[i] = f);
+
+        int n = functions.length;
+        ControlFlowGraph[] cfgs = new ControlFlowGraph[n + 1];
+        int[] b = FunctionSymbol.boundaries(p.constPool, p.codeSize);
+
+        for (int i = 0; i < n; i++)
+            cfgs[i] = ControlFlowGraph.build(dc, functions[i], b);
+
+        if (p.mainFunction == null) {
+            cfgs[n] = ControlFlowGraph.build(dc, 0, b.length > 1 ? b[1] : p.codeSize);
+        }
+
+        int[][] callers = callers(cfgs, p.constPool, index, n);
+        int[] results = new int[n]; // what each function leaves at ret; only ever raised
+        int[] raises = new int[n];
+        int[] max = new int[n + 1];
+        int[] left = new int[n + 1];
+        int[] queue = new int[n + 1]; // a ring; each function is in it at most once
+        boolean[] queued = new boolean[n + 1];
+        int head = 0, size = 0;
+
+        // callees first, so an acyclic call graph settles in one pass
+        for (int i : calleesFirst(cfgs, p.constPool, index, n)) {
+            queue[size++] = i;
+            queued[i] = true;
+        }
+
+        while (size > 0) {
+            int i = queue[head];
+            head = (head + 1) % queue.length;
+            size--;
+            queued[i] = false;
+
+            if (cfgs[i] != null)
+                analyze(cfgs[i], p, index, results, max, left, i);
+
+            if (i == n || results[i] == UNKNOWN)
+                continue;
+
+            int r = max[i] == UNKNOWN ? UNKNOWN : left[i];
+
+            if (r == results[i])
+                continue;
+
+            // as in Bellman-Ford, calls that settle raise a result at most
+            //  n times; more and it grows with every trip round a cycle
+            results[i] = ++raises[i] > n ? UNKNOWN : r;
+
+            for (int c : callers[i]) {
+                if (!queued[c]) {
+                    queued[c] = true;
+                    queue[(head + size++) % queue.length] = c;
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++)
+            functions[i].maxStack = max[i];
+
+        return cfgs[n] != null ? max[n] : UNKNOWN;
+    }
+
+    /* Callee of the call at i of dc, by its index, or -1 */
+    private static int callee(DecodedCode dc, int i, Object[] constPool, Map<FunctionSymbol, Integer> index) {
+        Object o = constPool[dc.operand(i, 0)];
+        Integer callee = o instanceof FunctionSymbol ? index.get(o) : null;
+
+        return callee != null ? callee : -1;
+    }
+
+    /* The functions calling each function; the code at 0 without a main is n */
+    private static int[][] callers(
+        ControlFlowGraph[] cfgs,
+        Object[] constPool,
+        Map<FunctionSymbol, Integer> index,
+        int n
+    ) {
+        List<List<Integer>> lists = new ArrayList<>(n);
+
+        for (int i = 0; i < n; i++)
+            lists.add(new ArrayList<>());
+
+        for (int f = 0; f <= n; f++) {
+            if (cfgs[f] == null)
+                continue;
+
+            DecodedCode dc = cfgs[f].code;
+
+            for (BasicBlock bb : cfgs[f].blocks) {
+                for (int i = bb.first; i <= bb.last; i++) {
+                    int c = dc.instruction(i).flow == BytecodeDefBase.FLOW_CALL ? callee(dc, i, constPool, index) : -1;
+
+                    if (c >= 0)
+                        lists.get(c).add(f);
+                }
+            }
+        }
+
+        int[][] callers = new int[n][];
+
+        for (int i = 0; i < n; i++)
+            callers[i] = lists.get(i).stream().mapToInt(Integer::intValue).distinct().toArray();
+
+        return callers;
+    }
+
+    /* Every function, and n, each after its callees except round a cycle */
+    private static int[] calleesFirst(
+        ControlFlowGraph[] cfgs,
+        Object[] constPool,
+        Map<FunctionSymbol, Integer> index,
+        int n
+    ) {
+        int[] order = new int[n + 1];
+        int done = 0;
+        boolean[] seen = new boolean[n + 1];
+        int[] stack = new int[n + 1];   // depth-first, without recursion: call chains can be long
+        int[] next = new int[n + 1];    // next instruction of stack[k] to look at for calls
+
+        for (int root = n; root >= 0; root--) { // the entry code first, then the rest
+            if (seen[root])
+                continue;
+
+            int top = 0;
+            stack[top++] = root;
+            seen[root] = true;
+            next[root] = cfgs[root] != null && cfgs[root].blocks.length > 0 ? cfgs[root].blocks[0].first : 0;
+
+            while (top > 0) {
+                int f = stack[top - 1];
+                int c = -1;
+
+                if (cfgs[f] != null && cfgs[f].blocks.length > 0) {
+                    DecodedCode dc = cfgs[f].code;
+                    int end = cfgs[f].blocks[cfgs[f].blocks.length - 1].last;
+
+                    while (c < 0 && next[f] <= end) {
+                        int i = next[f]++;
+
+                        if (dc.instruction(i).flow == BytecodeDefBase.FLOW_CALL) {
+                            c = callee(dc, i, constPool, index);
+
+                            if (c >= 0 && seen[c])
+                                c = -1;
+                        }
+                    }
+                }
+
+                if (c >= 0) {
+                    seen[c] = true;
+                    next[c] = cfgs[c] != null && cfgs[c].blocks.length > 0 ? cfgs[c].blocks[0].first : 0;
+                    stack[top++] = c;
+                } else {
+                    order[done++] = f;
+                    top--;
+                }
+            }
+        }
+
+        return order;
+    }
+
+    /* Worklist over blocks, keeping the deepest entry depth seen per block */
+    private static void analyze(
+        ControlFlowGraph cfg,
+        Program p,
+        Map<FunctionSymbol, Integer> index,
+        int[] results,
+        int[] max,
+        int[] left,
+        int f
+    ) {
+        DecodedCode dc = cfg.code;
+        Object[] constPool = p.constPool;
+        BasicBlock[] blocks = cfg.blocks;
+        max[f] = 0;
+        left[f] = 0;
+
+        if (blocks.length == 0)
+            return;
+
+        int[] in = new int[blocks.length];
+        Arrays.fill(in, -1);
+        in[0] = 0;
+        int[] work = new int[blocks.length];
+        boolean[] queued = new boolean[blocks.length];
+        int top = 0;
+        work[top++] = 0;
+        queued[0] = true;
+        int steps = 4 * blocks.length + 16; // converges long before this unless it leaks
+
+        while (top > 0) {
+            if (--steps < 0) {
+                max[f] = UNKNOWN;
+                return;
+            }
+
+            BasicBlock bb = blocks[work[--top]];
+            queued[bb.index] = false;
+            int d = in[bb.index];
+
+            for (int i = bb.first; i <= bb.last; i++) {
+                BytecodeDefBase.Instruction instr = dc.instruction(i);
+                int pops = instr.pops;
+                int pushes = instr.pushes;
+
+                if (instr.flow == BytecodeDefBase.FLOW_CALL) {
+                    Object o = constPool[dc.operand(i, 0)];
+                    Integer callee = o instanceof FunctionSymbol ? index.get(o) : null;
+                    pops = o instanceof FunctionSymbol ? ((FunctionSymbol) o).numArgs : 0;
+                    pushes = callee != null ? results[callee] : 1;
+
+                    if (pushes == UNKNOWN) {
+                        max[f] = UNKNOWN; // what it leaves has no bound, so neither has this
+                        return;
+                    }
+                } else if (instr.name.equals("spawn")) {
+                    Object o = constPool[dc.operand(i, 0)];
+                    pops = o instanceof FunctionSymbol ? ((FunctionSymbol) o).numArgs : 0;
+                } else if (p.hostFunctions != null && instr.name.equals("ncall")) {
+                    HostFunction host = p.hostFunctions[dc.operand(i, 0)];
+                    pops = host != null ? host.numArgs : 0;
+                }
+
+                d = Math.max(0, d - pops) + pushes;
+                max[f] = Math.max(max[f], d);
+
+                if (instr.flow == BytecodeDefBase.FLOW_RETURN)
+                    left[f] = Math.max(left[f], d);
+            }
+
+            for (int s : bb.successors) {
+                if (d > in[s]) {
+                    in[s] = d;
+
+                    if (!queued[s]) {
+                        queued[s] = true;
+                        work[top++] = s;
+                    }
+                }
+            }
+        }
+    }
+}
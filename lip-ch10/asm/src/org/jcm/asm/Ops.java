@@ -0,0 +1,126 @@
+package org.jcm.asm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+
+/**
+ * Semantics of the operations both instruction sets have, on the boxed
+ *  values the operand stack and registers hold, for instruction handlers
+ *  of either interpreter.
+ *
+ * @author jmarchesini
+ */
+public final class Ops {
+    private static final VarHandle GLOBALS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private Ops() { }
+
+    public static Object iadd(Object a, Object b) { return (Integer) a + (Integer) b; }
+
+    public static Object isub(Object a, Object b) { return (Integer) a - (Integer) b; }
+
+    public static Object imul(Object a, Object b) { return (Integer) a * (Integer) b; }
+
+    public static Object ilt(Object a, Object b) { return (Integer) a < (Integer) b; }
+
+    public static Object ieq(Object a, Object b) { return ((Integer) a).intValue() == (Integer) b; }
+
+    public static Object fadd(Object a, Object b) { return (Float) a + (Float) b; }
+
+    public static Object fsub(Object a, Object b) { return (Float) a - (Float) b; }
+
+    public static Object fmul(Object a, Object b) { return (Float) a * (Float) b; }
+
+    public static Object flt(Object a, Object b) { return (Float) a < (Float) b; }
+
+    public static Object feq(Object a, Object b) { return ((Float) a).floatValue() == (Float) b; }
+
+    public static Object itof(Object a) { return (float) (Integer) a; }
+
+    /** Field of a struct, plain or typed. */
+    public static Object fload(Object struct, int field) {
+        if (struct instanceof TypedStruct)
+            return ((TypedStruct) struct).get(field);
+
+        return ((StructSpace) struct).fields[field];
+    }
+
+    public static void fstore(Object struct, int field, Object v) {
+        if (struct instanceof TypedStruct)
+            ((TypedStruct) struct).set(field, v);
+        else
+            ((StructSpace) struct).fields[field] = v;
+    }
+
+    /** A new int[] for kind 'i' or float[] for kind 'f'. */
+    public static Object newarray(int kind, Object length) {
+        switch (kind) {
+            case 'i': return new int[(Integer) length];
+            case 'f': return new float[(Integer) length];
+            default: throw new Error("invalid array element type: " + (char) kind);
+        }
+    }
+
+    /* Objects.checkIndex is the JIT's own range check intrinsic, so it folds
+     *  into the array access and is hoisted out of loops like one.  It also
+     *  throws IndexOutOfBoundsException rather than the
+     *  ArrayIndexOutOfBoundsException run() takes for operand stack overflow. */
+
+    public static Object iaload(Object array, Object index) {
+        int[] a = (int[]) array;
+
+        return a[Objects.checkIndex((Integer) index, a.length)];
+    }
+
+    public static void iastore(Object array, Object index, Object v) {
+        int[] a = (int[]) array;
+        a[Objects.checkIndex((Integer) index, a.length)] = (Integer) v;
+    }
+
+    public static Object faload(Object array, Object index) {
+        float[] a = (float[]) array;
+
+        return a[Objects.checkIndex((Integer) index, a.length)];
+    }
+
+    public static void fastore(Object array, Object index, Object v) {
+        float[] a = (float[]) array;
+        a[Objects.checkIndex((Integer) index, a.length)] = (Float) v;
+    }
+
+    public static Object arraylength(Object array) {
+        if (array instanceof int[])
+            return ((int[]) array).length;
+
+        return ((float[]) array).length;
+    }
+
+    /* gcas and gadd are volatile accesses: atomic, and totally ordered with
+     *  each other across every interpreter sharing the globals.  Globals
+     *  hold boxes, so compare values and then CAS the box that was read. */
+
+    /** If globals[i] equals expected, set it to v; true if it was set. */
+    public static boolean gcas(Object[] globals, int i, Object expected, Object v) {
+        while (true) {
+            Object current = GLOBALS.getVolatile(globals, i);
+
+            if (!Objects.equals(current, expected))
+                return false;
+
+            if (GLOBALS.compareAndSet(globals, i, current, v))
+                return true;
+        }
+    }
+
+    /** Add delta to the int or float globals[i]; returns the sum. */
+    public static Object gadd(Object[] globals, int i, Object delta) {
+        while (true) {
+            Object current = GLOBALS.getVolatile(globals, i);
+            Object sum = current instanceof Float ? fadd(current, delta) : iadd(current, delta);
+
+            if (GLOBALS.compareAndSet(globals, i, current, sum))
+                return sum;
+        }
+    }
+}
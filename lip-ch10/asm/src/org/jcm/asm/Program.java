@@ -0,0 +1,341 @@
+package org.jcm.asm;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.jcm.asm.gen.AssemblerLexer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An assembled program: code memory, constant pool, global data size and
+ *  entry point for one instruction set.  A Program is never modified after
+ *  it is built, so it can be shared by any number of interpreter instances
+ *  on any number of threads; each interpreter owns its execution state
+ *  (registers, stacks, globals).
+ *
+ * <pre>
+ *     Program p = Program.load(in, new BytecodeDefinition());
+ *     new StackInterpreter(p).exec();
+ * </pre>
+ *
+ * @author jmarchesini
+ */
+public final class Program {
+    final BytecodeDefBase bcDef;
+    final byte[] code;
+    final int codeSize;
+    final Object[] constPool;
+    final int dataSize;
+    final FunctionSymbol mainFunction;
+    final int syntaxErrors;
+    final long assembleNanos; // 0 if not assembled here, e.g. loaded from a cache
+    final int entryMaxStack;  // operand stack bound for code at 0 when there is no main
+    final StructLayout[] layouts; // tstruct descriptors by constant pool index
+    final HostFunction[] hostFunctions; // ncall targets by constant pool index
+
+    /**
+     * A program of code and constPool, which it copies, FunctionSymbols
+     *  included, so that the caller's arrays and symbols are never changed
+     *  by it nor change it.  mainFunction, or null, becomes the copy of
+     *  constPool's function of that name.
+     */
+    public Program(
+        BytecodeDefBase bcDef,
+        byte[] code,
+        int codeSize,
+        Object[] constPool,
+        int dataSize,
+        FunctionSymbol mainFunction,
+        int syntaxErrors
+    ) {
+        this(bcDef, Arrays.copyOf(code, codeSize), codeSize, copyFunctions(constPool), dataSize,
+            mainFunction, syntaxErrors, 0); // the constructor finds main's copy
+    }
+
+    /* Takes over code, constPool and their FunctionSymbols, as assemble() and redefine() can */
+    Program(
+        BytecodeDefBase bcDef,
+        byte[] code,
+        int codeSize,
+        Object[] constPool,
+        int dataSize,
+        FunctionSymbol mainFunction,
+        int syntaxErrors,
+        long assembleNanos
+    ) {
+        this.bcDef = bcDef;
+        this.code = code;
+        this.codeSize = codeSize;
+        this.constPool = constPool;
+        this.dataSize = dataSize;
+        this.mainFunction = pooled(mainFunction, constPool);
+        this.syntaxErrors = syntaxErrors;
+        this.assembleNanos = assembleNanos;
+        DecodedCode dc = syntaxErrors == 0 ? decode() : null; // once, for the analyses that follow
+        this.layouts = dc != null ? StructLayout.resolve(this, dc) : null;
+        this.hostFunctions = dc != null ? HostFunction.resolve(this, dc) : null; // annotate needs these
+        this.entryMaxStack = dc != null ? OperandStackDepth.annotate(this, dc) : OperandStackDepth.UNKNOWN;
+    }
+
+    /* constPool with a copy of each FunctionSymbol in place of it */
+    private static Object[] copyFunctions(Object[] constPool) {
+        Object[] pool = constPool.clone();
+        Map<FunctionSymbol, FunctionSymbol> copies = new IdentityHashMap<>();
+
+        for (int i = 0; i < pool.length; i++) {
+            if (pool[i] instanceof FunctionSymbol)
+                pool[i] = copies.computeIfAbsent((FunctionSymbol) pool[i], FunctionSymbol::new);
+        }
+
+        return pool;
+    }
+
+    /* f if constPool has it, else its first function of f's name (a copy of f), so annotate() bounds it */
+    private static FunctionSymbol pooled(FunctionSymbol f, Object[] constPool) {
+        if (f == null)
+            return null;
+
+        for (Object o : constPool) {
+            if (o == f)
+                return f;
+        }
+
+        for (Object o : constPool) {
+            if (f.equals(o))
+                return (FunctionSymbol) o;
+        }
+
+        return new FunctionSymbol(f);
+    }
+
+    /** Assemble the program read from input, closing it afterwards. */
+    public static Program load(InputStream input, BytecodeDefBase bcDef) throws IOException {
+        try (input) {
+            return assemble(CharStreams.fromStream(input), bcDef);
+        }
+    }
+
+    public static Program assemble(String source, BytecodeDefBase bcDef) {
+        return assemble(CharStreams.fromString(source), bcDef);
+    }
+
+    public static Program assemble(CharStream charStream, BytecodeDefBase bcDef) {
+        long start = System.nanoTime();
+        ProgramLoadEvent lex = new ProgramLoadEvent();
+        lex.begin();
+
+        AssemblerLexer lexer = new AssemblerLexer(charStream);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        tokens.fill();
+
+        lex.end();
+        ProgramLoadEvent asm = new ProgramLoadEvent();
+        asm.begin();
+
+        BytecodeAssembler assembler = new BytecodeAssembler(tokens, bcDef.getInstructions());
+
+        assembler.program();
+
+        asm.end();
+        long nanos = System.nanoTime() - start;
+        InterpreterMetrics.assembled(nanos);
+
+        if (lex.shouldCommit()) {
+            lex.phase = "lex";
+            lex.sourceSize = charStream.size();
+            lex.result = tokens.size() + " tokens";
+            lex.commit();
+        }
+
+        if (asm.shouldCommit()) {
+            asm.phase = "assemble";
+            asm.sourceSize = charStream.size();
+            asm.codeSize = assembler.getCodeMemorySize();
+            asm.result = assembler.getNumberOfSyntaxErrors() + " errors";
+            asm.commit();
+        }
+
+        return new Program(
+            bcDef,
+            assembler.getMachineCode(),
+            assembler.getCodeMemorySize(),
+            assembler.getConstantPool(),
+            assembler.getDataSize(),
+            assembler.getMainFunction(),
+            assembler.getNumberOfSyntaxErrors(),
+            nanos
+        );
+    }
+
+    /**
+     * The next version of this program: the functions defined in source
+     *  (one or more .defs) replace those of the same name, or are added.
+     *  Their code goes after this version's, which is kept as it is, so
+     *  frames already running an old function finish on its old code
+     *  while calls made after an interpreter installs the new version
+     *  (see InterpreterBase.redefine()) enter the new code.  Replaced
+     *  functions stay in the constant pool, after the others, so tools
+     *  still find the old code's function.
+     *
+     * A replacement must take the same number of args, and leave its
+     *  callers' stack bounds as they were; otherwise this throws
+     *  IllegalArgumentException.  .globals may not change either.
+     */
+    public Program redefine(String source) {
+        long start = System.nanoTime();
+        CharStream charStream = CharStreams.fromString(source);
+        CommonTokenStream tokens = new CommonTokenStream(new AssemblerLexer(charStream));
+        BytecodeAssembler assembler = new BytecodeAssembler(tokens, bcDef.getInstructions(), this);
+
+        assembler.program();
+
+        Object[] pool = assembler.getConstantPool();
+        int errors = assembler.getNumberOfSyntaxErrors();
+
+        if (errors > 0)
+            return new Program(bcDef, assembler.getMachineCode(), assembler.getCodeMemorySize(), pool,
+                dataSize, mainFunction, errors, System.nanoTime() - start);
+
+        if (assembler.getDataSize() != dataSize)
+            throw new IllegalArgumentException("a redefinition cannot change .globals");
+
+        // this version's functions go into the next as copies, which annotate
+        // may bound differently without touching what running frames use
+        Map<FunctionSymbol, FunctionSymbol> copies = new IdentityHashMap<>();
+        List<Object> retired = new ArrayList<>();
+
+        for (int i = 0; i < constPool.length; i++) {
+            if (!(constPool[i] instanceof FunctionSymbol))
+                continue;
+
+            FunctionSymbol old = (FunctionSymbol) constPool[i];
+            FunctionSymbol f = (FunctionSymbol) pool[i];
+            copies.put(old, new FunctionSymbol(old));
+
+            if (f == old)
+                continue;
+
+            if (f.numArgs != old.numArgs)
+                throw new IllegalArgumentException(f.name + " takes " + old.numArgs + " args, not " + f.numArgs);
+
+            retired.add(copies.get(old));
+        }
+
+        pool = Arrays.copyOf(pool, pool.length + retired.size());
+
+        for (int i = 0; i < pool.length - retired.size(); i++) {
+            if (copies.containsKey(pool[i]))
+                pool[i] = copies.get(pool[i]);
+        }
+
+        for (int i = 0; i < retired.size(); i++)
+            pool[pool.length - retired.size() + i] = retired.get(i);
+
+        FunctionSymbol main = assembler.getMainFunction();
+        Program next = new Program(bcDef, assembler.getMachineCode(), assembler.getCodeMemorySize(), pool,
+            dataSize, copies.getOrDefault(main, main), 0, System.nanoTime() - start);
+
+        // frames running this version reserved its bounds; the next must keep them
+        for (Map.Entry<FunctionSymbol, FunctionSymbol> e : copies.entrySet()) {
+            if (e.getValue().maxStack != e.getKey().maxStack)
+                throw new IllegalArgumentException("redefinition changes the operand stack use of " +
+                    e.getKey().name);
+        }
+
+        return next;
+    }
+
+    /** True if this is other, or a redefinition of it: its code starts with other's. */
+    public boolean extendsProgram(Program other) {
+        return bcDef.getClass() == other.bcDef.getClass() && dataSize == other.dataSize &&
+            codeSize >= other.codeSize && Arrays.equals(code, 0, other.codeSize, other.code, 0, other.codeSize);
+    }
+
+    public BytecodeDefBase getBytecodeDefinition() { return bcDef; }
+
+    public int getCodeSize() { return codeSize; }
+
+    public int getDataSize() { return dataSize; }
+
+    public FunctionSymbol getMainFunction() { return mainFunction; }
+
+    public boolean hasErrors() { return syntaxErrors > 0; }
+
+    public long getAssembleNanos() { return assembleNanos; }
+
+    /** A copy of code memory; interpreters share the original. */
+    public byte[] getCode() {
+        byte[] copy = new byte[codeSize];
+        System.arraycopy(code, 0, copy, 0, codeSize);
+
+        return copy;
+    }
+
+    public Object[] getConstantPool() { return constPool.clone(); }
+
+    /** A new disassembler; they buffer output so are not shared. */
+    public DisAssembler newDisAssembler() {
+        return new DisAssembler(code, codeSize, constPool, bcDef);
+    }
+
+    /**
+     * Checksum of code memory, the constant pool and the number of
+     *  globals; identifies the program a snapshot belongs to.  Every pool
+     *  entry counts, with its kind and length, so programs whose code is
+     *  the same but whose strings, floats or functions differ do not match.
+     */
+    public long fingerprint() {
+        CRC32 crc = new CRC32();
+        crc.update(code, 0, codeSize);
+        update(crc, dataSize);
+        update(crc, constPool.length);
+
+        for (Object o : constPool) {
+            if (o instanceof FunctionSymbol) {
+                FunctionSymbol f = (FunctionSymbol) o;
+                crc.update('F');
+                update(crc, f.name);
+                update(crc, f.numArgs);
+                update(crc, f.numLocals);
+                update(crc, f.address);
+            } else if (o instanceof Float) {
+                crc.update('f');
+                update(crc, Float.floatToIntBits((Float) o));
+            } else if (o instanceof String) {
+                crc.update('s');
+                update(crc, (String) o);
+            } else {
+                crc.update('?');
+                update(crc, String.valueOf(o));
+            }
+        }
+
+        return crc.getValue() ^ ((long) codeSize << 32);
+    }
+
+    private static void update(CRC32 crc, int v) {
+        crc.update(v >>> 24);
+        crc.update(v >>> 16);
+        crc.update(v >>> 8);
+        crc.update(v);
+    }
+
+    private static void update(CRC32 crc, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        update(crc, b.length);
+        crc.update(b);
+    }
+
+    public DecodedCode decode() {
+        return new InstructionDecoder(bcDef).decode(code, codeSize);
+    }
+}
@@ -0,0 +1,448 @@
+package org.jcm.asm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Cache of assembled programs keyed by a SHA-256 of the source text and
+ *  the instruction set it was assembled for, so a hit skips lexing,
+ *  parsing and assembly entirely.  Two levels: an in-process LRU map
+ *  bounded by estimated bytes, and an optional directory of serialized
+ *  programs bounded by total file size, evicting least recently used
+ *  files (by modification time, which a hit refreshes).  The disk level
+ *  is best effort: if an entry cannot be written, load() still returns
+ *  the assembled program.
+ *
+ * @author jmarchesini
+ */
+public class ProgramCache {
+    public static final long DEFAULT_MEMORY_LIMIT = 64L * 1024 * 1024;
+    public static final long DEFAULT_DISK_LIMIT = 512L * 1024 * 1024;
+    static final int MAGIC = 0x4A434D50; // "JCMP"
+    static final int VERSION = 2; // 2: strings are length and UTF-8 bytes, not writeUTF
+    static final String SUFFIX = ".prog";
+
+    /* Constant pool tags */
+    static final byte FLOAT = 1;
+    static final byte STRING = 2;
+    static final byte FUNCTION = 3;
+
+    private final long memoryLimit;
+    private final Path directory; // null for memory only
+    private final long diskLimit;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong diskErrors = new AtomicLong();
+    private final AtomicLong diskBytes = new AtomicLong(-1); // -1 until first scanned
+
+    public ProgramCache() { this(DEFAULT_MEMORY_LIMIT, null, 0); }
+
+    public ProgramCache(long memoryLimit, Path directory, long diskLimit) {
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+        this.diskLimit = diskLimit;
+    }
+
+    /** Assembled program for source, from the cache if possible. */
+    public Program load(String source, BytecodeDefBase bcDef) throws IOException {
+        ProgramLoadEvent event = new ProgramLoadEvent();
+        event.begin();
+
+        String key = key(source, bcDef);
+        Program program = getFromMemory(key);
+
+        if (program != null) {
+            hits.incrementAndGet();
+            commit(event, source, program, "hit");
+            return program;
+        }
+
+        program = getFromDisk(key, bcDef);
+
+        if (program != null) {
+            diskHits.incrementAndGet();
+            putInMemory(key, program);
+            commit(event, source, program, "disk hit");
+            return program;
+        }
+
+        misses.incrementAndGet();
+        commit(event, source, null, "miss");
+        program = Program.assemble(source, bcDef);
+
+        if (!program.hasErrors()) {
+            putInMemory(key, program);
+
+            try {
+                putOnDisk(key, program);
+            } catch (IOException e) {
+                diskErrors.incrementAndGet(); // next time it is assembled again
+            }
+        }
+
+        return program;
+    }
+
+    private static void commit(ProgramLoadEvent event, String source, Program program, String result) {
+        event.end();
+
+        if (event.shouldCommit()) {
+            event.phase = "cache";
+            event.sourceSize = source.length();
+            event.codeSize = program != null ? program.codeSize : 0;
+            event.result = result;
+            event.commit();
+        }
+    }
+
+    public Program load(Path file, BytecodeDefBase bcDef) throws IOException {
+        return load(Files.readString(file), bcDef);
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getDiskHits() { return diskHits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    /** Entries that could not be written to, or removed from, the directory. */
+    public long getDiskErrors() { return diskErrors.get(); }
+
+    public synchronized long getMemoryBytes() { return memoryBytes; }
+
+    public synchronized int getMemoryEntries() { return memory.size(); }
+
+    public long getDiskBytes() throws IOException {
+        if (directory != null && diskBytes.get() < 0)
+            diskBytes.set(scanDisk(Long.MAX_VALUE));
+
+        return Math.max(0, diskBytes.get());
+    }
+
+    public synchronized void clearMemory() {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgramCache{" +
+            "hits=" + hits +
+            ", diskHits=" + diskHits +
+            ", misses=" + misses +
+            ", diskErrors=" + diskErrors +
+            ", memoryBytes=" + getMemoryBytes() +
+            ", diskBytes=" + Math.max(0, diskBytes.get()) +
+            '}';
+    }
+
+    /** Hex SHA-256 of the instruction set description followed by the source. */
+    public static String key(String source, BytecodeDefBase bcDef) {
+        MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder isa = new StringBuilder(bcDef.getClass().getName());
+
+        for (BytecodeDefBase.Instruction instr : bcDef.getInstructions()) {
+            if (instr == null)
+                continue;
+
+            isa.append(';').append(instr.name);
+
+            for (int i = 0; i < instr.n; i++)
+                isa.append(',').append(instr.type[i]);
+        }
+
+        md.update(isa.toString().getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(source.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder hex = new StringBuilder(64);
+
+        for (byte b : md.digest())
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+        return hex.toString();
+    }
+
+    /* Memory level */
+
+    private synchronized Program getFromMemory(String key) {
+        Entry e = memory.get(key);
+
+        return e != null ? e.program : null;
+    }
+
+    private synchronized void putInMemory(String key, Program program) {
+        Entry e = new Entry(program, estimateSize(program));
+        Entry old = memory.put(key, e);
+
+        if (old != null)
+            memoryBytes -= old.bytes;
+
+        memoryBytes += e.bytes;
+        Iterator<Entry> lru = memory.values().iterator();
+
+        while (memoryBytes > memoryLimit && lru.hasNext()) {
+            Entry victim = lru.next();
+
+            if (victim == e)
+                break; // never evict what we just added
+
+            memoryBytes -= victim.bytes;
+            lru.remove();
+        }
+    }
+
+    static long estimateSize(Program p) {
+        long size = 64 + p.code.length + 16L * p.constPool.length;
+
+        for (Object o : p.constPool) {
+            if (o instanceof String)
+                size += 40 + 2L * ((String) o).length();
+            else if (o instanceof FunctionSymbol)
+                size += 32 + 2L * ((FunctionSymbol) o).name.length();
+        }
+
+        return size;
+    }
+
+    /* Disk level */
+
+    private Program getFromDisk(String key, BytecodeDefBase bcDef) {
+        if (directory == null)
+            return null;
+
+        Path file = directory.resolve(key + SUFFIX);
+
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(Files.newInputStream(file))))
+        {
+            Program program = read(in, bcDef);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+
+            return program;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(file); // corrupt or stale format; reassemble
+            } catch (IOException notDeleted) {
+                diskErrors.incrementAndGet();
+            }
+
+            return null;
+        }
+    }
+
+    private void putOnDisk(String key, Program program) throws IOException {
+        if (directory == null)
+            return;
+
+        Files.createDirectories(directory);
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        long size;
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(tmp))))
+            {
+                write(program, out);
+            }
+
+            size = Files.size(tmp);
+
+            // readers never see a partly written entry
+            Files.move(tmp, directory.resolve(key + SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+
+            throw e;
+        }
+
+        addDiskBytes(size);
+    }
+
+    /*
+     * Keep the running total of diskBytes.  The directory is listed only
+     *  the first time and when the total goes over the limit, to evict;
+     *  that also corrects it for files replaced, removed as corrupt, or
+     *  changed by other processes.
+     */
+    private synchronized void addDiskBytes(long delta) throws IOException {
+        long total = diskBytes.get();
+
+        if (total < 0 || total + delta > diskLimit)
+            diskBytes.set(scanDisk(diskLimit));
+        else
+            diskBytes.set(total + delta);
+    }
+
+    /* Total size of cached files, deleting the oldest while over limit */
+    private synchronized long scanDisk(long limit) throws IOException {
+        List<Path> files = new ArrayList<>();
+
+        try (Stream<Path> s = Files.list(directory)) {
+            s.filter(f -> f.toString().endsWith(SUFFIX)).forEach(files::add);
+        }
+
+        long total = 0;
+        Map<Path, long[]> attrs = new LinkedHashMap<>();
+
+        for (Path f : files) {
+            try {
+                long size = Files.size(f);
+                attrs.put(f, new long[] { size, Files.getLastModifiedTime(f).toMillis() });
+                total += size;
+            } catch (NoSuchFileException e) {
+                // evicted concurrently
+            }
+        }
+
+        if (total > limit) {
+            files = new ArrayList<>(attrs.keySet());
+            files.sort(Comparator.comparingLong(f -> attrs.get(f)[1]));
+
+            for (Iterator<Path> it = files.iterator(); total > limit && it.hasNext(); ) {
+                Path f = it.next();
+                Files.deleteIfExists(f);
+                total -= attrs.get(f)[0];
+            }
+        }
+
+        return total;
+    }
+
+    static void write(Program p, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(p.codeSize);
+        out.write(p.code, 0, p.codeSize);
+        out.writeInt(p.dataSize);
+        out.writeInt(p.constPool.length);
+
+        int main = -1;
+
+        for (int i = 0; i < p.constPool.length; i++) {
+            Object o = p.constPool[i];
+
+            if (o == p.mainFunction)
+                main = i;
+
+            if (o instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) o);
+            } else if (o instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) o, out);
+            } else if (o instanceof FunctionSymbol) {
+                FunctionSymbol f = (FunctionSymbol) o;
+                out.writeByte(FUNCTION);
+                writeString(f.name, out);
+                out.writeInt(f.numArgs);
+                out.writeInt(f.numLocals);
+                out.writeInt(f.address);
+            } else {
+                throw new IOException("cannot cache constant " + o.getClass().getName());
+            }
+        }
+
+        out.writeInt(main);
+    }
+
+    /* Length and UTF-8 bytes; writeUTF stops at 64KB */
+    static void writeString(String s, DataOutputStream out) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0)
+            throw new IOException("bad string length " + length);
+
+        byte[] b = new byte[length];
+        in.readFully(b);
+
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    static Program read(DataInputStream in, BytecodeDefBase bcDef) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("not a cached program");
+
+        int codeSize = in.readInt();
+        byte[] code = new byte[codeSize];
+        in.readFully(code);
+        int dataSize = in.readInt();
+        Object[] constPool = new Object[in.readInt()];
+
+        for (int i = 0; i < constPool.length; i++) {
+            byte tag = in.readByte();
+
+            switch (tag) {
+                case FLOAT:
+                    constPool[i] = in.readFloat();
+                    break;
+                case STRING:
+                    constPool[i] = readString(in);
+                    break;
+                case FUNCTION:
+                    constPool[i] = new FunctionSymbol(readString(in), in.readInt(), in.readInt(), in.readInt());
+                    break;
+                default:
+                    throw new IOException("bad constant tag " + tag);
+            }
+        }
+
+        int main = in.readInt();
+        FunctionSymbol mainFunction = main >= 0 ? (FunctionSymbol) constPool[main] : null;
+
+        return new Program(bcDef, code, codeSize, constPool, dataSize, mainFunction, 0, 0); // all read fresh
+    }
+
+    static class Entry {
+        final Program program;
+        final long bytes;
+
+        Entry(Program program, long bytes) {
+            this.program = program;
+            this.bytes = bytes;
+        }
+    }
+}
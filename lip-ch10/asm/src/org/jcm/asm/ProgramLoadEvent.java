@@ -0,0 +1,34 @@
+package org.jcm.asm;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One phase of turning source into a Program: "lex", "assemble", or a
+ *  "cache" lookup.
+ *
+ * @author jmarchesini
+ */
+@Name("org.jcm.ProgramLoad")
+@Label("Program Load")
+@Category({ "Guest VM", "Loading" })
+@Description("A phase of loading a guest program")
+public class ProgramLoadEvent extends Event {
+    @Label("Phase")
+    public String phase;
+
+    @Label("Source Size")
+    @DataAmount
+    public long sourceSize;
+
+    @Label("Code Size")
+    @DataAmount
+    public long codeSize;
+
+    @Label("Result")
+    public String result;
+}
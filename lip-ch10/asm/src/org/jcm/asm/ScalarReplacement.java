@@ -0,0 +1,400 @@
+package org.jcm.asm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load-time escape analysis that removes struct allocations whose struct
+ *  never leaves the creating frame, replacing its fields with fresh locals
+ *  (stack VM) or registers (register VM).  A struct qualifies when it is
+ *  held in one local or register that is assigned exactly once, by the
+ *  allocation, whose only uses are as the struct of fload and fstore, and
+ *  whose allocation dominates all of those uses.  Anything else (storing
+ *  it to a global or another struct, passing it, returning it, printing
+ *  it, moving it to another register) counts as an escape.
+ *
+ * <pre>
+ *     struct 2; store 3        null; store 5; null; store 6
+ *     load 3; fload 1     =>   load 6
+ *     load 3; fstore 0         store 5
+ *
+ *     struct r4, 2             null r7; null r8
+ *     fload r2, r4, 1     =>   move r8, r2
+ *     fstore r2, r4, 0         move r2, r7
+ * </pre>
+ *
+ * The allocation becomes code that nulls the new fields, so a struct
+ *  allocated in a loop still starts out empty on every trip.  The result
+ *  is a new Program; code is relocated because the rewritten sequences
+ *  differ in length from the originals.
+ *
+ * @author jmarchesini
+ */
+public class ScalarReplacement {
+    final Program program;
+    final DecodedCode dc;
+    final Map<String, Integer> opcodes = new HashMap<>();
+    final int[][][] replacement;  // per instruction: null keeps it, else {opcode, operands...}*
+    final Map<FunctionSymbol, Integer> added = new IdentityHashMap<>();
+    final List<String> sites = new ArrayList<>();
+
+    private ScalarReplacement(Program program) {
+        this.program = program;
+        this.dc = program.decode();
+        this.replacement = new int[dc.size()][][];
+
+        BytecodeDefBase.Instruction[] instructions = program.bcDef.getInstructions();
+
+        for (int i = 0; i < instructions.length; i++) {
+            if (instructions[i] != null)
+                opcodes.put(instructions[i].name, i);
+        }
+    }
+
+    /** program with its non-escaping structs scalar-replaced, and a report. */
+    public static Result apply(Program program) {
+        if (program.hasErrors())
+            return new Result(program, new ArrayList<>());
+
+        ScalarReplacement sr = new ScalarReplacement(program);
+        BytecodeDefBase.Instruction struct = sr.instruction("struct");
+
+        if (struct == null)
+            return new Result(program, sr.sites);
+
+        boolean stackMachine = struct.pops >= 0;
+
+        if (!stackMachine && struct.roles == null)
+            return new Result(program, sr.sites); // no register roles to analyze
+
+        int[] bounds = FunctionSymbol.boundaries(program.constPool, program.codeSize);
+
+        for (Object o : program.constPool) {
+            if (!(o instanceof FunctionSymbol) || sr.added.containsKey(o))
+                continue;
+
+            FunctionSymbol f = (FunctionSymbol) o;
+            sr.added.put(f, 0);
+            ControlFlowGraph cfg = ControlFlowGraph.build(sr.dc, f, bounds);
+
+            if (stackMachine)
+                sr.stackFunction(f, cfg);
+            else
+                sr.registerFunction(f, cfg);
+        }
+
+        if (sr.sites.isEmpty())
+            return new Result(program, sr.sites);
+
+        return new Result(sr.rewrite(), sr.sites);
+    }
+
+    private BytecodeDefBase.Instruction instruction(String name) {
+        Integer op = opcodes.get(name);
+
+        return op != null ? program.bcDef.getInstructions()[op] : null;
+    }
+
+    private int opcode(String name) {
+        Integer op = opcodes.get(name);
+
+        return op != null ? op : -1;
+    }
+
+    /* Stack VM: struct n; store L ... load L; fload k | load L; fstore k */
+    private void stackFunction(FunctionSymbol f, ControlFlowGraph cfg) {
+        int STRUCT = opcode("struct"), STORE = opcode("store"), LOAD = opcode("load");
+        int FLOAD = opcode("fload"), FSTORE = opcode("fstore"), NULL = opcode("null");
+        int numSlots = f.numArgs + f.numLocals;
+        int[] site = new int[numSlots];
+        boolean[] escapes = new boolean[numSlots];
+        List<List<Integer>> uses = new ArrayList<>();
+        Arrays.fill(site, -1);
+
+        for (int l = 0; l < numSlots; l++) {
+            uses.add(new ArrayList<>());
+            escapes[l] = l < f.numArgs; // args come from the caller
+        }
+
+        for (BasicBlock bb : cfg.getBlocks()) {
+            for (int i = bb.first; i <= bb.last; i++) {
+                int op = dc.opcode(i);
+
+                if (op != STORE && op != LOAD)
+                    continue;
+
+                int l = dc.operand(i, 0);
+
+                if (l < 0 || l >= numSlots)
+                    continue;
+
+                if (op == STORE) {
+                    if (i > bb.first && dc.opcode(i - 1) == STRUCT && site[l] < 0)
+                        site[l] = i - 1;
+                    else
+                        escapes[l] = true; // assigned something else, or twice
+                } else if (i < bb.last && (dc.opcode(i + 1) == FLOAD || dc.opcode(i + 1) == FSTORE)) {
+                    uses.get(l).add(i);
+                } else {
+                    escapes[l] = true;
+                }
+            }
+        }
+
+        for (int l = 0; l < numSlots; l++) {
+            if (site[l] < 0 || escapes[l] || !dominatesAll(cfg, site[l], uses.get(l), 1, dc.operand(site[l], 0)))
+                continue;
+
+            int n = dc.operand(site[l], 0);
+            int base = numSlots + added.get(f);
+            int[][] init = new int[2 * n][];
+
+            for (int j = 0; j < n; j++) {
+                init[2 * j] = new int[] { NULL };
+                init[2 * j + 1] = new int[] { STORE, base + j };
+            }
+
+            replacement[site[l]] = init;
+            replacement[site[l] + 1] = new int[0][];
+
+            for (int use : uses.get(l)) {
+                int k = dc.operand(use + 1, 0);
+                int op = dc.opcode(use + 1) == FLOAD ? LOAD : STORE;
+                replacement[use] = new int[][] { { op, base + k } };
+                replacement[use + 1] = new int[0][];
+            }
+
+            added.put(f, added.get(f) + n);
+            sites.add(f.name + ": struct " + n + " at " + dc.offset(site[l]) + " in local " + l +
+                " -> locals " + base + ".." + (base + n - 1));
+        }
+    }
+
+    /* Register VM: struct rX, n ... fload ri, rX, k | fstore ri, rX, k */
+    private void registerFunction(FunctionSymbol f, ControlFlowGraph cfg) {
+        int STRUCT = opcode("struct"), FLOAD = opcode("fload"), FSTORE = opcode("fstore");
+        int MOVE = opcode("move"), NULL = opcode("null"), NCALL = opcode("ncall");
+        int SPAWN = opcode("spawn");
+        int numRegs = f.numArgs + f.numLocals + 1;
+        int[] site = new int[numRegs];
+        int[] defs = new int[numRegs];
+        boolean[] escapes = new boolean[numRegs];
+        List<List<Integer>> uses = new ArrayList<>();
+        Arrays.fill(site, -1);
+
+        for (int r = 0; r < numRegs; r++) {
+            uses.add(new ArrayList<>());
+            escapes[r] = r <= f.numArgs; // r0 is the result, then the args
+        }
+
+        for (BasicBlock bb : cfg.getBlocks()) {
+            for (int i = bb.first; i <= bb.last; i++) {
+                BytecodeDefBase.Instruction instr = dc.instruction(i);
+
+                if (instr.flow == BytecodeDefBase.FLOW_CALL || dc.opcode(i) == NCALL || dc.opcode(i) == SPAWN) {
+                    Object callee = program.constPool[dc.operand(i, 0)];
+                    int base = dc.operand(i, 1);
+                    int n = callee instanceof FunctionSymbol ? ((FunctionSymbol) callee).numArgs : 0;
+
+                    if (dc.opcode(i) == NCALL)
+                        n = program.hostFunctions[dc.operand(i, 0)].numArgs;
+
+                    for (int r = Math.max(base, 0); r < Math.min(base + n, numRegs); r++)
+                        escapes[r] = true;
+
+                    continue;
+                }
+
+                if (instr.roles == null)
+                    return; // cannot tell reads from writes
+
+                if (dc.opcode(i) == STRUCT && inRange(dc.operand(i, 0), numRegs))
+                    site[dc.operand(i, 0)] = i;
+
+                for (int k = 0; k < instr.roles.length(); k++) {
+                    int r = dc.operand(i, k);
+
+                    if (instr.roles.charAt(k) == '-' || !inRange(r, numRegs))
+                        continue;
+
+                    if (instr.roles.charAt(k) == 'd')
+                        defs[r]++;
+                    else if (k == 1 && (dc.opcode(i) == FLOAD || dc.opcode(i) == FSTORE))
+                        uses.get(r).add(i);
+                    else
+                        escapes[r] = true;
+                }
+            }
+        }
+
+        for (int r = 0; r < numRegs; r++) {
+            if (site[r] < 0 || defs[r] != 1 || escapes[r] ||
+                !dominatesAll(cfg, site[r], uses.get(r), 0, dc.operand(site[r], 1)))
+            {
+                continue;
+            }
+
+            int n = dc.operand(site[r], 1);
+            int base = numRegs + added.get(f);
+            int[][] init = new int[n][];
+
+            for (int j = 0; j < n; j++)
+                init[j] = new int[] { NULL, base + j };
+
+            replacement[site[r]] = init;
+
+            for (int use : uses.get(r)) {
+                int value = dc.operand(use, 0);
+                int k = dc.operand(use, 2);
+
+                if (dc.opcode(use) == FLOAD)
+                    replacement[use] = new int[][] { { MOVE, base + k, value } };
+                else
+                    replacement[use] = new int[][] { { MOVE, value, base + k } };
+            }
+
+            added.put(f, added.get(f) + n);
+            sites.add(f.name + ": struct " + n + " at " + dc.offset(site[r]) + " in r" + r +
+                " -> r" + base + "..r" + (base + n - 1));
+        }
+    }
+
+    private static boolean inRange(int r, int numRegs) { return r >= 0 && r < numRegs; }
+
+    /*
+     * The allocation at site comes before every use on every path, and each
+     *  use's field (at offset fieldDelta instructions from the use, last
+     *  operand) is inside the struct.
+     */
+    private boolean dominatesAll(ControlFlowGraph cfg, int site, List<Integer> uses, int fieldDelta, int numFields) {
+        BasicBlock b = cfg.blockOfInstruction(site);
+
+        for (int use : uses) {
+            int f = use + fieldDelta;
+            int field = dc.operand(f, dc.operandCount(f) - 1);
+
+            if (field < 0 || field >= numFields)
+                return false;
+
+            BasicBlock u = cfg.blockOfInstruction(use);
+
+            if (u == b ? use < site : !cfg.dominates(b.index, u.index))
+                return false;
+        }
+
+        return true;
+    }
+
+    private Program rewrite() {
+        int size = dc.size();
+        byte[] code = new byte[program.codeSize * 2 + 16];
+        int n = 0;
+        int[] newOffset = new int[size + 1];
+        int[] patchAt = new int[size];
+        Arrays.fill(patchAt, -1);
+
+        for (int i = 0; i < size; i++) {
+            newOffset[i] = n;
+            int[][] rep = replacement[i];
+
+            if (rep == null) {
+                int len = dc.nextOffset(i) - dc.offset(i);
+                code = ensure(code, n + len);
+                System.arraycopy(program.code, dc.offset(i), code, n, len);
+
+                if (dc.branchTarget(i) >= 0)
+                    patchAt[i] = n + len - 4; // the target is the last operand
+
+                n += len;
+                continue;
+            }
+
+            for (int[] instr : rep) {
+                code = ensure(code, n + 4 * instr.length);
+                code[n++] = (byte) instr[0];
+
+                for (int k = 1; k < instr.length; k++) {
+                    BytecodeAssembler.writeInt(code, n, instr[k]);
+                    n += 4;
+                }
+            }
+        }
+
+        newOffset[size] = n;
+
+        for (int i = 0; i < size; i++) {
+            if (patchAt[i] >= 0)
+                BytecodeAssembler.writeInt(code, patchAt[i], relocate(dc.branchTarget(i), newOffset));
+        }
+
+        Object[] constPool = program.constPool.clone();
+        Map<FunctionSymbol, FunctionSymbol> moved = new IdentityHashMap<>();
+
+        for (int i = 0; i < constPool.length; i++) {
+            if (constPool[i] instanceof FunctionSymbol) {
+                FunctionSymbol f = (FunctionSymbol) constPool[i];
+                FunctionSymbol g = moved.get(f);
+
+                if (g == null) {
+                    g = new FunctionSymbol(f.name, f.numArgs, f.numLocals + added.getOrDefault(f, 0),
+                        relocate(f.address, newOffset));
+                    moved.put(f, g);
+                }
+
+                constPool[i] = g;
+            }
+        }
+
+        FunctionSymbol main = program.mainFunction != null ? moved.get(program.mainFunction) : null;
+
+        return new Program(program.bcDef, Arrays.copyOf(code, n), n, constPool, program.dataSize, main, 0, 0);
+    }
+
+    private int relocate(int addr, int[] newOffset) {
+        int i = dc.indexOf(addr);
+
+        if (i >= 0)
+            return newOffset[i];
+
+        return addr >= dc.getEnd() ? newOffset[dc.size()] + addr - dc.getEnd() : addr;
+    }
+
+    private static byte[] ensure(byte[] code, int size) {
+        return size <= code.length ? code : Arrays.copyOf(code, Math.max(size, code.length * 2));
+    }
+
+    /** The rewritten program and what was eliminated. */
+    public static class Result {
+        final Program program;
+        final List<String> sites;
+
+        Result(Program program, List<String> sites) {
+            this.program = program;
+            this.sites = sites;
+        }
+
+        public Program getProgram() { return program; }
+
+        /** Number of allocation sites removed. */
+        public int getEliminated() { return sites.size(); }
+
+        /** One line per removed site: function, struct size, address, new slots. */
+        public List<String> getSites() { return sites; }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            buf.append("Scalar replacement: ").append(sites.size()).append(" allocation site");
+            buf.append(sites.size() == 1 ? "" : "s").append(" eliminated\n");
+
+            for (String s : sites)
+                buf.append("  ").append(s).append('\n');
+
+            return buf.toString();
+        }
+    }
+}
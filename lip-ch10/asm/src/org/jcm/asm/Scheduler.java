@@ -0,0 +1,154 @@
+package org.jcm.asm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multiplexes many guest programs onto a small fixed pool of carrier
+ *  threads.  Each carrier takes the interpreter at the head of a shared
+ *  FIFO run queue, runs it for one time slice (an instruction budget, see
+ *  InterpreterBase.run) and puts it back at the tail if it yielded, so
+ *  every runnable guest gets the same share of the carriers no matter how
+ *  long it loops.
+ *
+ * <pre>
+ *     try (Scheduler s = new Scheduler(4, Scheduler.DEFAULT_TIME_SLICE)) {
+ *         Scheduler.Job job = s.submit(new StackInterpreter(program));
+ *         job.getFuture().join();
+ *     }
+ * </pre>
+ *
+ * @author jmarchesini
+ */
+public class Scheduler implements AutoCloseable {
+    public static final int DEFAULT_TIME_SLICE = 10_000; // ticks
+
+    private final int timeSlice;
+    private final Thread[] carriers;
+    private final LinkedBlockingQueue<Job> runQueue = new LinkedBlockingQueue<>();
+    private volatile boolean closed;
+
+    public Scheduler(int numCarriers, int timeSlice) {
+        this.timeSlice = timeSlice;
+        this.carriers = new Thread[numCarriers];
+
+        for (int i = 0; i < numCarriers; i++) {
+            carriers[i] = new Thread(this::carrierLoop, "guest-carrier-" + i);
+            carriers[i].setDaemon(true);
+            carriers[i].start();
+        }
+    }
+
+    public Scheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_TIME_SLICE);
+    }
+
+    /** Queue interp to run from wherever it is (new or yielded) until halt. */
+    public Job submit(InterpreterBase interp) {
+        if (closed)
+            throw new IllegalStateException("scheduler is closed");
+
+        Job job = new Job(interp);
+        runQueue.add(job);
+
+        return job;
+    }
+
+    public int getQueueLength() { return runQueue.size(); }
+
+    /**
+     * Stop the carriers once they finish their current slices.  If the
+     *  calling thread is interrupted while waiting for them, it stops
+     *  waiting (they are daemons) with its interrupt status set again.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        for (Thread carrier : carriers)
+            carrier.interrupt();
+
+        try {
+            for (Thread carrier : carriers)
+                carrier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Job job;
+
+        while ((job = runQueue.poll()) != null)
+            job.future.cancel(false);
+    }
+
+    private void carrierLoop() {
+        while (!closed) {
+            Job job;
+
+            try {
+                job = runQueue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue; // closed is set
+            }
+
+            if (job == null)
+                continue;
+
+            long start = System.nanoTime();
+
+            try {
+                int status = job.interp.run(timeSlice);
+                job.slices++;
+                job.runNanos += System.nanoTime() - start;
+
+                if (status == InterpreterBase.YIELDED) {
+                    runQueue.add(job);
+                } else {
+                    job.latencyNanos = System.nanoTime() - job.submitted;
+                    job.future.complete(job);
+                }
+            } catch (Throwable t) {
+                job.latencyNanos = System.nanoTime() - job.submitted;
+                job.future.completeExceptionally(t);
+            }
+        }
+    }
+
+    /** A submitted guest program and its accounting. */
+    public static class Job {
+        final InterpreterBase interp;
+        final long submitted = System.nanoTime();
+        final CompletableFuture<Job> future = new CompletableFuture<>();
+        int slices;
+        long runNanos;
+        long latencyNanos;
+
+        Job(InterpreterBase interp) { this.interp = interp; }
+
+        public InterpreterBase getInterpreter() { return interp; }
+
+        /** Completes with this job at halt, or exceptionally on a guest fault. */
+        public CompletableFuture<Job> getFuture() { return future; }
+
+        public long getInstructionsRetired() { return interp.getInstructionsRetired(); }
+
+        public int getSlices() { return slices; }
+
+        /** Time spent executing on a carrier. */
+        public long getRunNanos() { return runNanos; }
+
+        /** Time from submit() to halt, including time spent queued. */
+        public long getLatencyNanos() { return latencyNanos; }
+
+        @Override
+        public String toString() {
+            return "Job{" +
+                "instructions=" + getInstructionsRetired() +
+                ", slices=" + slices +
+                ", runMs=" + runNanos / 1_000_000 +
+                ", latencyMs=" + latencyNanos / 1_000_000 +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package org.jcm.asm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves the execution state of a stopped interpreter (not inside cpu():
+ *  new, yielded or halted) to a file and restores it into a fresh
+ *  interpreter for the same Program, possibly in another process.  Only
+ *  live data is written: registers, globals, the operand stack, the call
+ *  stack and the structs and arrays reachable from them, each once so
+ *  shared and cyclic references come back with the same identity.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *  magic version fingerprint status ip sp fp instructionsRetired
+ *  numStructs (STRUCT numFields | TSTRUCT descriptor |
+ *              IARRAY length | FARRAY length)*
+ *             (field value* | element*)*       struct and array heap
+ *  numGlobals value*
+ *  value*                                      operands[0..sp]
+ *  (function returnAddress numSlots value*)*   calls[0..fp]
+ * </pre>
+ * Every section is a flat sequence of fixed-size records and tagged
+ *  values, so restore decodes straight out of a memory-mapped buffer in a
+ *  single pass proportional to the file size.
+ *
+ * @author jmarchesini
+ */
+public class Snapshot {
+    public static final int MAGIC = 0x4A434D53; // "JCMS"
+    public static final int VERSION = 3;
+
+    /* Value tags */
+    static final byte NULL = 0;
+    static final byte INT = 1;
+    static final byte FLOAT = 2;
+    static final byte BOOLEAN = 3;
+    static final byte CHAR = 4;
+    static final byte STRING = 5;
+    static final byte STRUCT = 6;  // any heap reference; also heap record kind
+    static final byte TSTRUCT = 7; // heap record kinds only
+    static final byte IARRAY = 8;
+    static final byte FARRAY = 9;
+
+    public static void save(InterpreterBase interp, Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024)))
+        {
+            new Writer(interp, out).write();
+        }
+    }
+
+    /**
+     * Load the state saved in file into interp, which must be a new
+     *  interpreter of the right kind for the Program the snapshot was taken
+     *  from.  Afterwards interp.run() continues where the original stopped.
+     */
+    public static void restore(InterpreterBase interp, Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            new Reader(interp, buf).read();
+        }
+    }
+
+    static class Writer {
+        final InterpreterBase interp;
+        final DataOutputStream out;
+        final Map<Object, Integer> ids = new IdentityHashMap<>(); // see isHeapObject()
+        final List<Object> heap = new ArrayList<>();
+
+        Writer(InterpreterBase interp, DataOutputStream out) {
+            this.interp = interp;
+            this.out = out;
+        }
+
+        void write() throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(interp.program.fingerprint());
+            out.writeInt(interp.status);
+            out.writeInt(interp.ip);
+            out.writeInt(interp.sp);
+            out.writeInt(interp.fp);
+            out.writeLong(interp.instructionsRetired);
+
+            // number every reachable struct before writing any field so
+            //  that references can be written as ids
+            discover(interp.globals, interp.globals.length);
+            discover(interp.operands, interp.sp + 1);
+
+            for (int i = 0; i <= interp.fp; i++) {
+                Object[] slots = interp.frameSlots(i);
+                discover(slots, slots.length);
+            }
+
+            for (int i = 0; i < heap.size(); i++) {
+                if (isArray(heap.get(i)))
+                    continue; // holds no references
+
+                Object[] fields = fieldsOf(heap.get(i));
+                discover(fields, fields.length);
+            }
+
+            out.writeInt(heap.size());
+
+            for (Object s : heap) {
+                if (s instanceof TypedStruct) {
+                    out.writeByte(TSTRUCT);
+                    writeString(((TypedStruct) s).layout.descriptor);
+                } else if (s instanceof int[]) {
+                    out.writeByte(IARRAY);
+                    out.writeInt(((int[]) s).length);
+                } else if (s instanceof float[]) {
+                    out.writeByte(FARRAY);
+                    out.writeInt(((float[]) s).length);
+                } else {
+                    out.writeByte(STRUCT);
+                    out.writeInt(((StructSpace) s).fields.length);
+                }
+            }
+
+            for (Object s : heap) {
+                if (s instanceof int[]) {
+                    for (int e : (int[]) s)
+                        out.writeInt(e);
+                } else if (s instanceof float[]) {
+                    for (float e : (float[]) s)
+                        out.writeFloat(e);
+                } else {
+                    Object[] fields = fieldsOf(s);
+                    writeValues(fields, fields.length);
+                }
+            }
+
+            out.writeInt(interp.globals.length);
+            writeValues(interp.globals, interp.globals.length);
+            writeValues(interp.operands, interp.sp + 1);
+
+            for (int i = 0; i <= interp.fp; i++) {
+                Object[] slots = interp.frameSlots(i);
+                out.writeInt(functionIndex(interp.frameFunction(i)));
+                out.writeInt(interp.frameReturnAddress(i));
+                out.writeInt(slots.length);
+                writeValues(slots, slots.length);
+            }
+        }
+
+        void discover(Object[] values, int n) {
+            for (int i = 0; i < n; i++) {
+                Object v = values[i];
+
+                if (isHeapObject(v) && !ids.containsKey(v)) {
+                    ids.put(v, heap.size());
+                    heap.add(v);
+                }
+            }
+        }
+
+        /* A typed struct's fields boxed, like a plain struct's */
+        static Object[] fieldsOf(Object struct) {
+            if (struct instanceof StructSpace)
+                return ((StructSpace) struct).fields;
+
+            TypedStruct t = (TypedStruct) struct;
+            Object[] fields = new Object[t.layout.size()];
+
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = t.get(i);
+
+            return fields;
+        }
+
+        void writeString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeValues(Object[] values, int n) throws IOException {
+            for (int i = 0; i < n; i++)
+                writeValue(values[i]);
+        }
+
+        void writeValue(Object v) throws IOException {
+            if (v == null) {
+                out.writeByte(NULL);
+            } else if (v instanceof Integer) {
+                out.writeByte(INT);
+                out.writeInt((Integer) v);
+            } else if (v instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) v);
+            } else if (v instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) v);
+            } else if (v instanceof Character) {
+                out.writeByte(CHAR);
+                out.writeChar((Character) v);
+            } else if (v instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) v);
+            } else if (isHeapObject(v)) {
+                out.writeByte(STRUCT);
+                out.writeInt(ids.get(v));
+            } else {
+                throw new IllegalStateException("cannot snapshot " + v.getClass().getName());
+            }
+        }
+
+        /* Frames refer to their function by constant pool index; -1 is an implicit main */
+        int functionIndex(FunctionSymbol f) {
+            Object[] pool = interp.constPool;
+
+            for (int i = 0; i < pool.length; i++) {
+                if (pool[i] == f)
+                    return i;
+            }
+
+            return -1;
+        }
+    }
+
+    static boolean isHeapObject(Object v) {
+        return v instanceof StructSpace || v instanceof TypedStruct || isArray(v);
+    }
+
+    static boolean isArray(Object v) { return v instanceof int[] || v instanceof float[]; }
+
+    static class Reader {
+        final InterpreterBase interp;
+        final ByteBuffer in;
+        Object[] heap; // see isHeapObject()
+
+        Reader(InterpreterBase interp, ByteBuffer in) {
+            this.interp = interp;
+            this.in = in;
+        }
+
+        void read() throws IOException {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                throw new IOException("not a snapshot file");
+
+            if (in.getLong() != interp.program.fingerprint())
+                throw new IOException("snapshot was taken from a different program");
+
+            if (interp.status != InterpreterBase.NEW || interp.fp != -1)
+                throw new IllegalStateException("can only restore into a new interpreter");
+
+            int status = in.getInt();
+            int ip = in.getInt();
+            int sp = in.getInt();
+            int fp = in.getInt();
+            long retired = in.getLong();
+
+            heap = new Object[in.getInt()];
+
+            for (int i = 0; i < heap.length; i++) {
+                byte kind = in.get();
+
+                if (kind == TSTRUCT)
+                    heap[i] = interp.arena.allocate(StructLayout.parse(readString()));
+                else if (kind == STRUCT)
+                    heap[i] = new StructSpace(in.getInt());
+                else if (kind == IARRAY)
+                    heap[i] = new int[in.getInt()];
+                else if (kind == FARRAY)
+                    heap[i] = new float[in.getInt()];
+                else
+                    throw new IOException("bad heap record kind " + kind);
+            }
+
+            for (Object s : heap) {
+                if (s instanceof TypedStruct) {
+                    TypedStruct t = (TypedStruct) s;
+
+                    for (int i = 0; i < t.layout.size(); i++)
+                        t.set(i, readValue());
+                } else if (s instanceof int[]) {
+                    in.asIntBuffer().get((int[]) s);
+                    in.position(in.position() + 4 * ((int[]) s).length);
+                } else if (s instanceof float[]) {
+                    in.asFloatBuffer().get((float[]) s);
+                    in.position(in.position() + 4 * ((float[]) s).length);
+                } else {
+                    readValues(((StructSpace) s).fields, ((StructSpace) s).fields.length);
+                }
+            }
+
+            int numGlobals = in.getInt();
+
+            if (numGlobals != interp.globals.length)
+                throw new IOException("snapshot has " + numGlobals + " globals, program has " +
+                    interp.globals.length);
+
+            readValues(interp.globals, numGlobals);
+
+            if (sp >= interp.operandStackLimit)
+                throw new IOException("operand stack limit too small for snapshot");
+
+            interp.growOperands(sp);
+            readValues(interp.operands, sp + 1);
+
+            if (interp.mainFunction == null)
+                interp.mainFunction = interp.implicitMain();
+
+            for (int i = 0; i <= fp; i++) {
+                int index = in.getInt();
+                FunctionSymbol f = index < 0 ? interp.mainFunction
+                                             : (FunctionSymbol) interp.constPool[index];
+                int returnAddress = in.getInt();
+                int numSlots = in.getInt();
+                Object[] slots = interp.pushFrame(f, returnAddress);
+
+                if (numSlots != slots.length)
+                    throw new IOException("frame " + i + " of " + f.name + " has the wrong size");
+
+                readValues(slots, numSlots);
+            }
+
+            interp.status = status;
+            interp.ip = ip;
+            interp.sp = sp;
+            interp.instructionsRetired = retired;
+            interp.transferred(ip); // history starts where the snapshot left off
+
+            // every frame on the stack may still push up to its bound
+            for (int i = 0; i <= fp; i++)
+                interp.reserveOperands(interp.frameFunction(i), i);
+        }
+
+        String readString() {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void readValues(Object[] values, int n) {
+            for (int i = 0; i < n; i++)
+                values[i] = readValue();
+        }
+
+        Object readValue() {
+            byte tag = in.get();
+
+            switch (tag) {
+                case NULL:
+                    return null;
+                case INT:
+                    return in.getInt();
+                case FLOAT:
+                    return in.getFloat();
+                case BOOLEAN:
+                    return in.get() != 0;
+                case CHAR:
+                    return in.getChar();
+                case STRING:
+                    return readString();
+                case STRUCT:
+                    return heap[in.getInt()];
+                default:
+                    throw new IllegalStateException("bad value tag " + tag + " at " + (in.position() - 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.jcm.asm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * @author jmarchesini
+ */
+@Name("org.jcm.StructAllocation")
+@Label("Struct Allocation")
+@Category({ "Guest VM", "Memory" })
+@Description("A guest struct instruction")
+@StackTrace(false)
+public class StructAllocationEvent extends Event {
+    @Label("Fields")
+    public int fields;
+
+    @Label("Function")
+    public String function;
+
+    @Label("Address")
+    public int ip;
+}
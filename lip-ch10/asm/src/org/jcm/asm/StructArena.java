@@ -0,0 +1,80 @@
+package org.jcm.asm;
+
+/**
+ * Bump allocator for typed structs.  Fields are carved out of fixed-size
+ *  slabs rather than allocated per struct, so a struct costs one small
+ *  handle object and no boxes.  A full slab is simply dropped: the structs
+ *  in it keep it alive, and the garbage collector reclaims it, all at
+ *  once, when the last of them dies.
+ *
+ * Each interpreter has its own arena, so allocation needs no locking.
+ *  The interpreter releases it when its program halts.
+ *
+ * @author jmarchesini
+ */
+public final class StructArena {
+    public static final int SLAB_SIZE = 4096; // entries per slab
+
+    private long[] slab;
+    private int top;
+    private Object[] refSlab;
+    private int refTop;
+    private long bytesAllocated;
+    private boolean released;
+
+    public TypedStruct allocate(StructLayout layout) {
+        if (released)
+            throw new Error("struct allocated after its program halted");
+
+        int n = layout.numPrimitives;
+        int m = layout.numRefs;
+        long[] s = null;
+        int base = 0;
+        Object[] r = null;
+        int refBase = 0;
+
+        if (n > 0) {
+            if (n > SLAB_SIZE / 8) {
+                s = new long[n]; // too big to share a slab
+            } else {
+                if (slab == null || top + n > slab.length) {
+                    slab = new long[SLAB_SIZE];
+                    top = 0;
+                }
+
+                s = slab;
+                base = top;
+                top += n;
+            }
+        }
+
+        if (m > 0) {
+            if (m > SLAB_SIZE / 8) {
+                r = new Object[m];
+            } else {
+                if (refSlab == null || refTop + m > refSlab.length) {
+                    refSlab = new Object[SLAB_SIZE];
+                    refTop = 0;
+                }
+
+                r = refSlab;
+                refBase = refTop;
+                refTop += m;
+            }
+        }
+
+        bytesAllocated += 8L * n + 4L * m;
+
+        return new TypedStruct(layout, s, base, r, refBase);
+    }
+
+    /** Drop the current slabs; structs still referenced keep theirs. */
+    public void release() {
+        slab = null;
+        refSlab = null;
+        released = true;
+    }
+
+    /** Field bytes handed out so far, not counting handles. */
+    public long getBytesAllocated() { return bytesAllocated; }
+}
@@ -0,0 +1,107 @@
+package org.jcm.asm;
+
+/**
+ * Field types of a typed struct, declared in assembly by the descriptor
+ *  operand of tstruct: one character per field, in order.
+ *
+ * <pre>
+ *     i  int      f  float      c  char      b  boolean      o  any object
+ * </pre>
+ *
+ * Primitive fields live unboxed in a long slab and object fields in an
+ *  Object slab, see StructArena; slots maps a field to its index in one
+ *  or the other.
+ *
+ * @author jmarchesini
+ */
+public final class StructLayout {
+    public static final char INT = 'i';
+    public static final char FLOAT = 'f';
+    public static final char CHAR = 'c';
+    public static final char BOOLEAN = 'b';
+    public static final char REF = 'o';
+
+    final String descriptor;
+    final char[] kinds;
+    final int[] slots;
+    final int numPrimitives;
+    final int numRefs;
+
+    private StructLayout(String descriptor, char[] kinds, int[] slots, int numPrimitives, int numRefs) {
+        this.descriptor = descriptor;
+        this.kinds = kinds;
+        this.slots = slots;
+        this.numPrimitives = numPrimitives;
+        this.numRefs = numRefs;
+    }
+
+    /** The layout descriptor declares; IllegalArgumentException for a field type not listed above. */
+    public static StructLayout parse(String descriptor) {
+        char[] kinds = descriptor.toCharArray();
+        int[] slots = new int[kinds.length];
+        int prims = 0;
+        int refs = 0;
+
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case INT:
+                case FLOAT:
+                case CHAR:
+                case BOOLEAN:
+                    slots[i] = prims++;
+                    break;
+                case REF:
+                    slots[i] = refs++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("bad struct layout \"" + descriptor + "\": field " + i +
+                        " has type '" + kinds[i] + "'");
+            }
+        }
+
+        return new StructLayout(descriptor, kinds, slots, prims, refs);
+    }
+
+    /**
+     * Layouts for the descriptors used by the tstruct instructions of
+     *  program, whose code is dc, indexed like its constant pool; null for
+     *  other entries, or no array at all if the instruction set has no
+     *  tstruct.
+     */
+    static StructLayout[] resolve(Program program, DecodedCode dc) {
+        int opcode = -1;
+        BytecodeDefBase.Instruction[] instructions = program.bcDef.getInstructions();
+
+        for (int i = 0; i < instructions.length; i++) {
+            if (instructions[i] != null && instructions[i].name.equals("tstruct"))
+                opcode = i;
+        }
+
+        if (opcode < 0)
+            return null;
+
+        StructLayout[] layouts = new StructLayout[program.constPool.length];
+
+        for (int i = 0; i < dc.size(); i++) {
+            if (dc.opcode(i) != opcode)
+                continue;
+
+            int k = dc.operandCount(i) - 1; // the descriptor comes last
+            int index = dc.operand(i, k);
+
+            if (layouts[index] == null)
+                layouts[index] = parse((String) program.constPool[index]);
+        }
+
+        return layouts;
+    }
+
+    public String getDescriptor() { return descriptor; }
+
+    public int size() { return kinds.length; }
+
+    public char getKind(int field) { return kinds[field]; }
+
+    @Override
+    public String toString() { return descriptor; }
+}
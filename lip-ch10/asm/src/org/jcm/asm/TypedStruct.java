@@ -0,0 +1,96 @@
+package org.jcm.asm;
+
+/**
+ * A struct with a declared layout.  Its fields are not objects of their
+ *  own: primitives are bits in a shared long slab and references are in a
+ *  shared Object slab, both owned by the StructArena that allocated it,
+ *  starting at base and refBase.  Fields start out 0, 0.0, '\0', false or
+ *  null according to their type.
+ *
+ * get and set convert to and from the boxed values the operand stack and
+ *  registers hold; the typed accessors do not box at all.
+ *
+ * @author jmarchesini
+ */
+public final class TypedStruct {
+    final StructLayout layout;
+    final long[] slab;
+    final int base;
+    final Object[] refs;
+    final int refBase;
+
+    TypedStruct(StructLayout layout, long[] slab, int base, Object[] refs, int refBase) {
+        this.layout = layout;
+        this.slab = slab;
+        this.base = base;
+        this.refs = refs;
+        this.refBase = refBase;
+    }
+
+    public StructLayout getLayout() { return layout; }
+
+    public Object get(int field) {
+        int slot = layout.slots[field];
+
+        switch (layout.kinds[field]) {
+            case StructLayout.INT:
+                return (int) slab[base + slot];
+            case StructLayout.FLOAT:
+                return Float.intBitsToFloat((int) slab[base + slot]);
+            case StructLayout.CHAR:
+                return (char) slab[base + slot];
+            case StructLayout.BOOLEAN:
+                return slab[base + slot] != 0;
+            default:
+                return refs[refBase + slot];
+        }
+    }
+
+    public void set(int field, Object v) {
+        int slot = layout.slots[field];
+
+        switch (layout.kinds[field]) {
+            case StructLayout.INT:
+                slab[base + slot] = (Integer) v;
+                break;
+            case StructLayout.FLOAT:
+                slab[base + slot] = Float.floatToRawIntBits((Float) v);
+                break;
+            case StructLayout.CHAR:
+                slab[base + slot] = (Character) v;
+                break;
+            case StructLayout.BOOLEAN:
+                slab[base + slot] = (Boolean) v ? 1 : 0;
+                break;
+            default:
+                refs[refBase + slot] = v;
+                break;
+        }
+    }
+
+    public int getInt(int field) { return (int) slab[base + layout.slots[field]]; }
+
+    public void setInt(int field, int v) { slab[base + layout.slots[field]] = v; }
+
+    public float getFloat(int field) {
+        return Float.intBitsToFloat((int) slab[base + layout.slots[field]]);
+    }
+
+    public void setFloat(int field, float v) {
+        slab[base + layout.slots[field]] = Float.floatToRawIntBits(v);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("[");
+
+        for (int i = 0; i < layout.size(); i++) {
+            if (i > 0)
+                buf.append(", ");
+
+            buf.append(get(i));
+        }
+
+        return buf.append(']').toString();
+    }
+}
@@ -0,0 +1,333 @@
+package org.jcm.batch;
+
+import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.InterpreterBase;
+import org.jcm.asm.Program;
+import org.jcm.asm.ProgramCache;
+import org.jcm.reg.RegInterpreter;
+import org.jcm.stack.StackInterpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs a directory (searched recursively) or a manifest of .pcode/.rcode
+ *  files in one JVM, assembling and executing them concurrently.  Each
+ *  program gets its own interpreter and its own captured output; the
+ *  summary lists them in input order with status and timings.
+ *
+ *  usage: BatchRunner [-threads n] [-virtual] [-timeout s] [-out dir]
+ *                     [-summary file] dir|@manifest
+ *
+ *  -threads n   fork-join pool size (default: available processors)
+ *  -virtual     one virtual thread per program instead
+ *  -timeout s   stop a program after s seconds of execution, see below
+ *  -out dir     write each program's output to dir/name.out
+ *  -summary f   write the summary to f instead of standard out
+ *
+ * A manifest lists one file per line, relative to the manifest's
+ *  directory; blank lines and lines starting with '#' are ignored.
+ *
+ * Each program executes on the pool thread that took it.  At the timeout
+ *  a shared timer thread stops the program and interrupts that thread
+ *  (see InterpreterBase.stop()), which also ends a wait in send, receive
+ *  or join; a host function that ignores interrupts keeps its thread
+ *  until it returns.
+ *
+ * Needs JDK 21 or later, for virtual threads.
+ *
+ * @author jmarchesini
+ */
+public class BatchRunner {
+    final ProgramCache cache = new ProgramCache(); // duplicates assemble once
+    final ScheduledThreadPoolExecutor timer = timer(); // for -timeout
+    long timeoutNanos = Long.MAX_VALUE;
+    Path outDir;
+    Path root;     // .out files keep their path relative to this
+
+    public static void main(String[] args) throws Exception {
+        BatchRunner runner = new BatchRunner();
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean virtual = false;
+        String input = null;
+        String summary = null;
+        int i = 0;
+
+        while (i < args.length) {
+            switch (args[i]) {
+                case "-threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-virtual":
+                    virtual = true;
+                    i++;
+                    break;
+                case "-timeout":
+                    runner.timeoutNanos = (long) (Double.parseDouble(args[i + 1]) * 1e9);
+                    i += 2;
+                    break;
+                case "-out":
+                    runner.outDir = Paths.get(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-summary":
+                    summary = args[i + 1];
+                    i += 2;
+                    break;
+                default:
+                    input = args[i];
+                    i++;
+                    break;
+            }
+        }
+
+        if (input == null) {
+            System.err.println("usage: BatchRunner [-threads n] [-virtual] [-timeout s] " +
+                "[-out dir] [-summary file] dir|@manifest");
+            System.exit(2);
+        }
+
+        Path in = Paths.get(input.startsWith("@") ? input.substring(1) : input).toAbsolutePath();
+        runner.root = input.startsWith("@") ? in.getParent() : in;
+        List<Path> files = input.startsWith("@") ? readManifest(in) : findPrograms(in);
+        long start = System.nanoTime();
+        List<Result> results;
+
+        try (ExecutorService pool = virtual ? Executors.newVirtualThreadPerTaskExecutor()
+                                            : new ForkJoinPool(threads)) {
+            results = runner.runAll(files, pool);
+        }
+
+        long wall = System.nanoTime() - start;
+
+        if (summary != null) {
+            try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(Paths.get(summary)))) {
+                writeSummary(results, wall, w);
+            }
+        } else {
+            PrintWriter w = new PrintWriter(System.out);
+            writeSummary(results, wall, w);
+            w.flush();
+        }
+
+        boolean failed = results.stream().anyMatch(r -> !r.status.equals("ok"));
+        System.exit(failed ? 1 : 0);
+    }
+
+    public List<Result> runAll(List<Path> files, ExecutorService pool) throws Exception {
+        List<Future<Result>> futures = new ArrayList<>();
+
+        for (Path f : files)
+            futures.add(pool.submit(() -> run(f)));
+
+        List<Result> results = new ArrayList<>();
+
+        for (Future<Result> f : futures)
+            results.add(f.get());
+
+        return results;
+    }
+
+    /** Assemble and execute one program; never throws for guest failures. */
+    public Result run(Path file) {
+        Path name = root != null && file.startsWith(root) ? root.relativize(file) : file;
+        Result r = new Result(file, name.toString());
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+        try {
+            boolean reg = file.toString().endsWith(".rcode");
+            BytecodeDefBase bcDef = reg ? new org.jcm.reg.BytecodeDefinition()
+                                        : new org.jcm.stack.BytecodeDefinition();
+
+            long t0 = System.nanoTime();
+            Program program = cache.load(file, bcDef);
+            r.assembleNanos = System.nanoTime() - t0;
+
+            if (program.hasErrors()) {
+                r.status = "syntax error";
+            } else {
+                InterpreterBase interp = reg ? new RegInterpreter(program)
+                                             : new StackInterpreter(program);
+                interp.setOutput(new PrintStream(captured, false, StandardCharsets.UTF_8));
+
+                Deadline deadline = new Deadline(interp, Thread.currentThread());
+                long t1 = System.nanoTime();
+
+                if (timeoutNanos != Long.MAX_VALUE)
+                    deadline.future = timer.schedule(deadline, timeoutNanos, TimeUnit.NANOSECONDS);
+
+                try {
+                    interp.exec();
+                } catch (Throwable t) {
+                    r.status = "error: " + t;
+                } finally {
+                    if (deadline.finish())
+                        r.status = "timeout";
+                }
+
+                r.execNanos = System.nanoTime() - t1;
+                r.instructions = interp.getInstructionsRetired();
+            }
+        } catch (Throwable t) {
+            r.status = "error: " + t;
+        }
+
+        r.output = captured.toByteArray();
+
+        if (outDir != null) {
+            try {
+                Path out = outDir.resolve(r.name + ".out");
+                Files.createDirectories(out.getParent());
+                Files.write(out, r.output);
+            } catch (IOException e) {
+                r.status = "error: " + e;
+            }
+        }
+
+        return r;
+    }
+
+    static ScheduledThreadPoolExecutor timer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+            task -> Thread.ofPlatform().daemon().name("batch timeout").unstarted(task));
+        timer.setRemoveOnCancelPolicy(true); // most programs finish in time
+
+        return timer;
+    }
+
+    /**
+     * The timeout of one program: stops interp and interrupts the thread
+     *  running it, unless finish() came first.  Never interrupts the
+     *  thread once it has moved on to another program.
+     */
+    static class Deadline implements Runnable {
+        final InterpreterBase interp;
+        final Thread thread;
+        ScheduledFuture<?> future;
+        private boolean done;
+        private boolean fired;
+
+        Deadline(InterpreterBase interp, Thread thread) {
+            this.interp = interp;
+            this.thread = thread;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (done)
+                return;
+
+            fired = true;
+            interp.stop();      // if it is running
+            thread.interrupt(); // if it waits
+        }
+
+        /* On the program's thread once it has ended; returns true if it timed out */
+        synchronized boolean finish() {
+            done = true;
+
+            if (future != null)
+                future.cancel(false);
+
+            if (fired)
+                Thread.interrupted(); // ours; not for the next program
+
+            return fired;
+        }
+    }
+
+    static List<Path> findPrograms(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            return s.filter(BatchRunner::isProgram).sorted().collect(Collectors.toList());
+        }
+    }
+
+    static List<Path> readManifest(Path manifest) throws IOException {
+        Path base = manifest.toAbsolutePath().getParent();
+        List<Path> files = new ArrayList<>();
+
+        for (String line : Files.readAllLines(manifest)) {
+            line = line.trim();
+
+            if (!line.isEmpty() && !line.startsWith("#"))
+                files.add(base.resolve(line));
+        }
+
+        return files;
+    }
+
+    static boolean isProgram(Path p) {
+        String name = p.toString();
+
+        return name.endsWith(".pcode") || name.endsWith(".rcode");
+    }
+
+    static void writeSummary(List<Result> results, long wallNanos, PrintWriter w) {
+        long exec = 0;
+        int ok = 0;
+
+        w.printf("%-40s %-12s %14s %12s %12s %10s\n",
+            "program", "status", "instructions", "assemble ms", "exec ms", "output");
+
+        for (Result r : results) {
+            w.printf("%-40s %-12s %14d %12.3f %12.3f %10d\n",
+                r.name, r.status, r.instructions,
+                r.assembleNanos / 1e6, r.execNanos / 1e6, r.output.length);
+            exec += r.execNanos;
+
+            if (r.status.equals("ok"))
+                ok++;
+        }
+
+        w.printf("%d programs, %d ok, %d failed; wall %.1f ms, total exec %.1f ms\n",
+            results.size(), ok, results.size() - ok, wallNanos / 1e6, exec / 1e6);
+    }
+
+    /** Outcome of one program. */
+    public static class Result {
+        final Path file;
+        final String name; // relative to the input directory or manifest
+        String status = "ok";
+        long instructions;
+        long assembleNanos;
+        long execNanos;
+        byte[] output = new byte[0];
+
+        Result(Path file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+
+        public Path getFile() { return file; }
+
+        public String getName() { return name; }
+
+        public String getStatus() { return status; }
+
+        public long getInstructions() { return instructions; }
+
+        public long getAssembleNanos() { return assembleNanos; }
+
+        public long getExecNanos() { return execNanos; }
+
+        public byte[] getOutput() { return output; }
+    }
+}
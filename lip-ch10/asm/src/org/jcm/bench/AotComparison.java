@@ -0,0 +1,122 @@
+package org.jcm.bench;
+
+import org.jcm.asm.AotCompiler;
+import org.jcm.asm.AotRuntime;
+import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.InterpreterBase;
+import org.jcm.asm.Program;
+import org.jcm.reg.RegAotCompiler;
+import org.jcm.reg.RegInterpreter;
+import org.jcm.stack.StackAotCompiler;
+import org.jcm.stack.StackInterpreter;
+
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs each program interpreted and translated by AotCompiler, and prints
+ *  the best of n runs of each, after as many to warm up, with the speedup
+ *  and how many of the translation's slots are unboxed.  Output goes to a
+ *  null stream in both cases.  Files ending in .rcode run on the register
+ *  VM, others on the stack VM; with no files, a ProgramGenerator program
+ *  runs on both.
+ *
+ *  usage: AotComparison [-runs n] [-seed s] [file.pcode|file.rcode ..]
+ *
+ * @author jmarchesini
+ */
+public class AotComparison {
+
+    public static void main(String[] args) throws Exception {
+        int runs = 10;
+        long seed = 1;
+        List<String> files = new ArrayList<>();
+        int i = 0;
+
+        while (i < args.length) {
+            switch (args[i]) {
+                case "-runs":
+                    runs = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    if (args[i].startsWith("-")) {
+                        System.err.println("usage: AotComparison [-runs n] [-seed s] [file.pcode|file.rcode ..]");
+                        return;
+                    }
+
+                    files.add(args[i]);
+                    i++;
+                    break;
+            }
+        }
+
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        System.out.printf("%-20s %-9s %10s %10s %8s %10s\n", "program", "vm", "interp ms", "aot ms", "speedup", "unboxed");
+
+        if (files.isEmpty()) {
+            ProgramGenerator gen = ProgramScaling.generator(100, seed);
+            compare("generated", false, gen.stack(), runs, sink);
+            compare("generated", true, gen.register(), runs, sink);
+        }
+
+        for (String file : files) {
+            try (FileInputStream in = new FileInputStream(file)) {
+                compare(Paths.get(file).getFileName().toString(), file.endsWith(".rcode"),
+                    new String(in.readAllBytes()), runs, sink);
+            }
+        }
+    }
+
+    static void compare(String name, boolean reg, String source, int runs, PrintStream sink) throws Exception {
+        BytecodeDefBase bcDef = reg ? new org.jcm.reg.BytecodeDefinition()
+                                    : new org.jcm.stack.BytecodeDefinition();
+        Program program = Program.assemble(source, bcDef);
+
+        if (program.hasErrors())
+            throw new IllegalStateException(name + " does not assemble");
+
+        AotCompiler aot = reg ? new RegAotCompiler(program) : new StackAotCompiler(program);
+        Method run = aot.load(AotCompiler.DEFAULT_CLASS_NAME).getMethod("run");
+        int[] unboxed = aot.getUnboxedSlots();
+        PrintStream out = AotRuntime.out;
+        long interpNanos = Long.MAX_VALUE, aotNanos = Long.MAX_VALUE;
+
+        AotRuntime.out = sink;
+
+        try {
+            for (int k = 0; k < 2 * runs; k++) {
+                InterpreterBase interp = reg ? new RegInterpreter(program) : new StackInterpreter(program);
+                interp.setOutput(sink);
+
+                long start = System.nanoTime();
+                interp.exec();
+                long interpRun = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                run.invoke(null);
+                long aotRun = System.nanoTime() - start;
+
+                if (k >= runs) { // the first runs warm up
+                    interpNanos = Math.min(interpNanos, interpRun);
+                    aotNanos = Math.min(aotNanos, aotRun);
+                }
+            }
+        } finally {
+            AotRuntime.out = out;
+        }
+
+        System.out.printf("%-20s %-9s %10.2f %10.2f %7.1fx %4d of %d\n", name, reg ? "register" : "stack",
+            interpNanos / 1e6, aotNanos / 1e6, (double) interpNanos / aotNanos, unboxed[0], unboxed[1]);
+    }
+}
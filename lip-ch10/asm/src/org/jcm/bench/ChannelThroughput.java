@@ -0,0 +1,103 @@
+package org.jcm.bench;
+
+import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.InterpreterBase;
+import org.jcm.asm.Program;
+import org.jcm.reg.RegInterpreter;
+import org.jcm.stack.StackInterpreter;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A guest producer sends n ints over a channel to a guest consumer, each
+ *  spawned on its own virtual thread, at channel capacities 1, 4, 16 ..
+ *  max.  Prints messages per second for each, for the stack and the
+ *  register VM.
+ *
+ *  usage: ChannelThroughput [-n messages] [-max capacity]
+ *
+ * @author jmarchesini
+ */
+public class ChannelThroughput {
+
+    /* produce(ch, n) sends n..1 then 0; consume(ch) sums until 0 */
+    static final String STACK_SOURCE =
+        ".def main: args=0, locals=1\n" +
+        "\ticonst %d\n\tnewchan\n\tstore 0\n" +
+        "\tload 0\n\ticonst %d\n\tspawn produce()\n\tpop\n" +
+        "\tload 0\n\tspawn consume()\n\tjoin\n\tprint\n\thalt\n" +
+        ".def produce: args=2, locals=0\n" +
+        "ploop:\n\ticonst 0\n\tload 1\n\tilt\n\tbrf pdone\n" +
+        "\tload 0\n\tload 1\n\tsend\n\tload 1\n\ticonst -1\n\tiadd\n\tstore 1\n\tbr ploop\n" +
+        "pdone:\n\tload 0\n\ticonst 0\n\tsend\n\tret\n" +
+        ".def consume: args=1, locals=2\n" +
+        "\ticonst 0\n\tstore 1\n" +
+        "cloop:\n\tload 0\n\trecv\n\tstore 2\n\tload 2\n\ticonst 0\n\tieq\n\tbrt cdone\n" +
+        "\tload 1\n\tload 2\n\tiadd\n\tstore 1\n\tbr cloop\n" +
+        "cdone:\n\tload 1\n\tret\n";
+
+    static final String REG_SOURCE =
+        ".def main: args=0, locals=3\n" +
+        "\ticonst r1, %d\n\tnewchan r1, r1\n\ticonst r2, %d\n" +
+        "\tspawn produce(), r1\n\tspawn consume(), r1\n\tjoin r0, r3\n\tprint r3\n\thalt\n" +
+        ".def produce: args=2, locals=3\n" +
+        "\ticonst r3, -1\n\ticonst r4, 0\n" +
+        "ploop:\n\tilt r4, r2, r5\n\tbrf r5, pdone\n" +
+        "\tsend r2, r1\n\tiadd r2, r3, r2\n\tbr ploop\n" +
+        "pdone:\n\tsend r4, r1\n\tret\n" +
+        ".def consume: args=1, locals=4\n" +
+        "\ticonst r2, 0\n\ticonst r4, 0\n" +
+        "cloop:\n\trecv r1, r3\n\tieq r3, r4, r5\n\tbrt r5, cdone\n" +
+        "\tiadd r2, r3, r2\n\tbr cloop\n" +
+        "cdone:\n\tmove r2, r0\n\tret\n";
+
+    public static void main(String[] args) throws Exception {
+        int messages = 1_000_000;
+        int maxCapacity = 1024;
+        int i = 0;
+
+        while (i < args.length) {
+            switch (args[i]) {
+                case "-n":
+                    messages = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-max":
+                    maxCapacity = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    System.err.println("usage: ChannelThroughput [-n messages] [-max capacity]");
+                    return;
+            }
+        }
+
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        run(false, messages / 10, 16, sink); // warm up
+        run(true, messages / 10, 16, sink);
+
+        System.out.printf("%-10s %16s %16s\n", "capacity", "stack msgs/s", "register msgs/s");
+
+        for (int c = 1; c <= maxCapacity; c *= 4) {
+            System.out.printf("%-10d %16.0f %16.0f\n", c,
+                run(false, messages, c, sink), run(true, messages, c, sink));
+        }
+    }
+
+    /* Returns messages per second through a channel of the given capacity */
+    static double run(boolean reg, int messages, int capacity, PrintStream sink) {
+        BytecodeDefBase bcDef = reg ? new org.jcm.reg.BytecodeDefinition()
+                                    : new org.jcm.stack.BytecodeDefinition();
+        String source = String.format(reg ? REG_SOURCE : STACK_SOURCE, capacity, messages);
+        Program program = Program.assemble(source, bcDef);
+        InterpreterBase interp = reg ? new RegInterpreter(program) : new StackInterpreter(program);
+        interp.setOutput(sink);
+
+        long start = System.nanoTime();
+        interp.exec();
+
+        return (messages + 1) / ((System.nanoTime() - start) / 1e9);
+    }
+}
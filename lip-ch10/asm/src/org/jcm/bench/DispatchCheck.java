@@ -0,0 +1,154 @@
+package org.jcm.bench;
+
+import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.Debugger;
+import org.jcm.asm.InterpreterBase;
+import org.jcm.asm.Program;
+import org.jcm.reg.RegInterpreter;
+import org.jcm.stack.StackInterpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs programs with each of the interpreter's loops, its cpu() switch,
+ *  the loop HandlerDispatch generates from the instruction handlers and
+ *  the instrumented loop, which executes the handlers one at a time, and
+ *  reports any program whose output, globals or failure differ.  Every
+ *  opcode is implemented twice, as a case of cpu() and as a handler, and
+ *  this is what keeps the two in agreement: run it over the samples after
+ *  changing either.  Exits with status 1 if anything differs.  A program
+ *  still running after -ticks calls and backward branches, or once it has
+ *  printed a megabyte, is compared as far as it got.
+ *
+ *  usage: DispatchCheck [-ticks n] file.pcode|file.rcode|dir ...
+ *
+ * @author jmarchesini
+ */
+public class DispatchCheck {
+    static final String[] LOOPS = { "switch", "handlers", "instrumented" };
+    static final int SLICE = 1_000_000;
+    static final int MAX_OUTPUT = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        List<File> files = new ArrayList<>();
+        long ticks = 500_000_000;
+        int i = 0;
+
+        while (i < args.length) {
+            switch (args[i]) {
+                case "-ticks":
+                    ticks = Long.parseLong(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    collect(new File(args[i]), files);
+                    i++;
+                    break;
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("usage: DispatchCheck [-ticks n] file.pcode|file.rcode|dir ...");
+            return;
+        }
+
+        int differ = 0;
+
+        for (File f : files) {
+            boolean reg = f.getName().endsWith(".rcode");
+            BytecodeDefBase bcDef = reg ? new org.jcm.reg.BytecodeDefinition()
+                                        : new org.jcm.stack.BytecodeDefinition();
+            Program program;
+
+            try (FileInputStream in = new FileInputStream(f)) {
+                program = Program.load(in, bcDef);
+            }
+
+            if (program.hasErrors()) {
+                System.out.println("skipped " + f + ": assembly errors");
+                continue;
+            }
+
+            String[] results = new String[LOOPS.length];
+
+            for (int loop = 0; loop < LOOPS.length; loop++)
+                results[loop] = run(program, reg, loop, ticks);
+
+            boolean same = true;
+
+            for (int loop = 1; loop < LOOPS.length; loop++) {
+                if (!results[loop].equals(results[0])) {
+                    String[] expected = results[0].split("\n", -1);
+                    String[] actual = results[loop].split("\n", -1);
+                    int line = Arrays.mismatch(expected, actual);
+
+                    System.out.println("DIFFERS " + f + ": " + LOOPS[loop] + " from " + LOOPS[0] +
+                        " at line " + (line + 1));
+                    System.out.println("  " + LOOPS[0] + ": " + (line < expected.length ? expected[line] : "(end)"));
+                    System.out.println("  " + LOOPS[loop] + ": " + (line < actual.length ? actual[line] : "(end)"));
+                    same = false;
+                }
+            }
+
+            if (same)
+                System.out.println("ok " + f);
+            else
+                differ++;
+        }
+
+        System.out.println(files.size() + " programs, " + differ + " differ");
+
+        if (differ > 0)
+            System.exit(1);
+    }
+
+    static void collect(File f, List<File> files) {
+        File[] children = f.listFiles();
+
+        if (children != null) {
+            Arrays.sort(children);
+
+            for (File c : children)
+                collect(c, files);
+        } else if (f.getName().endsWith(".pcode") || f.getName().endsWith(".rcode")) {
+            files.add(f);
+        }
+    }
+
+    /* What one execution with the given loop printed, left in the globals, and threw */
+    static String run(Program program, boolean reg, int loop, long ticks) {
+        InterpreterBase interp = reg ? new RegInterpreter(program) : new StackInterpreter(program);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        interp.setOutput(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        interp.setHandlerDispatch(loop == 1);
+
+        if (loop == 2)
+            interp.setDebugger(new Debugger((vm, d, reason) -> { })); // never stops; forces the loop
+
+        String end = "";
+
+        try {
+            while (interp.run(SLICE) == InterpreterBase.YIELDED) {
+                ticks -= SLICE;
+
+                if (ticks <= 0 || bytes.size() > MAX_OUTPUT) {
+                    end = "\nstill running";
+                    break;
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            end = "\nthrew " + e;
+        }
+
+        String output = bytes.toString(StandardCharsets.UTF_8);
+
+        return output + "globals " + Arrays.deepToString(interp.getGlobals()) + end;
+    }
+}
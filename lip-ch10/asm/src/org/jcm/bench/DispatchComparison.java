@@ -0,0 +1,80 @@
+package org.jcm.bench;
+
+import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.InterpreterBase;
+import org.jcm.asm.Program;
+import org.jcm.reg.RegInterpreter;
+import org.jcm.stack.StackInterpreter;
+
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Runs a program alternately with the interpreter's cpu() switch and with
+ *  the loop HandlerDispatch generates from the instruction handlers, and
+ *  prints the instructions retired per second of each.  Rounds alternate
+ *  so both loops see the same JIT warm-up.
+ *
+ *  usage: DispatchComparison file.pcode|file.rcode [-rounds n]
+ *
+ * @author jmarchesini
+ */
+public class DispatchComparison {
+
+    public static void main(String[] args) throws Exception {
+        String filename = null;
+        int rounds = 5;
+        int i = 0;
+
+        while (i < args.length) {
+            switch (args[i]) {
+                case "-rounds":
+                    rounds = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    filename = args[i];
+                    i++;
+                    break;
+            }
+        }
+
+        if (filename == null) {
+            System.err.println("usage: DispatchComparison file.pcode|file.rcode [-rounds n]");
+            return;
+        }
+
+        boolean reg = filename.endsWith(".rcode");
+        BytecodeDefBase bcDef = reg ? new org.jcm.reg.BytecodeDefinition()
+                                    : new org.jcm.stack.BytecodeDefinition();
+        Program program = Program.load(new FileInputStream(filename), bcDef);
+
+        if (program.hasErrors())
+            return;
+
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        System.out.printf("%-6s %16s %16s %9s\n", "round", "switch instr/s", "handler instr/s", "ratio");
+
+        for (int r = 1; r <= rounds; r++) {
+            double viaSwitch = run(program, reg, sink, false);
+            double viaHandlers = run(program, reg, sink, true);
+
+            System.out.printf("%-6d %16.0f %16.0f %8.2fx\n", r, viaSwitch, viaHandlers,
+                viaHandlers / viaSwitch);
+        }
+    }
+
+    /* Returns instructions retired per second in one execution */
+    static double run(Program program, boolean reg, PrintStream sink, boolean handlers) {
+        InterpreterBase interp = reg ? new RegInterpreter(program) : new StackInterpreter(program);
+        interp.setOutput(sink);
+        interp.setHandlerDispatch(handlers);
+
+        long start = System.nanoTime();
+        interp.exec();
+
+        return interp.getInstructionsRetired() / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,110 @@
+package org.jcm.bench;
+
+import org.jcm.asm.Program;
+import org.jcm.stack.BytecodeDefinition;
+import org.jcm.stack.StackInterpreter;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Splits one guest loop of n iterations across 1, 2, 4 .. max workers
+ *  started with spawn, each adding its partial sum to a global with gadd,
+ *  and prints the time taken and the speedup over one worker.  The loop
+ *  body is the same at every width, so the speedup shows how guest code
+ *  scales across cores.
+ *
+ *  usage: ParallelLoop [-n iterations] [-max workers]
+ *
+ * @author jmarchesini
+ */
+public class ParallelLoop {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 50_000_000;
+        int maxWorkers = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+
+        while (i < args.length) {
+            switch (args[i]) {
+                case "-n":
+                    iterations = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-max":
+                    maxWorkers = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    System.err.println("usage: ParallelLoop [-n iterations] [-max workers]");
+                    return;
+            }
+        }
+
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        run(iterations / 10, 1, sink); // warm up
+        run(iterations / 10, maxWorkers, sink);
+
+        System.out.printf("%-8s %10s %9s\n", "workers", "ms", "speedup");
+        double base = 0;
+
+        for (int w = 1; w <= maxWorkers; w *= 2) {
+            double ms = run(iterations, w, sink);
+
+            if (w == 1)
+                base = ms;
+
+            System.out.printf("%-8d %10.0f %8.2fx\n", w, ms, base / ms);
+        }
+    }
+
+    /* Returns milliseconds to run the loop split across workers */
+    static double run(int iterations, int workers, PrintStream sink) {
+        Program program = Program.assemble(source(iterations, workers), new BytecodeDefinition());
+        StackInterpreter interp = new StackInterpreter(program);
+        interp.setOutput(sink);
+
+        long start = System.nanoTime();
+        interp.exec();
+
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    /* main spawns every worker on its range, then joins them all */
+    static String source(int iterations, int workers) {
+        StringBuilder sb = new StringBuilder();
+        int chunk = iterations / workers;
+
+        sb.append(".globals 1\n");
+        sb.append(".def main: args=0, locals=").append(workers).append('\n');
+        sb.append("\ticonst 0\n\tgstore 0\n");
+
+        for (int w = 0; w < workers; w++) {
+            int from = w * chunk;
+            int to = w == workers - 1 ? iterations : from + chunk;
+            sb.append("\ticonst ").append(from).append('\n');
+            sb.append("\ticonst ").append(to).append('\n');
+            sb.append("\tspawn work()\n");
+            sb.append("\tstore ").append(w).append('\n');
+        }
+
+        for (int w = 0; w < workers; w++)
+            sb.append("\tload ").append(w).append("\n\tjoin\n\tpop\n");
+
+        sb.append("\tgload 0\n\tprint\n\thalt\n");
+
+        // sum (i & 7) for i in [from, to), then add it to the global
+        sb.append(".def work: args=2, locals=1\n");
+        sb.append("\ticonst 0\n\tstore 2\n");
+        sb.append("loop:\n");
+        sb.append("\tload 0\n\tload 1\n\tilt\n\tbrf done\n");
+        sb.append("\tload 2\n\tload 0\n\ticonst 7\n\tncall \"imod\"\n\tiadd\n\tstore 2\n");
+        sb.append("\tload 0\n\ticonst 1\n\tiadd\n\tstore 0\n");
+        sb.append("\tbr loop\n");
+        sb.append("done:\n");
+        sb.append("\tload 2\n\tgadd 0\n\tret\n");
+
+        return sb.toString();
+    }
+}
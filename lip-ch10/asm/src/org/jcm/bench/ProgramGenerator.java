@@ -0,0 +1,321 @@
+package org.jcm.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generates large guest programs of a given shape, as stack assembly and
+ *  as register assembly that computes the same thing, so the assembler,
+ *  loader and interpreters can be measured on programs far bigger than
+ *  the samples.  The same shape and seed always give the same program.
+ *
+ * There are functions f0..fN-1, split into depth levels.  main calls each
+ *  function of level 0 and prints the sum of what they return; every
+ *  other function calls one function of the next level, picked at random,
+ *  so calls go depth deep.  Each function runs a loop of trips iterations
+ *  whose body is a run of blocks, each one of:
+ *
+ * <pre>
+ *     arithmetic  acc = acc * k + i, and f = f + a float constant
+ *     struct      s = new struct; s.0 = acc; acc = s.0 + k
+ *     branch      if i < k then acc = acc + a else acc = acc - b
+ * </pre>
+ *
+ *  picked at random with the given struct and branch densities.  The float
+ *  constants are distinct and used round robin, giving a constant pool of
+ *  that many entries (plus one per function) if there are enough
+ *  arithmetic blocks to use them all.
+ *
+ *  usage: ProgramGenerator [-seed s] [-functions n] [-depth d] [-trips t]
+ *             [-blocks b] [-structs density] [-branches density]
+ *             [-constants c] [-reg] [-o prefix]
+ *
+ *  Writes prefix.pcode and prefix.rcode with -o, else the stack program
+ *  (or with -reg, the register program) to standard output.
+ *
+ * @author jmarchesini
+ */
+public class ProgramGenerator {
+    long seed = 1;
+    int functions = 100;
+    int depth = 4;
+    int trips = 10;
+    int blocks = 10;        // per loop body
+    double structs = 0.1;   // fraction of blocks
+    double branches = 0.2;
+    int constants = 100;
+
+    public ProgramGenerator seed(long seed) { this.seed = seed; return this; }
+
+    public ProgramGenerator functions(int functions) { this.functions = Math.max(1, functions); return this; }
+
+    public ProgramGenerator depth(int depth) { this.depth = Math.max(1, depth); return this; }
+
+    public ProgramGenerator trips(int trips) { this.trips = Math.max(0, trips); return this; }
+
+    public ProgramGenerator blocks(int blocks) { this.blocks = Math.max(0, blocks); return this; }
+
+    public ProgramGenerator structs(double density) { this.structs = density; return this; }
+
+    public ProgramGenerator branches(double density) { this.branches = density; return this; }
+
+    public ProgramGenerator constants(int constants) { this.constants = Math.max(1, constants); return this; }
+
+    public static void main(String[] args) throws IOException {
+        ProgramGenerator gen = new ProgramGenerator();
+        boolean reg = false;
+        String prefix = null;
+        int i = 0;
+
+        while (i < args.length) {
+            String option = args[i];
+
+            if (option.equals("-reg")) {
+                reg = true;
+                i++;
+                continue;
+            }
+
+            if (i + 1 >= args.length) {
+                usage();
+                return;
+            }
+
+            String value = args[i + 1];
+            i += 2;
+
+            switch (option) {
+                case "-seed": gen.seed(Long.parseLong(value)); break;
+                case "-functions": gen.functions(Integer.parseInt(value)); break;
+                case "-depth": gen.depth(Integer.parseInt(value)); break;
+                case "-trips": gen.trips(Integer.parseInt(value)); break;
+                case "-blocks": gen.blocks(Integer.parseInt(value)); break;
+                case "-structs": gen.structs(Double.parseDouble(value)); break;
+                case "-branches": gen.branches(Double.parseDouble(value)); break;
+                case "-constants": gen.constants(Integer.parseInt(value)); break;
+                case "-o": prefix = value; break;
+                default:
+                    usage();
+                    return;
+            }
+        }
+
+        if (prefix != null) {
+            Files.writeString(Paths.get(prefix + ".pcode"), gen.stack());
+            Files.writeString(Paths.get(prefix + ".rcode"), gen.register());
+        } else {
+            System.out.print(reg ? gen.register() : gen.stack());
+        }
+    }
+
+    static void usage() {
+        System.err.println("usage: ProgramGenerator [-seed s] [-functions n] [-depth d] [-trips t]\n" +
+                           "           [-blocks b] [-structs density] [-branches density]\n" +
+                           "           [-constants c] [-reg] [-o prefix]");
+    }
+
+    /** The program as stack VM assembly. */
+    public String stack() { return generate(new StackEmitter()); }
+
+    /** The same program as register VM assembly. */
+    public String register() { return generate(new RegEmitter()); }
+
+    /* Both emitters see the same sequence of random choices */
+    String generate(Emitter out) {
+        Random random = new Random(seed);
+        int levels = Math.min(depth, functions);
+        int constant = 0;
+
+        out.main(roots(levels), random);
+
+        for (int f = 0; f < functions; f++) {
+            int level = level(f, levels);
+            int callee = -1;
+
+            if (level + 1 < levels) {
+                int first = first(level + 1, levels);
+                int end = first(level + 2, levels);
+                callee = first + random.nextInt(end - first);
+            }
+
+            out.enter(f);
+
+            for (int b = 0; b < blocks; b++) {
+                double kind = random.nextDouble();
+                int k = 2 + random.nextInt(8);
+
+                if (kind < structs) {
+                    out.struct(k);
+                } else if (kind < structs + branches) {
+                    out.branch(b, random.nextInt(Math.max(1, trips)), 1 + random.nextInt(100), 1 + random.nextInt(100));
+                } else {
+                    out.arithmetic(k, constant);
+                    constant = (constant + 1) % constants;
+                }
+            }
+
+            out.exit(f, callee);
+        }
+
+        return out.toString();
+    }
+
+    int roots(int levels) { return first(1, levels); }
+
+    /* Functions are split evenly across levels, in order */
+    int level(int f, int levels) { return (int) ((long) f * levels / functions); }
+
+    /* The first function of the level; functions if there is no such level */
+    int first(int level, int levels) {
+        if (level >= levels)
+            return functions;
+
+        return (int) (((long) level * functions + levels - 1) / levels);
+    }
+
+    /**
+     * Writes one VM's assembly for the program generate walks through.
+     *  Every function is int f(int x): acc = x, loop, acc = callee(acc),
+     *  return acc.
+     */
+    abstract class Emitter {
+        final StringBuilder sb = new StringBuilder();
+        int f; // function being emitted
+
+        abstract void main(int roots, Random random);
+
+        abstract void enter(int f);
+
+        abstract void arithmetic(int k, int constant); // float constant.5
+
+        abstract void struct(int k);
+
+        abstract void branch(int b, int bound, int a, int c);
+
+        abstract void exit(int f, int callee);
+
+        Emitter line(String instruction) {
+            sb.append('\t').append(instruction).append('\n');
+
+            return this;
+        }
+
+        Emitter label(String name) {
+            sb.append(name).append(":\n");
+
+            return this;
+        }
+
+        @Override
+        public String toString() { return sb.toString(); }
+    }
+
+    /* locals: 0 x, 1 acc, 2 i, 3 float acc, 4 struct */
+    class StackEmitter extends Emitter {
+
+        void main(int roots, Random random) {
+            sb.append(".def main: args=0, locals=1\n");
+            line("iconst 0").line("store 0");
+
+            for (int r = 0; r < roots; r++)
+                line("load 0").line("iconst " + random.nextInt(1000)).line("call f" + r + "()")
+                    .line("iadd").line("store 0");
+
+            line("load 0").line("print").line("halt");
+        }
+
+        void enter(int f) {
+            this.f = f;
+            sb.append(".def f").append(f).append(": args=1, locals=4\n");
+            line("load 0").line("store 1");
+            line("iconst 0").line("store 2");
+            line("iconst 0").line("itof").line("store 3");
+            label("f" + f + "loop");
+            line("load 2").line("iconst " + trips).line("ilt").line("brf f" + f + "done");
+        }
+
+        void arithmetic(int k, int constant) {
+            line("load 1").line("iconst " + k).line("imul").line("load 2").line("iadd").line("store 1");
+            line("load 3").line("fconst " + constant + ".5").line("fadd").line("store 3");
+        }
+
+        void struct(int k) {
+            line("struct 2").line("store 4");
+            line("load 1").line("load 4").line("fstore 0");
+            line("load 4").line("fload 0").line("iconst " + k).line("iadd").line("store 1");
+        }
+
+        void branch(int b, int bound, int a, int c) {
+            line("load 2").line("iconst " + bound).line("ilt").line("brf f" + f + "else" + b);
+            line("load 1").line("iconst " + a).line("iadd").line("store 1").line("br f" + f + "end" + b);
+            label("f" + f + "else" + b);
+            line("load 1").line("iconst " + c).line("isub").line("store 1");
+            label("f" + f + "end" + b);
+        }
+
+        void exit(int f, int callee) {
+            line("load 2").line("iconst 1").line("iadd").line("store 2").line("br f" + f + "loop");
+            label("f" + f + "done");
+
+            if (callee >= 0)
+                line("load 1").line("call f" + callee + "()").line("store 1");
+
+            line("load 1").line("ret");
+        }
+    }
+
+    /* registers: r1 x, r2 acc, r3 i, r4 float acc, r5 struct, r6 r7 scratch */
+    class RegEmitter extends Emitter {
+
+        void main(int roots, Random random) {
+            sb.append(".def main: args=0, locals=2\n");
+            line("iconst r1, 0");
+
+            for (int r = 0; r < roots; r++)
+                line("iconst r2, " + random.nextInt(1000)).line("call f" + r + "(), r2").line("iadd r1, r0, r1");
+
+            line("print r1").line("halt");
+        }
+
+        void enter(int f) {
+            this.f = f;
+            sb.append(".def f").append(f).append(": args=1, locals=6\n");
+            line("move r1, r2");
+            line("iconst r3, 0");
+            line("iconst r6, 0").line("itof r6, r4");
+            label("f" + f + "loop");
+            line("iconst r6, " + trips).line("ilt r3, r6, r7").line("brf r7, f" + f + "done");
+        }
+
+        void arithmetic(int k, int constant) {
+            line("iconst r6, " + k).line("imul r2, r6, r2").line("iadd r2, r3, r2");
+            line("fconst r6, " + constant + ".5").line("fadd r4, r6, r4");
+        }
+
+        void struct(int k) {
+            line("struct r5, 2");
+            line("fstore r2, r5, 0");
+            line("fload r6, r5, 0").line("iconst r7, " + k).line("iadd r6, r7, r2");
+        }
+
+        void branch(int b, int bound, int a, int c) {
+            line("iconst r6, " + bound).line("ilt r3, r6, r7").line("brf r7, f" + f + "else" + b);
+            line("iconst r6, " + a).line("iadd r2, r6, r2").line("br f" + f + "end" + b);
+            label("f" + f + "else" + b);
+            line("iconst r6, " + c).line("isub r2, r6, r2");
+            label("f" + f + "end" + b);
+        }
+
+        void exit(int f, int callee) {
+            line("iconst r6, 1").line("iadd r3, r6, r3").line("br f" + f + "loop");
+            label("f" + f + "done");
+
+            if (callee >= 0)
+                line("call f" + callee + "(), r2").line("move r0, r2");
+
+            line("move r2, r0").line("ret");
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.jcm.bench;
+
+import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.InterpreterBase;
+import org.jcm.asm.Program;
+import org.jcm.reg.RegInterpreter;
+import org.jcm.stack.StackInterpreter;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Generates programs of 10, 100, 1000 .. max functions with
+ *  ProgramGenerator, all of the same shape and seed, and prints for each
+ *  size and VM: code bytes, constant pool entries, time to assemble, time
+ *  for the load-time analyses that follow (stack depths, struct layouts,
+ *  host functions), time to run, and guest instructions per second.
+ *  Times that grow faster than code size point at a quadratic step.
+ *
+ *  usage: ProgramScaling [-max functions] [-seed s]
+ *
+ * @author jmarchesini
+ */
+public class ProgramScaling {
+
+    public static void main(String[] args) throws Exception {
+        int maxFunctions = 1000;
+        long seed = 1;
+        int i = 0;
+
+        while (i < args.length) {
+            switch (args[i]) {
+                case "-max":
+                    maxFunctions = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    System.err.println("usage: ProgramScaling [-max functions] [-seed s]");
+                    return;
+            }
+        }
+
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        run(false, generator(100, seed), sink); // warm up
+        run(true, generator(100, seed), sink);
+
+        System.out.printf("%-9s %-9s %10s %8s %12s %10s %10s %14s\n",
+            "functions", "vm", "code", "pool", "assemble ms", "load ms", "exec ms", "instr/s");
+
+        for (int n = 10; n <= maxFunctions; n *= 10) {
+            ProgramGenerator gen = generator(n, seed);
+            run(false, gen, sink).print(n, "stack");
+            run(true, gen, sink).print(n, "register");
+        }
+    }
+
+    static ProgramGenerator generator(int functions, long seed) {
+        return new ProgramGenerator().seed(seed).functions(functions).depth(8).trips(10).blocks(20)
+            .constants(functions * 5);
+    }
+
+    static class Row {
+        int code, pool;
+        double assembleMs, loadMs, execMs;
+        long instructions;
+
+        void print(int functions, String vm) {
+            System.out.printf("%-9d %-9s %10d %8d %12.1f %10.1f %10.1f %14.0f\n", functions, vm, code, pool,
+                assembleMs, loadMs, execMs, instructions / (execMs / 1e3));
+        }
+    }
+
+    static Row run(boolean reg, ProgramGenerator gen, PrintStream sink) {
+        BytecodeDefBase bcDef = reg ? new org.jcm.reg.BytecodeDefinition()
+                                    : new org.jcm.stack.BytecodeDefinition();
+        String source = reg ? gen.register() : gen.stack();
+        Row row = new Row();
+
+        long start = System.nanoTime();
+        Program program = Program.assemble(source, bcDef);
+        long total = System.nanoTime() - start;
+
+        if (program.hasErrors())
+            throw new IllegalStateException("generated program does not assemble");
+
+        row.code = program.getCodeSize();
+        row.pool = program.getConstantPool().length;
+        row.assembleMs = program.getAssembleNanos() / 1e6;
+        row.loadMs = (total - program.getAssembleNanos()) / 1e6;
+
+        InterpreterBase interp = reg ? new RegInterpreter(program) : new StackInterpreter(program);
+        interp.setOutput(sink);
+
+        start = System.nanoTime();
+        interp.exec();
+        row.execMs = (System.nanoTime() - start) / 1e6;
+        row.instructions = interp.getInstructionsRetired();
+
+        return row;
+    }
+}
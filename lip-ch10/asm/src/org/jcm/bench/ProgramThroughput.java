@@ -0,0 +1,106 @@
+package org.jcm.bench;
+
+import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.InterpreterBase;
+import org.jcm.asm.Program;
+import org.jcm.reg.RegInterpreter;
+import org.jcm.stack.StackInterpreter;
+
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Assembles a program once, then runs it many times concurrently on
+ *  virtual threads, one interpreter per execution, at increasing levels of
+ *  parallelism.  Executions per second should scale with the number of
+ *  cores since interpreters share nothing but the immutable Program.
+ *
+ *  usage: ProgramThroughput file.pcode|file.rcode [-n executions] [-max parallelism]
+ *
+ * @author jmarchesini
+ */
+public class ProgramThroughput {
+
+    public static void main(String[] args) throws Exception {
+        String filename = null;
+        int executions = 10_000;
+        int maxParallelism = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+
+        while (i < args.length) {
+            switch (args[i]) {
+                case "-n":
+                    executions = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                case "-max":
+                    maxParallelism = Integer.parseInt(args[i + 1]);
+                    i += 2;
+                    break;
+                default:
+                    filename = args[i];
+                    i++;
+                    break;
+            }
+        }
+
+        if (filename == null) {
+            System.err.println("usage: ProgramThroughput file.pcode|file.rcode [-n executions] [-max parallelism]");
+            return;
+        }
+
+        boolean reg = filename.endsWith(".rcode");
+        BytecodeDefBase bcDef = reg ? new org.jcm.reg.BytecodeDefinition()
+                                    : new org.jcm.stack.BytecodeDefinition();
+        Program program = Program.load(new FileInputStream(filename), bcDef);
+
+        if (program.hasErrors())
+            return;
+
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        run(program, reg, sink, executions / 10, maxParallelism); // warm up
+
+        System.out.printf("%-12s %14s %10s\n", "parallelism", "executions/s", "speedup");
+        double base = 0;
+
+        for (int p = 1; p <= maxParallelism; p *= 2) {
+            double rate = run(program, reg, sink, executions, p);
+
+            if (p == 1)
+                base = rate;
+
+            System.out.printf("%-12d %14.0f %9.2fx\n", p, rate, rate / base);
+        }
+    }
+
+    /* Returns executions per second with at most parallelism running at once */
+    static double run(Program program, boolean reg, PrintStream sink, int executions, int parallelism)
+        throws InterruptedException
+    {
+        Semaphore permits = new Semaphore(parallelism);
+        long start = System.nanoTime();
+
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < executions; i++) {
+                permits.acquire();
+                threads.execute(() -> {
+                    try {
+                        InterpreterBase interp = reg ? new RegInterpreter(program)
+                                                     : new StackInterpreter(program);
+                        interp.setOutput(sink);
+                        interp.exec();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+
+        return executions / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -9,6 +9,7 @@
 package org.jcm.reg;
 
 import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.Ops;
 
 public class BytecodeDefinition extends BytecodeDefBase {
 
@@ -42,40 +43,128 @@ public class BytecodeDefinition extends BytecodeDefBase {
     public static final short INSTR_STRUCT = 27;   // create new struct
     public static final short INSTR_NULL = 28;     // load null into register
     public static final short INSTR_HALT = 29;
+    public static final short INSTR_TSTRUCT = 30;  // create new typed struct
+    public static final short INSTR_NEWARRAY = 31; // create new int[] or float[]
+    public static final short INSTR_IALOAD = 32;   // int array element load
+    public static final short INSTR_IASTORE = 33;  // int array element store
+    public static final short INSTR_FALOAD = 34;   // float array element load
+    public static final short INSTR_FASTORE = 35;  // float array element store
+    public static final short INSTR_ARRAYLENGTH = 36;
+    public static final short INSTR_NCALL = 37;    // call host function
+    public static final short INSTR_SPAWN = 38;    // start function on a new thread
+    public static final short INSTR_JOIN = 39;     // wait for spawned function's result
+    public static final short INSTR_GCAS = 40;     // compare and set global
+    public static final short INSTR_GADD = 41;     // atomically add to global
+    public static final short INSTR_NEWCHAN = 42;  // create new channel
+    public static final short INSTR_SEND = 43;     // send to channel, waiting for room
+    public static final short INSTR_RECV = 44;     // receive from channel, waiting for a value
+    public static final short INSTR_TRYSEND = 45;  // send if there is room
+    public static final short INSTR_TRYRECV = 46;  // receive if there is a value
 
+    /* regs() marks each operand 'u' (register read), 'd' (register written)
+     *  or '-'; call reads its args from the base register up and writes r0.
+     *  newarray rd, rlen, 'i' or 'f'; element ops are laid out like fload
+     *  and fstore with an index register in place of the field number.
+     *  ncall and spawn, like call, read args from the base register up and
+     *  write r0, spawn a task for join.  gcas rexp, rnew, g also writes
+     *  r0, with whether it set the global; gadd rd, rdelta, g the sum.
+     *  Channels: newchan rd, rcap; send rv, rch; recv rch, rd;
+     *  trysend rv, rch, rsent; tryrecv rch, rd, rreceived */
     @Override
     public Instruction[] getInstructions() {
         return new Instruction[]{
             null, // <INVALID>
-            new Instruction("iadd", REG, REG, REG), // index is the opcode
-            new Instruction("isub", REG, REG, REG),
-            new Instruction("imul", REG, REG, REG),
-            new Instruction("ilt", REG, REG, REG),
-            new Instruction("ieq", REG, REG, REG),
-            new Instruction("fadd", REG, REG, REG),
-            new Instruction("fsub", REG, REG, REG),
-            new Instruction("fmul", REG, REG, REG),
-            new Instruction("flt", REG, REG, REG),
-            new Instruction("feq", REG, REG, REG),
-            new Instruction("itof", REG, REG),
-            new Instruction("call", FUNC, REG),
-            new Instruction("ret"),
-            new Instruction("br", INT),
-            new Instruction("brt", REG, INT),
-            new Instruction("brf", REG, INT),
-            new Instruction("cconst", REG, INT),
-            new Instruction("iconst", REG, INT),
-            new Instruction("fconst", REG, POOL),
-            new Instruction("sconst", REG, POOL),
-            new Instruction("gload", REG, INT),
-            new Instruction("gstore", REG, INT),
-            new Instruction("fload", REG, REG, INT),
-            new Instruction("fstore", REG, REG, INT),
-            new Instruction("move", REG, REG),
-            new Instruction("print", REG),
-            new Instruction("struct", REG, INT),
-            new Instruction("null", REG),
-            new Instruction("halt")
+            new Instruction("iadd", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(Ops::iadd)), // index is the opcode
+            new Instruction("isub", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(Ops::isub)),
+            new Instruction("imul", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(Ops::imul)),
+            new Instruction("ilt", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(Ops::ilt)),
+            new Instruction("ieq", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(Ops::ieq)),
+            new Instruction("fadd", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(Ops::fadd)),
+            new Instruction("fsub", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(Ops::fsub)),
+            new Instruction("fmul", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(Ops::fmul)),
+            new Instruction("flt", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(Ops::flt)),
+            new Instruction("feq", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter.binary(RegInterpreter::feq)),
+            new Instruction("itof", REG, REG).regs("ud")
+                .handler(RegInterpreter::itof),
+            new Instruction("call", FUNC, REG).regs("--")
+                .handler(RegInterpreter::call),
+            new Instruction("ret").regs("")
+                .handler(RegInterpreter::ret),
+            new Instruction("br", INT).regs("-")
+                .handler(RegInterpreter::br),
+            new Instruction("brt", REG, INT).regs("u-")
+                .handler(RegInterpreter::brt),
+            new Instruction("brf", REG, INT).regs("u-")
+                .handler(RegInterpreter::brf),
+            new Instruction("cconst", REG, INT).regs("d-")
+                .handler(RegInterpreter::cconst),
+            new Instruction("iconst", REG, INT).regs("d-")
+                .handler(RegInterpreter::iconst),
+            new Instruction("fconst", REG, POOL).regs("d-")
+                .handler(RegInterpreter::pconst),
+            new Instruction("sconst", REG, POOL).regs("d-")
+                .handler(RegInterpreter::pconst),
+            new Instruction("gload", REG, INT).regs("d-")
+                .handler(RegInterpreter::gload),
+            new Instruction("gstore", REG, INT).regs("u-")
+                .handler(RegInterpreter::gstore),
+            new Instruction("fload", REG, REG, INT).regs("du-")
+                .handler(RegInterpreter::fload),
+            new Instruction("fstore", REG, REG, INT).regs("uu-")
+                .handler(RegInterpreter::fstore),
+            new Instruction("move", REG, REG).regs("ud")
+                .handler(RegInterpreter::move),
+            new Instruction("print", REG).regs("u")
+                .handler(RegInterpreter::print),
+            new Instruction("struct", REG, INT).regs("d-")
+                .handler(RegInterpreter::struct),
+            new Instruction("null", REG).regs("d")
+                .handler(RegInterpreter::loadNull),
+            new Instruction("halt").regs(""),
+            new Instruction("tstruct", REG, POOL).regs("d-")
+                .handler(RegInterpreter::tstruct),
+            new Instruction("newarray", REG, REG, INT).regs("du-")
+                .handler(RegInterpreter::newarray),
+            new Instruction("iaload", REG, REG, REG).regs("duu")
+                .handler(RegInterpreter::iaload),
+            new Instruction("iastore", REG, REG, REG).regs("uuu")
+                .handler(RegInterpreter::iastore),
+            new Instruction("faload", REG, REG, REG).regs("duu")
+                .handler(RegInterpreter::faload),
+            new Instruction("fastore", REG, REG, REG).regs("uuu")
+                .handler(RegInterpreter::fastore),
+            new Instruction("arraylength", REG, REG).regs("ud")
+                .handler(RegInterpreter::arraylength),
+            new Instruction("ncall", POOL, REG).regs("--")
+                .handler(RegInterpreter::ncall),
+            new Instruction("spawn", FUNC, REG).regs("--")
+                .handler(RegInterpreter::spawn),
+            new Instruction("join", REG, REG).regs("ud")
+                .handler(RegInterpreter::join),
+            new Instruction("gcas", REG, REG, INT).regs("uu-")
+                .handler(RegInterpreter::gcas),
+            new Instruction("gadd", REG, REG, INT).regs("du-")
+                .handler(RegInterpreter::gadd),
+            new Instruction("newchan", REG, REG).regs("du")
+                .handler(RegInterpreter::newchan),
+            new Instruction("send", REG, REG).regs("uu")
+                .handler(RegInterpreter::send),
+            new Instruction("recv", REG, REG).regs("ud")
+                .handler(RegInterpreter::recv),
+            new Instruction("trysend", REG, REG, REG).regs("uud")
+                .handler(RegInterpreter::trysend),
+            new Instruction("tryrecv", REG, REG, REG).regs("udd")
+                .handler(RegInterpreter::tryrecv)
         };
     }
 }
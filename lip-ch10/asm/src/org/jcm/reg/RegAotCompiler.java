@@ -0,0 +1,389 @@
+package org.jcm.reg;
+
+import org.jcm.asm.AotCompiler;
+import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.Program;
+
+import java.lang.reflect.Method;
+import java.util.BitSet;
+
+/**
+ * AotCompiler for register machine code.  Register n of a frame is the
+ *  JVM local rn; a function's args arrive in r1 up and its result is
+ *  whatever is in r0 at ret, which the call copies into the caller's r0,
+ *  as in RegInterpreter.
+ *
+ * @author jmarchesini
+ */
+public class RegAotCompiler extends AotCompiler {
+    private int[] registers; // by function
+
+    public RegAotCompiler(Program program) { super(program); }
+
+    @Override
+    protected void prepare() {
+        registers = new int[functions.length];
+
+        for (int f = 0; f < functions.length; f++) {
+            int n = functions[f].getNumArgs() + functions[f].getNumLocals() + 1;
+
+            for (int b : cfgs[f].reversePostOrder()) {
+                for (int i = cfgs[f].getBlocks()[b].getFirst(); i <= cfgs[f].getBlocks()[b].getLast(); i++) {
+                    for (int k = 0; k < code.operandCount(i); k++) {
+                        if (code.operandKind(i, k) == BytecodeDefBase.REG)
+                            n = Math.max(n, code.operand(i, k) + 1);
+                    }
+
+                    int args = args(i);
+
+                    if (args > 0)
+                        n = Math.max(n, base(i) + args);
+                }
+            }
+
+            registers[f] = n;
+        }
+    }
+
+    /* Number of args of a call, ncall or spawn, which sit in registers from base(i) up */
+    private int args(int i) {
+        switch (code.opcode(i)) {
+            case BytecodeDefinition.INSTR_CALL:
+            case BytecodeDefinition.INSTR_SPAWN:
+                return functions[function(code.operand(i, 0))].getNumArgs();
+            case BytecodeDefinition.INSTR_NCALL:
+                return host(code.operand(i, 0)).getParameterCount();
+            default:
+                return 0;
+        }
+    }
+
+    /* Registers holding the args of a call, ncall or spawn */
+    private int[] argRegs(int i) {
+        int[] regs = new int[args(i)];
+
+        for (int k = 0; k < regs.length; k++)
+            regs[k] = base(i) + k;
+
+        return regs;
+    }
+
+    private int base(int i) { return code.operand(i, 1); }
+
+    @Override
+    protected int numSlots(int f) { return registers[f]; }
+
+    @Override
+    protected int paramSlot(int f, int k) { return k + 1; }
+
+    @Override
+    protected String slotName(int f, int slot) { return "r" + slot; }
+
+    @Override
+    protected void assigns(int f, int i, BitSet written) {
+        String roles = code.instruction(i).getRoles();
+
+        for (int k = 0; k < roles.length(); k++) {
+            if (roles.charAt(k) == 'd')
+                written.set(code.operand(i, k));
+        }
+
+        switch (code.opcode(i)) {
+            case BytecodeDefinition.INSTR_CALL:
+            case BytecodeDefinition.INSTR_NCALL:
+            case BytecodeDefinition.INSTR_SPAWN:
+            case BytecodeDefinition.INSTR_GCAS:
+                written.set(0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    protected void infer(int f, int i, BitSet assigned) {
+        String roles = code.instruction(i).getRoles();
+
+        for (int k = 0; k < roles.length(); k++) {
+            if (roles.charAt(k) == 'u')
+                readType(f, code.operand(i, k), assigned); // may be null
+        }
+
+        int args = args(i);
+
+        for (int k = 0; k < args; k++)
+            readType(f, base(i) + k, assigned);
+
+        int g;
+
+        switch (code.opcode(i)) {
+            case BytecodeDefinition.INSTR_IADD:
+            case BytecodeDefinition.INSTR_ISUB:
+            case BytecodeDefinition.INSTR_IMUL:
+            case BytecodeDefinition.INSTR_ILT:
+            case BytecodeDefinition.INSTR_IEQ:
+            case BytecodeDefinition.INSTR_FADD:
+            case BytecodeDefinition.INSTR_FSUB:
+            case BytecodeDefinition.INSTR_FMUL:
+            case BytecodeDefinition.INSTR_FLT:
+            case BytecodeDefinition.INSTR_FEQ:
+                widenSlot(f, code.operand(i, 2), resultOf(code.opcode(i)));
+                break;
+            case BytecodeDefinition.INSTR_ITOF:
+                widenSlot(f, code.operand(i, 1), FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_ARRAYLENGTH:
+                widenSlot(f, code.operand(i, 1), INT);
+                break;
+            case BytecodeDefinition.INSTR_CALL:
+            case BytecodeDefinition.INSTR_SPAWN:
+                g = function(code.operand(i, 0));
+
+                for (int k = 0; k < args; k++)
+                    widenParam(g, k, slotType(f, base(i) + k));
+
+                widenSlot(f, 0, code.opcode(i) == BytecodeDefinition.INSTR_CALL ? results[g] : OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_RET:
+                widenResult(f, readType(f, 0, assigned));
+                break;
+            case BytecodeDefinition.INSTR_ICONST:
+                widenSlot(f, code.operand(i, 0), INT);
+                break;
+            case BytecodeDefinition.INSTR_FCONST:
+                widenSlot(f, code.operand(i, 0), FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_CCONST:
+            case BytecodeDefinition.INSTR_SCONST:
+            case BytecodeDefinition.INSTR_GLOAD:
+            case BytecodeDefinition.INSTR_FLOAD:
+            case BytecodeDefinition.INSTR_STRUCT:
+            case BytecodeDefinition.INSTR_NULL:
+            case BytecodeDefinition.INSTR_TSTRUCT:
+            case BytecodeDefinition.INSTR_NEWARRAY:
+            case BytecodeDefinition.INSTR_GADD:
+            case BytecodeDefinition.INSTR_NEWCHAN:
+                widenSlot(f, code.operand(i, 0), OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_MOVE:
+                widenSlot(f, code.operand(i, 1), slotType(f, code.operand(i, 0)));
+                break;
+            case BytecodeDefinition.INSTR_IALOAD:
+                widenSlot(f, code.operand(i, 0), INT);
+                break;
+            case BytecodeDefinition.INSTR_FALOAD:
+                widenSlot(f, code.operand(i, 0), FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_NCALL:
+                widenSlot(f, 0, typeOf(host(code.operand(i, 0)).getReturnType()));
+                break;
+            case BytecodeDefinition.INSTR_JOIN:
+            case BytecodeDefinition.INSTR_RECV:
+                widenSlot(f, code.operand(i, 1), OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_GCAS:
+                widenSlot(f, 0, BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_TRYSEND:
+                widenSlot(f, code.operand(i, 2), BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_TRYRECV:
+                widenSlot(f, code.operand(i, 1), OBJECT);
+                widenSlot(f, code.operand(i, 2), BOOLEAN);
+                break;
+            default: // writes no register
+                break;
+        }
+    }
+
+    private static int resultOf(int opcode) {
+        switch (opcode) {
+            case BytecodeDefinition.INSTR_IADD:
+            case BytecodeDefinition.INSTR_ISUB:
+            case BytecodeDefinition.INSTR_IMUL:
+                return INT;
+            case BytecodeDefinition.INSTR_FADD:
+            case BytecodeDefinition.INSTR_FSUB:
+            case BytecodeDefinition.INSTR_FMUL:
+                return FLOAT;
+            default:
+                return BOOLEAN;
+        }
+    }
+
+    @Override
+    protected void emit(int f, int i, String indent, StringBuilder out) {
+        int n = code.operandCount(i);
+        int i0 = n > 0 ? code.operand(i, 0) : 0;
+        int i1 = n > 1 ? code.operand(i, 1) : 0;
+        int i2 = n > 2 ? code.operand(i, 2) : 0;
+        String r0 = slotName(f, i0); // as register names, where they are registers
+        String r1 = slotName(f, i1);
+        String array;
+        int g;
+
+        switch (code.opcode(i)) {
+            case BytecodeDefinition.INSTR_IADD:
+                set(out, indent, f, i2, "(" + get(f, i0, INT) + " + " + get(f, i1, INT) + ")", INT);
+                break;
+            case BytecodeDefinition.INSTR_ISUB:
+                set(out, indent, f, i2, "(" + get(f, i0, INT) + " - " + get(f, i1, INT) + ")", INT);
+                break;
+            case BytecodeDefinition.INSTR_IMUL:
+                set(out, indent, f, i2, "(" + get(f, i0, INT) + " * " + get(f, i1, INT) + ")", INT);
+                break;
+            case BytecodeDefinition.INSTR_ILT:
+                set(out, indent, f, i2, "(" + get(f, i0, INT) + " < " + get(f, i1, INT) + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_IEQ:
+                set(out, indent, f, i2, "(" + get(f, i0, INT) + " == " + get(f, i1, INT) + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_FADD:
+                set(out, indent, f, i2, "(" + get(f, i0, FLOAT) + " + " + get(f, i1, FLOAT) + ")", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_FSUB:
+                set(out, indent, f, i2, "(" + get(f, i0, FLOAT) + " - " + get(f, i1, FLOAT) + ")", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_FMUL:
+                set(out, indent, f, i2, "(" + get(f, i0, FLOAT) + " * " + get(f, i1, FLOAT) + ")", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_FLT:
+                set(out, indent, f, i2, "(" + get(f, i0, FLOAT) + " < " + get(f, i1, FLOAT) + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_FEQ: // truncated, see RegInterpreter.feq()
+                set(out, indent, f, i2,
+                    "((int) " + get(f, i0, FLOAT) + " == (int) " + get(f, i1, FLOAT) + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_ITOF:
+                set(out, indent, f, i1, "((float) " + get(f, i0, INT) + ")", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_CALL:
+                g = function(i0);
+                set(out, indent, f, 0, call(f, g, argRegs(i)), results[g]);
+                break;
+            case BytecodeDefinition.INSTR_RET:
+                out.append(indent).append("return ").append(get(f, 0, results[f])).append(";\n");
+                break;
+            case BytecodeDefinition.INSTR_BR:
+                out.append(indent).append(jump(f, i0)).append('\n');
+                break;
+            case BytecodeDefinition.INSTR_BRT:
+                out.append(indent).append("if (").append(get(f, i0, BOOLEAN)).append(") { ")
+                    .append(jump(f, i1)).append(" }\n");
+                break;
+            case BytecodeDefinition.INSTR_BRF:
+                out.append(indent).append("if (!").append(get(f, i0, BOOLEAN)).append(") { ")
+                    .append(jump(f, i1)).append(" }\n");
+                break;
+            case BytecodeDefinition.INSTR_CCONST:
+                set(out, indent, f, i0, "(char) " + i1, OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_ICONST:
+                set(out, indent, f, i0, String.valueOf(i1), INT);
+                break;
+            case BytecodeDefinition.INSTR_FCONST:
+                set(out, indent, f, i0, literal(constPool[i1]), FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_SCONST:
+                set(out, indent, f, i0, literal(constPool[i1]), OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_GLOAD:
+                set(out, indent, f, i0, "G[" + i1 + "]", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_GSTORE:
+                out.append(indent).append("G[").append(i1).append("] = ").append(r0).append(";\n");
+                break;
+            case BytecodeDefinition.INSTR_FLOAD:  // rd, rstruct, field
+                set(out, indent, f, i0, "Ops.fload(" + r1 + ", " + i2 + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_FSTORE: // rv, rstruct, field
+                out.append(indent).append("Ops.fstore(").append(r1).append(", ").append(i2).append(", ")
+                    .append(r0).append(");\n");
+                break;
+            case BytecodeDefinition.INSTR_MOVE:
+                set(out, indent, f, i1, r0, slotType(f, i0));
+                break;
+            case BytecodeDefinition.INSTR_PRINT:
+                out.append(indent).append("AotRuntime.print(").append(r0).append(");\n");
+                break;
+            case BytecodeDefinition.INSTR_STRUCT:
+                set(out, indent, f, i0, "new StructSpace(" + i1 + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_NULL:
+                set(out, indent, f, i0, "null", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_HALT:
+                out.append(indent).append("throw AotRuntime.HALT;\n");
+                break;
+            case BytecodeDefinition.INSTR_TSTRUCT:
+                set(out, indent, f, i0, "AotRuntime.tstruct(" + layout(i1) + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_NEWARRAY: // rd, rlength, kind
+                if (i2 == 'i' || i2 == 'f')
+                    set(out, indent, f, i0, "new " + (i2 == 'i' ? "int[" : "float[") + get(f, i1, INT) + "]", OBJECT);
+                else
+                    set(out, indent, f, i0, "Ops.newarray(" + i2 + ", " + r1 + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_IALOAD:   // rd, rarray, rindex
+                array = cast("int[]", r1, slotType(f, i1));
+                set(out, indent, f, i0, array + "[" + get(f, i2, INT) + "]", INT);
+                break;
+            case BytecodeDefinition.INSTR_FALOAD:
+                array = cast("float[]", r1, slotType(f, i1));
+                set(out, indent, f, i0, array + "[" + get(f, i2, INT) + "]", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_IASTORE:  // rv, rarray, rindex
+                array = cast("int[]", r1, slotType(f, i1));
+                out.append(indent).append(array).append('[').append(get(f, i2, INT)).append("] = ")
+                    .append(get(f, i0, INT)).append(";\n");
+                break;
+            case BytecodeDefinition.INSTR_FASTORE:
+                array = cast("float[]", r1, slotType(f, i1));
+                out.append(indent).append(array).append('[').append(get(f, i2, INT)).append("] = ")
+                    .append(get(f, i0, FLOAT)).append(";\n");
+                break;
+            case BytecodeDefinition.INSTR_ARRAYLENGTH:
+                set(out, indent, f, i1, "AotRuntime.arraylength(" + r0 + ")", INT);
+                break;
+            case BytecodeDefinition.INSTR_NCALL:
+                emitHostCall(out, indent, f, host(i0), argRegs(i), 0);
+                break;
+            case BytecodeDefinition.INSTR_SPAWN:
+                emitSpawn(out, indent, f, function(i0), argRegs(i), 0);
+                break;
+            case BytecodeDefinition.INSTR_JOIN:
+                set(out, indent, f, i1, "AotRuntime.join(" + r0 + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_GCAS:   // rexpected, rnew, global
+                set(out, indent, f, 0, "Ops.gcas(G, " + i2 + ", " + r0 + ", " + r1 + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_GADD:   // rd, rdelta, global
+                set(out, indent, f, i0, "Ops.gadd(G, " + i2 + ", " + r1 + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_NEWCHAN:
+                set(out, indent, f, i0, "new Channel(" + get(f, i1, INT) + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_SEND:   // rv, rchannel
+                out.append(indent).append(cast("Channel", r1, slotType(f, i1))).append(".send(").append(r0)
+                    .append(");\n");
+                break;
+            case BytecodeDefinition.INSTR_RECV:   // rchannel, rd
+                set(out, indent, f, i1, cast("Channel", r0, slotType(f, i0)) + ".receive()", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_TRYSEND:
+                set(out, indent, f, i2, cast("Channel", r1, slotType(f, i1)) + ".offer(" + r0 + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_TRYRECV: // rchannel, rd, rreceived
+                out.append(indent).append("{\n");
+                out.append(indent).append("    Object v = ").append(cast("Channel", r0, slotType(f, i0)))
+                    .append(".poll();\n");
+                set(out, indent + "    ", f, i2, "(v != Channel.EMPTY)", BOOLEAN);
+                set(out, indent + "    ", f, i1, "(v != Channel.EMPTY ? v : null)", OBJECT);
+                out.append(indent).append("}\n");
+                break;
+            default:
+                throw new IllegalArgumentException("cannot translate opcode " + code.opcode(i) +
+                    " at " + code.offset(i));
+        }
+    }
+}
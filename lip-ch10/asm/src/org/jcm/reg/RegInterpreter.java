@@ -8,16 +8,33 @@
 */
 package org.jcm.reg;
 
+import org.jcm.asm.AotCompiler;
+import org.jcm.asm.Channel;
 import org.jcm.asm.FunctionSymbol;
+import org.jcm.asm.GuestEvents;
+import org.jcm.asm.GuestTask;
+import org.jcm.asm.HostFunction;
+import org.jcm.asm.InstructionHandler;
 import org.jcm.asm.InterpreterBase;
+import org.jcm.asm.Ops;
+import org.jcm.asm.Program;
 import org.jcm.asm.StructSpace;
+import org.jcm.asm.TypedStruct;
+
+import java.util.Arrays;
+import java.util.function.BinaryOperator;
 
 /**
  * A simple register-based interpreter - pattern 28
  */
 public class RegInterpreter extends InterpreterBase {
 
-    StackFrame[] calls = new StackFrame[DEFAULT_CALL_STACK_SIZE];
+    StackFrame[] calls = new StackFrame[INITIAL_CALL_STACK_SIZE];
+
+    public RegInterpreter() { }
+
+    /** An interpreter for program; share one Program among many of these. */
+    public RegInterpreter(Program program) { super(program); }
 
     public static void main(String[] args) throws Exception {
         RegInterpreter ri = new RegInterpreter();
@@ -26,27 +43,55 @@ public class RegInterpreter extends InterpreterBase {
     }
 
     @Override
-    protected void exec() {
+    protected void enter() {
         // simulate "call main()" - set up stack and start at addr 0
         if (mainFunction == null)
-            mainFunction = new FunctionSymbol("main", 0, 0, 0);
+            mainFunction = implicitMain();
 
-        StackFrame f = new StackFrame(mainFunction, ip);
+        // returning from main runs off the end of code memory
+        StackFrame f = new StackFrame(mainFunction, codeSize);
         calls[++fp] = f;
         ip = mainFunction.getAddress();
-        cpu();
+    }
+
+    @Override
+    protected FunctionSymbol frameFunction(int i) { return calls[i].sym; }
+
+    @Override
+    protected int frameReturnAddress(int i) { return calls[i].returnAddress; }
+
+    @Override
+    protected Object[] frameSlots(int i) { return calls[i].registers; }
+
+    @Override
+    protected Object[] pushFrame(FunctionSymbol sym, int returnAddress) {
+        StackFrame frame = new StackFrame(sym, returnAddress);
+
+        if (fp + 1 == calls.length)
+            calls = Arrays.copyOf(calls, growCallStack(calls.length));
+
+        calls[++fp] = frame;
+
+        return frame.registers;
     }
 
     /* Interpreter's fetch-decode-execute cycle */
-    private void cpu() {
+    @Override
+    protected void cpu() {
         int i, j, k, addr, fieldIndex;
-        short opcode = code[ip];
+        long retired = 0;
+
+        status = HALTED;
+
+        loop:
+        while (ip < codeSize) {
+            short opcode = code[ip];
 
-        while (opcode != BytecodeDefinition.INSTR_HALT && ip < codeSize) {
-            if (trace)
-                trace();
+            if (opcode == BytecodeDefinition.INSTR_HALT)
+                break;
 
             ip++; //jump to next instruction or first byte of operand
+            retired++;
 
             Object[] r = calls[fp].registers; // shortcut to current registers
 
@@ -120,26 +165,29 @@ public class RegInterpreter extends InterpreterBase {
                     int funcStringIndex = getIntOperand();
                     int baseRegisterIndex = getRegOperand();
                     call(funcStringIndex, baseRegisterIndex);
+                    if (safePoint()) break loop;
                     break;
                 case BytecodeDefinition.INSTR_RET:
+                    if (isSampledCall()) endSampledCall();
                     StackFrame f = calls[fp--]; // pop stack frame
-                    calls[fp].registers[0] = f.registers[0];
+                    if (fp >= 0) calls[fp].registers[0] = f.registers[0];
                     ip = f.returnAddress;
+                    transferred(ip);
                     break;
                 case BytecodeDefinition.INSTR_BR:
-                    ip = getIntOperand();
+                    if (jump(getIntOperand())) break loop;
                     break;
                 case BytecodeDefinition.INSTR_BRT:
                     i = getRegOperand();
                     addr = getIntOperand();
                     Boolean bv = (Boolean) r[i];
-                    if (bv) ip = addr;
+                    if (branch(bv, addr)) break loop;
                     break;
                 case BytecodeDefinition.INSTR_BRF:
                     i = getRegOperand();
                     addr = getIntOperand();
                     Boolean bv2 = (Boolean) r[i];
-                    if (!bv2) ip = addr;
+                    if (branch(!bv2, addr)) break loop;
                     break;
                 case BytecodeDefinition.INSTR_CCONST:
                     i = getRegOperand();
@@ -169,13 +217,19 @@ public class RegInterpreter extends InterpreterBase {
                     i = getRegOperand();
                     j = getRegOperand();
                     fieldIndex = getRegOperand();
-                    r[i] = ((StructSpace) r[j]).getFields()[fieldIndex];
+                    if (r[j] instanceof TypedStruct)
+                        r[i] = ((TypedStruct) r[j]).get(fieldIndex);
+                    else
+                        r[i] = ((StructSpace) r[j]).getFields()[fieldIndex];
                     break;
                 case BytecodeDefinition.INSTR_FSTORE:
                     i = getRegOperand();
                     j = getRegOperand();
                     fieldIndex = getRegOperand();
-                    ((StructSpace) r[j]).getFields()[fieldIndex] = r[i];
+                    if (r[j] instanceof TypedStruct)
+                        ((TypedStruct) r[j]).set(fieldIndex, r[i]);
+                    else
+                        ((StructSpace) r[j]).getFields()[fieldIndex] = r[i];
                     break;
                 case BytecodeDefinition.INSTR_MOVE:
                     i = getRegOperand();
@@ -184,28 +238,119 @@ public class RegInterpreter extends InterpreterBase {
                     break;
                 case BytecodeDefinition.INSTR_PRINT:
                     i = getRegOperand();
-                    System.out.println(r[i]);
+                    print(r[i]);
                     break;
                 case BytecodeDefinition.INSTR_STRUCT:
                     i = getRegOperand();
                     int nfields = getIntOperand();
                     r[i] = new StructSpace(nfields);
+                    structAllocations++;
+                    if (GuestEvents.structsEnabled()) structAllocated(nfields);
                     break;
                 case BytecodeDefinition.INSTR_NULL:
                     i = getRegOperand();
                     r[i] = null;
                     break;
+                case BytecodeDefinition.INSTR_TSTRUCT:
+                    i = getRegOperand();
+                    r[i] = newTypedStruct(getIntOperand());
+                    break;
+                case BytecodeDefinition.INSTR_NEWARRAY:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    r[i] = Ops.newarray(getIntOperand(), r[j]);
+                    break;
+                case BytecodeDefinition.INSTR_IALOAD:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    k = getRegOperand();
+                    r[i] = Ops.iaload(r[j], r[k]);
+                    break;
+                case BytecodeDefinition.INSTR_IASTORE:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    k = getRegOperand();
+                    Ops.iastore(r[j], r[k], r[i]);
+                    break;
+                case BytecodeDefinition.INSTR_FALOAD:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    k = getRegOperand();
+                    r[i] = Ops.faload(r[j], r[k]);
+                    break;
+                case BytecodeDefinition.INSTR_FASTORE:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    k = getRegOperand();
+                    Ops.fastore(r[j], r[k], r[i]);
+                    break;
+                case BytecodeDefinition.INSTR_ARRAYLENGTH:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    r[j] = Ops.arraylength(r[i]);
+                    break;
+                case BytecodeDefinition.INSTR_NCALL:
+                    HostFunction host = hostFunctions[getIntOperand()];
+                    r[0] = host.invoke(r, getRegOperand());
+                    break;
+                case BytecodeDefinition.INSTR_SPAWN:
+                    FunctionSymbol spawned = (FunctionSymbol) constPool[getIntOperand()];
+                    r[0] = startTask(spawned, r, getRegOperand());
+                    break;
+                case BytecodeDefinition.INSTR_JOIN:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    r[j] = ((GuestTask) r[i]).join();
+                    break;
+                case BytecodeDefinition.INSTR_GCAS:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    r[0] = Ops.gcas(globals, getIntOperand(), r[i], r[j]);
+                    break;
+                case BytecodeDefinition.INSTR_GADD:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    r[i] = Ops.gadd(globals, getIntOperand(), r[j]);
+                    break;
+                case BytecodeDefinition.INSTR_NEWCHAN:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    r[i] = new Channel((Integer) r[j]);
+                    break;
+                case BytecodeDefinition.INSTR_SEND:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    ((Channel) r[j]).send(r[i]);
+                    break;
+                case BytecodeDefinition.INSTR_RECV:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    r[j] = ((Channel) r[i]).receive();
+                    break;
+                case BytecodeDefinition.INSTR_TRYSEND:
+                    i = getRegOperand();
+                    j = getRegOperand();
+                    r[getRegOperand()] = ((Channel) r[j]).offer(r[i]);
+                    break;
+                case BytecodeDefinition.INSTR_TRYRECV:
+                    tryrecv(r);
+                    break;
                 default:
                     throw new Error("invalid opcode: " + opcode + " at ip=" + (ip - 1));
             }
-            opcode = code[ip];
         }
+
+        instructionsRetired += retired;
     }
 
     private void call(int functionConstPoolIndex, int baseRegisterIndex) {
         FunctionSymbol fs = (FunctionSymbol) constPool[functionConstPoolIndex];
         StackFrame f = new StackFrame(fs, ip);
         StackFrame callingFrame = calls[fp];
+
+        if (fp + 1 == calls.length)
+            calls = Arrays.copyOf(calls, growCallStack(calls.length));
+
         calls[++fp] = f;
 
         // move args, leaving room for r0
@@ -213,47 +358,333 @@ public class RegInterpreter extends InterpreterBase {
             System.arraycopy(callingFrame.registers, baseRegisterIndex, f.registers, 1, fs.getNumArgs());
 
         ip = fs.getAddress(); // branch to function
+        callCount++;
+        transferred(ip);
+        coverage.mark(ip);
     }
 
     private int getRegOperand() { return getIntOperand(); }
 
-    private void trace() {
-        disasm.disassembleInstruction(ip);
+    /* tryrecv rch, rd, rreceived; rd is null if there was no value */
+    private void tryrecv(Object[] r) {
+        int i = getRegOperand();
+        int j = getRegOperand();
+        int k = getRegOperand();
+        Object v = ((Channel) r[i]).poll();
+        r[k] = v != Channel.EMPTY;
+        r[j] = v != Channel.EMPTY ? v : null;
+    }
+
+    @Override
+    protected InterpreterBase fork(FunctionSymbol f, Object[] args, int first) {
+        RegInterpreter child = new RegInterpreter(program);
+        StackFrame frame = new StackFrame(f, codeSize); // returning runs off the end
+
+        System.arraycopy(args, first, frame.registers, 1, f.getNumArgs());
+        child.calls[++child.fp] = frame;
+        child.ip = f.getAddress();
+        child.status = YIELDED; // entered; run() continues at ip
+
+        return child;
+    }
+
+    /* ret left the frame in calls[0], with the result in its r0 */
+    @Override
+    protected Object forkResult() { return calls[0].registers[0]; }
+
+    @Override
+    protected AotCompiler newAotCompiler(Program program) { return new RegAotCompiler(program); }
+
+    /* Instruction handlers, attached in BytecodeDefinition; see HandlerDispatch */
+
+    static InstructionHandler<RegInterpreter> binary(BinaryOperator<Object> op) {
+        return vm -> {
+            Object[] r = vm.calls[vm.fp].registers;
+            int i = vm.getRegOperand();
+            int j = vm.getRegOperand();
+            r[vm.getRegOperand()] = op.apply(r[i], r[j]);
+            return false;
+        };
+    }
+
+    /* feq here has always compared the truncated values; keep it so */
+    static Object feq(Object a, Object b) {
+        return ((Float) a).intValue() == ((Float) b).intValue();
+    }
+
+    static boolean itof(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        r[vm.getRegOperand()] = Ops.itof(r[i]);
+        return false;
+    }
+
+    static boolean call(RegInterpreter vm) {
+        int funcIndex = vm.getIntOperand();
+        vm.call(funcIndex, vm.getRegOperand());
+        return vm.safePoint();
+    }
+
+    static boolean ret(RegInterpreter vm) {
+        if (vm.isSampledCall()) vm.endSampledCall();
+        StackFrame f = vm.calls[vm.fp--];
+        if (vm.fp >= 0) vm.calls[vm.fp].registers[0] = f.registers[0];
+        vm.ip = f.returnAddress;
+        vm.transferred(vm.ip);
+        return false;
+    }
+
+    static boolean br(RegInterpreter vm) { return vm.jump(vm.getIntOperand()); }
+
+    static boolean brt(RegInterpreter vm) {
+        Object v = vm.calls[vm.fp].registers[vm.getRegOperand()];
+        int addr = vm.getIntOperand();
+        return vm.branch((Boolean) v, addr);
+    }
+
+    static boolean brf(RegInterpreter vm) {
+        Object v = vm.calls[vm.fp].registers[vm.getRegOperand()];
+        int addr = vm.getIntOperand();
+        return vm.branch(!(Boolean) v, addr);
+    }
+
+    static boolean cconst(RegInterpreter vm) {
+        int i = vm.getRegOperand();
+        vm.calls[vm.fp].registers[i] = (char) vm.getIntOperand();
+        return false;
+    }
+
+    static boolean iconst(RegInterpreter vm) {
+        int i = vm.getRegOperand();
+        vm.calls[vm.fp].registers[i] = vm.getIntOperand();
+        return false;
+    }
+
+    static boolean pconst(RegInterpreter vm) { // fconst, sconst
+        int i = vm.getRegOperand();
+        vm.calls[vm.fp].registers[i] = vm.constPool[vm.getIntOperand()];
+        return false;
+    }
+
+    static boolean gload(RegInterpreter vm) {
+        int i = vm.getRegOperand();
+        vm.calls[vm.fp].registers[i] = vm.globals[vm.getIntOperand()];
+        return false;
+    }
+
+    static boolean gstore(RegInterpreter vm) {
+        Object v = vm.calls[vm.fp].registers[vm.getRegOperand()];
+        vm.globals[vm.getIntOperand()] = v;
+        return false;
+    }
+
+    static boolean fload(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        r[i] = Ops.fload(r[j], vm.getRegOperand());
+        return false;
+    }
+
+    static boolean fstore(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        Ops.fstore(r[j], vm.getRegOperand(), r[i]);
+        return false;
+    }
+
+    static boolean move(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        r[vm.getRegOperand()] = r[i];
+        return false;
+    }
+
+    static boolean print(RegInterpreter vm) {
+        vm.print(vm.calls[vm.fp].registers[vm.getRegOperand()]);
+        return false;
+    }
+
+    static boolean struct(RegInterpreter vm) {
+        int i = vm.getRegOperand();
+        int numFields = vm.getIntOperand();
+        vm.calls[vm.fp].registers[i] = new StructSpace(numFields);
+        vm.structAllocations++;
+        if (GuestEvents.structsEnabled()) vm.structAllocated(numFields);
+        return false;
+    }
+
+    static boolean tstruct(RegInterpreter vm) {
+        int i = vm.getRegOperand();
+        vm.calls[vm.fp].registers[i] = vm.newTypedStruct(vm.getIntOperand());
+        return false;
+    }
+
+    static boolean newarray(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        r[i] = Ops.newarray(vm.getIntOperand(), r[j]);
+        return false;
+    }
+
+    static boolean iaload(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        r[i] = Ops.iaload(r[j], r[vm.getRegOperand()]);
+        return false;
+    }
+
+    static boolean iastore(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        Ops.iastore(r[j], r[vm.getRegOperand()], r[i]);
+        return false;
+    }
+
+    static boolean faload(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        r[i] = Ops.faload(r[j], r[vm.getRegOperand()]);
+        return false;
+    }
+
+    static boolean fastore(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        Ops.fastore(r[j], r[vm.getRegOperand()], r[i]);
+        return false;
+    }
+
+    static boolean arraylength(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        r[vm.getRegOperand()] = Ops.arraylength(r[i]);
+        return false;
+    }
+
+    static boolean ncall(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        HostFunction host = vm.hostFunctions[vm.getIntOperand()];
+        r[0] = host.invoke(r, vm.getRegOperand());
+        return false;
+    }
+
+    static boolean spawn(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        FunctionSymbol f = (FunctionSymbol) vm.constPool[vm.getIntOperand()];
+        r[0] = vm.startTask(f, r, vm.getRegOperand());
+        return false;
+    }
+
+    static boolean join(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        r[vm.getRegOperand()] = ((GuestTask) r[i]).join();
+        return false;
+    }
+
+    static boolean gcas(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        r[0] = Ops.gcas(vm.globals, vm.getIntOperand(), r[i], r[j]);
+        return false;
+    }
+
+    static boolean gadd(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        r[i] = Ops.gadd(vm.globals, vm.getIntOperand(), r[j]);
+        return false;
+    }
+
+    static boolean newchan(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        r[i] = new Channel((Integer) r[vm.getRegOperand()]);
+        return false;
+    }
+
+    static boolean send(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        ((Channel) r[vm.getRegOperand()]).send(r[i]);
+        return false;
+    }
+
+    static boolean recv(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        r[vm.getRegOperand()] = ((Channel) r[i]).receive();
+        return false;
+    }
+
+    static boolean trysend(RegInterpreter vm) {
+        Object[] r = vm.calls[vm.fp].registers;
+        int i = vm.getRegOperand();
+        int j = vm.getRegOperand();
+        r[vm.getRegOperand()] = ((Channel) r[j]).offer(r[i]);
+        return false;
+    }
+
+    static boolean tryrecv(RegInterpreter vm) {
+        vm.tryrecv(vm.calls[vm.fp].registers);
+        return false;
+    }
+
+    static boolean loadNull(RegInterpreter vm) {
+        vm.calls[vm.fp].registers[vm.getRegOperand()] = null;
+        return false;
+    }
+
+    @Override
+    protected void trace() {
+        getDisAssembler().disassembleInstruction(ip, out);
         Object[] r = calls[fp].registers;
 
         if (r.length > 0) {
-            System.out.print("\t" + calls[fp].sym.getName() + ".registers=[");
+            out.print('\t');
+            out.print(calls[fp].sym.getName());
+            out.print(".registers=[");
 
             for (int i = 0; i < r.length; i++) {
                 if (i == 1)
-                    System.out.print(" |");
+                    out.print(" |");
 
                 if (i == calls[fp].sym.getNumArgs() + 1 && i == 1)
-                    System.out.print("|");
+                    out.print("|");
                 else if (i == calls[fp].sym.getNumArgs() + 1)
-                    System.out.print(" |");
+                    out.print(" |");
 
-                System.out.print(" ");
+                out.print(" ");
 
                 if (r[i] == null)
-                    System.out.print("?");
+                    out.print("?");
                 else
-                    System.out.print(r[i]);
+                    out.print(r[i]);
             }
 
-            System.out.print(" ]");
+            out.print(" ]");
         }
 
         if (fp >= 0) {
-            System.out.print("  calls=[");
+            out.print("  calls=[");
 
             for (int i = 0; i <= fp; i++) {
-                System.out.print(" " + calls[i].sym.getName());
+                out.print(' ');
+                out.print(calls[i].sym.getName());
             }
 
-            System.out.print(" ]");
+            out.print(" ]");
         }
 
-        System.out.println();
+        out.println();
     }
 }
@@ -9,6 +9,7 @@
 package org.jcm.stack;
 
 import org.jcm.asm.BytecodeDefBase;
+import org.jcm.asm.Ops;
 
 public class BytecodeDefinition extends BytecodeDefBase {
 
@@ -44,42 +45,134 @@ public class BytecodeDefinition extends BytecodeDefBase {
     public static final short INSTR_NULL = 29;   // push null onto stack
     public static final short INSTR_POP = 30;    // throw away top of stack
     public static final short INSTR_HALT = 31;
+    public static final short INSTR_TSTRUCT = 32; // push new typed struct
+    public static final short INSTR_NEWARRAY = 33; // push new int[] or float[]
+    public static final short INSTR_IALOAD = 34;   // int array element load
+    public static final short INSTR_IASTORE = 35;  // int array element store
+    public static final short INSTR_FALOAD = 36;   // float array element load
+    public static final short INSTR_FASTORE = 37;  // float array element store
+    public static final short INSTR_ARRAYLENGTH = 38;
+    public static final short INSTR_NCALL = 39;    // call host function
+    public static final short INSTR_SPAWN = 40;    // start function on a new thread
+    public static final short INSTR_JOIN = 41;     // wait for spawned function's result
+    public static final short INSTR_GCAS = 42;     // compare and set global
+    public static final short INSTR_GADD = 43;     // atomically add to global
+    public static final short INSTR_NEWCHAN = 44;  // push new channel
+    public static final short INSTR_SEND = 45;     // send to channel, waiting for room
+    public static final short INSTR_RECV = 46;     // receive from channel, waiting for a value
+    public static final short INSTR_TRYSEND = 47;  // send if there is room
+    public static final short INSTR_TRYRECV = 48;  // receive if there is a value
 
+    /* stack(pops, pushes) is each instruction's operand stack effect; call's
+     *  pops are its callee's args and its push the (possible) return value.
+     *  newarray 'i' or 'f' pops a length; the element ops take array, index
+     *  (and value) in push order, as in the JVM.  ncall replaces its host
+     *  function's args with the result, and spawn its function's args with
+     *  a task for join; OperandStackDepth pops those args as it does
+     *  call's.  gcas pops expected and new values and pushes whether it
+     *  set the global; gadd pops the delta and pushes the sum.  newchan
+     *  pops a capacity; send and trysend take channel and value in push
+     *  order, trysend pushing whether it sent; tryrecv pushes the value
+     *  (null if none) and then whether it got one */
     @Override
     public Instruction[] getInstructions() {
         return new Instruction[] {
             null, // <INVALID>
-            new Instruction("iadd"), // index is the opcode
-            new Instruction("isub"),
-            new Instruction("imul"),
-            new Instruction("ilt"),
-            new Instruction("ieq"),
-            new Instruction("fadd"),
-            new Instruction("fsub"),
-            new Instruction("fmul"),
-            new Instruction("flt"),
-            new Instruction("feq"),
-            new Instruction("itof"),
-            new Instruction("call", FUNC),
-            new Instruction("ret"),
-            new Instruction("br", INT),
-            new Instruction("brt", INT),
-            new Instruction("brf", INT),
-            new Instruction("cconst", INT),
-            new Instruction("iconst", INT),
-            new Instruction("fconst", POOL),
-            new Instruction("sconst", POOL),
-            new Instruction("load", INT),
-            new Instruction("gload", INT),
-            new Instruction("fload", INT),
-            new Instruction("store", INT),
-            new Instruction("gstore", INT),
-            new Instruction("fstore", INT),
-            new Instruction("print"),
-            new Instruction("struct", INT),
-            new Instruction("null"),
-            new Instruction("pop"),
-            new Instruction("halt")
+            new Instruction("iadd").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::iadd)), // index is the opcode
+            new Instruction("isub").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::isub)),
+            new Instruction("imul").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::imul)),
+            new Instruction("ilt").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::ilt)),
+            new Instruction("ieq").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::ieq)),
+            new Instruction("fadd").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::fadd)),
+            new Instruction("fsub").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::fsub)),
+            new Instruction("fmul").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::fmul)),
+            new Instruction("flt").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::flt)),
+            new Instruction("feq").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::feq)),
+            new Instruction("itof").stack(1, 1)
+                .handler(StackInterpreter::itof),
+            new Instruction("call", FUNC).stack(0, 1)
+                .handler(StackInterpreter::call),
+            new Instruction("ret").stack(0, 0)
+                .handler(StackInterpreter::ret),
+            new Instruction("br", INT).stack(0, 0)
+                .handler(StackInterpreter::br),
+            new Instruction("brt", INT).stack(1, 0)
+                .handler(StackInterpreter::brt),
+            new Instruction("brf", INT).stack(1, 0)
+                .handler(StackInterpreter::brf),
+            new Instruction("cconst", INT).stack(0, 1)
+                .handler(StackInterpreter::cconst),
+            new Instruction("iconst", INT).stack(0, 1)
+                .handler(StackInterpreter::iconst),
+            new Instruction("fconst", POOL).stack(0, 1)
+                .handler(StackInterpreter::pconst),
+            new Instruction("sconst", POOL).stack(0, 1)
+                .handler(StackInterpreter::pconst),
+            new Instruction("load", INT).stack(0, 1)
+                .handler(StackInterpreter::load),
+            new Instruction("gload", INT).stack(0, 1)
+                .handler(StackInterpreter::gload),
+            new Instruction("fload", INT).stack(1, 1)
+                .handler(StackInterpreter::fload),
+            new Instruction("store", INT).stack(1, 0)
+                .handler(StackInterpreter::store),
+            new Instruction("gstore", INT).stack(1, 0)
+                .handler(StackInterpreter::gstore),
+            new Instruction("fstore", INT).stack(2, 0)
+                .handler(StackInterpreter::fstore),
+            new Instruction("print").stack(1, 0)
+                .handler(StackInterpreter::print),
+            new Instruction("struct", INT).stack(0, 1)
+                .handler(StackInterpreter::struct),
+            new Instruction("null").stack(0, 1)
+                .handler(StackInterpreter::pushNull),
+            new Instruction("pop").stack(1, 0)
+                .handler(StackInterpreter::pop),
+            new Instruction("halt").stack(0, 0),
+            new Instruction("tstruct", POOL).stack(0, 1)
+                .handler(StackInterpreter::tstruct),
+            new Instruction("newarray", INT).stack(1, 1)
+                .handler(StackInterpreter::newarray),
+            new Instruction("iaload").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::iaload)),
+            new Instruction("iastore").stack(3, 0)
+                .handler(StackInterpreter::iastore),
+            new Instruction("faload").stack(2, 1)
+                .handler(StackInterpreter.binary(Ops::faload)),
+            new Instruction("fastore").stack(3, 0)
+                .handler(StackInterpreter::fastore),
+            new Instruction("arraylength").stack(1, 1)
+                .handler(StackInterpreter::arraylength),
+            new Instruction("ncall", POOL).stack(0, 1)
+                .handler(StackInterpreter::ncall),
+            new Instruction("spawn", FUNC).stack(0, 1)
+                .handler(StackInterpreter::spawn),
+            new Instruction("join").stack(1, 1)
+                .handler(StackInterpreter::join),
+            new Instruction("gcas", INT).stack(2, 1)
+                .handler(StackInterpreter::gcas),
+            new Instruction("gadd", INT).stack(1, 1)
+                .handler(StackInterpreter::gadd),
+            new Instruction("newchan").stack(1, 1)
+                .handler(StackInterpreter::newchan),
+            new Instruction("send").stack(2, 0)
+                .handler(StackInterpreter::send),
+            new Instruction("recv").stack(1, 1)
+                .handler(StackInterpreter::recv),
+            new Instruction("trysend").stack(2, 1)
+                .handler(StackInterpreter::trysend),
+            new Instruction("tryrecv").stack(1, 2)
+                .handler(StackInterpreter::tryrecv)
         };
     }
 }
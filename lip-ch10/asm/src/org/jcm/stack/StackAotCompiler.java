@@ -0,0 +1,560 @@
+package org.jcm.stack;
+
+import org.jcm.asm.AotCompiler;
+import org.jcm.asm.BasicBlock;
+import org.jcm.asm.Program;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * AotCompiler for stack machine code.  The operand stack is resolved at
+ *  translation time: the depth before every instruction must be the same
+ *  on every path to it, so each value pushed can be a JVM local (s0, s1,
+ *  ..) beside the frame's locals (l0, l1, ..), the values that meet at a
+ *  join sharing one.  A local then holds one kind of value wherever it
+ *  can, and is unboxed far more often than one local per depth would be.
+ *  A call pops its callee's args and
+ *  pushes what the callee leaves at ret, which must be always one value
+ *  or always none; as in OperandStackDepth, that is assumed to be one
+ *  and iterated until it settles.
+ *
+ * @author jmarchesini
+ */
+public class StackAotCompiler extends AotCompiler {
+    static final int MAX_ROUNDS = 8;
+
+    private int[] depth;    // operand stack depth before each instruction
+    private int[] leaves;   // values each function leaves at ret, 0 or 1
+    private int[] maxDepth; // by function
+    private int[] values;   // stack value slots, by function
+    private int[][] stacks; // slots on the operand stack before each instruction, bottom first
+    private int[][] pushed; // slots of what each instruction pushes, bottom first
+
+    public StackAotCompiler(Program program) { super(program); }
+
+    @Override
+    protected void prepare() {
+        int n = functions.length;
+        leaves = new int[n];
+        Arrays.fill(leaves, 1);
+        maxDepth = new int[n];
+        depth = new int[code.size()];
+        int[] left = new int[n];
+        String[] errors = new String[n];
+        boolean changed = true;
+
+        for (int round = 0; changed; round++) {
+            if (round == MAX_ROUNDS)
+                throw new IllegalArgumentException("what functions leave on the operand stack does not settle");
+
+            changed = false;
+
+            for (int f = 0; f < n; f++)
+                errors[f] = depths(f, left);
+
+            for (int f = 0; f < n; f++) {
+                if (left[f] >= 0 && left[f] != leaves[f]) {
+                    leaves[f] = left[f];
+                    changed = true;
+                }
+            }
+        }
+
+        for (String error : errors) {
+            if (error != null)
+                throw new IllegalArgumentException(error);
+        }
+
+        values = new int[n];
+        stacks = new int[code.size()][];
+        pushed = new int[code.size()][];
+
+        for (int f = 0; f < n; f++)
+            values(f);
+    }
+
+    /*
+     * Gives every value f pushes an id, then unions the ids that meet at a
+     * block entry and numbers what is left as slots after f's locals.  Ids
+     * only meet at the same depth, so values live at once never share.
+     */
+    private void values(int f) {
+        BasicBlock[] blocks = cfgs[f].getBlocks();
+        int ids = 0;
+
+        for (BasicBlock bb : blocks) {
+            if (bb.isReachable()) {
+                ids += depth[bb.getFirst()];
+
+                for (int i = bb.getFirst(); i <= bb.getLast(); i++)
+                    ids += pushes(i);
+            }
+        }
+
+        int[] parent = new int[ids];
+        int[][] exit = new int[blocks.length][];
+        int[] stack = new int[maxDepth[f] + 1];
+        int next = 0;
+
+        for (int k = 0; k < ids; k++)
+            parent[k] = k;
+
+        for (BasicBlock bb : blocks) {
+            if (!bb.isReachable())
+                continue;
+
+            int sp = depth[bb.getFirst()];
+
+            for (int k = 0; k < sp; k++)
+                stack[k] = next++;
+
+            for (int i = bb.getFirst(); i <= bb.getLast(); i++) {
+                stacks[i] = Arrays.copyOf(stack, sp);
+                sp -= pops(i);
+                pushed[i] = new int[pushes(i)];
+
+                for (int k = 0; k < pushed[i].length; k++)
+                    stack[sp++] = pushed[i][k] = next++;
+            }
+
+            exit[bb.getIndex()] = Arrays.copyOf(stack, sp);
+        }
+
+        for (BasicBlock bb : blocks) {
+            if (!bb.isReachable())
+                continue;
+
+            for (int s : bb.getSuccessors()) {
+                int[] entry = stacks[blocks[s].getFirst()];
+
+                for (int k = 0; k < entry.length; k++)
+                    parent[root(parent, exit[bb.getIndex()][k])] = root(parent, entry[k]);
+            }
+        }
+
+        int[] slot = new int[ids];
+        Arrays.fill(slot, -1);
+        int locals = locals(f);
+
+        for (BasicBlock bb : blocks) {
+            if (!bb.isReachable())
+                continue;
+
+            for (int i = bb.getFirst(); i <= bb.getLast(); i++) {
+                for (int[] web : new int[][] { stacks[i], pushed[i] }) {
+                    for (int k = 0; k < web.length; k++) {
+                        int r = root(parent, web[k]);
+
+                        if (slot[r] < 0)
+                            slot[r] = locals + values[f]++;
+
+                        web[k] = slot[r];
+                    }
+                }
+            }
+        }
+    }
+
+    private static int root(int[] parent, int id) {
+        while (parent[id] != id)
+            id = parent[id] = parent[parent[id]];
+
+        return id;
+    }
+
+    /* Depth before each instruction of f, or why there is none */
+    private String depths(int f, int[] left) {
+        BasicBlock[] blocks = cfgs[f].getBlocks();
+        String name = functions[f].getName();
+        left[f] = -1;
+        maxDepth[f] = 0;
+
+        if (blocks.length == 0)
+            return null;
+
+        int[] in = new int[blocks.length];
+        Arrays.fill(in, -1);
+        in[0] = 0;
+        int[] work = new int[blocks.length];
+        int top = 0;
+        work[top++] = 0;
+
+        while (top > 0) {
+            BasicBlock bb = blocks[work[--top]];
+            int d = in[bb.getIndex()];
+
+            for (int i = bb.getFirst(); i <= bb.getLast(); i++) {
+                depth[i] = d;
+                int pops = pops(i);
+
+                if (d < pops)
+                    return name + " pops below its own operand stack at " + code.offset(i);
+
+                if (code.opcode(i) == BytecodeDefinition.INSTR_RET) {
+                    if (d > 1 || left[f] >= 0 && left[f] != d)
+                        return name + " returns " + d + " values at " + code.offset(i) +
+                            "; a translated function returns always one or always none";
+
+                    left[f] = d;
+                }
+
+                d += pushes(i) - pops;
+                maxDepth[f] = Math.max(maxDepth[f], d);
+            }
+
+            for (int s : bb.getSuccessors()) {
+                if (in[s] < 0) {
+                    in[s] = d;
+                    work[top++] = s;
+                } else if (in[s] != d) {
+                    return "operand stack depth at " + blocks[s].getStart() + " in " + name +
+                        " depends on the path to it: " + in[s] + " or " + d;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private int pops(int i) {
+        switch (code.opcode(i)) {
+            case BytecodeDefinition.INSTR_CALL:
+            case BytecodeDefinition.INSTR_SPAWN:
+                return functions[function(code.operand(i, 0))].getNumArgs();
+            case BytecodeDefinition.INSTR_NCALL:
+                return host(code.operand(i, 0)).getParameterCount();
+            default:
+                return code.instruction(i).getPops();
+        }
+    }
+
+    private int pushes(int i) {
+        if (code.opcode(i) == BytecodeDefinition.INSTR_CALL)
+            return leaves[function(code.operand(i, 0))];
+
+        return code.instruction(i).getPushes();
+    }
+
+    private int locals(int f) { return functions[f].getNumArgs() + functions[f].getNumLocals(); }
+
+    @Override
+    protected int numSlots(int f) { return locals(f) + values[f]; }
+
+    /* Slot of the k-th value down from the top of the stack before i */
+    private int in(int i, int k) { return stacks[i][stacks[i].length - 1 - k]; }
+
+    /* Slot of the k-th value i pushes, counting from the bottom */
+    private int out(int i, int k) { return pushed[i][k]; }
+
+    /* Slots of the n values on top of the stack before i, bottom first */
+    private int[] args(int i, int n) { return Arrays.copyOfRange(stacks[i], stacks[i].length - n, stacks[i].length); }
+
+    @Override
+    protected int paramSlot(int f, int k) { return k; }
+
+    @Override
+    protected String slotName(int f, int slot) {
+        int n = locals(f);
+
+        return slot < n ? "l" + slot : "s" + (slot - n);
+    }
+
+    @Override
+    protected boolean returnsValue(int f) { return leaves[f] == 1; }
+
+    @Override
+    protected void assigns(int f, int i, BitSet written) {
+        if (code.opcode(i) == BytecodeDefinition.INSTR_STORE)
+            written.set(code.operand(i, 0));
+    }
+
+    @Override
+    protected void infer(int f, int i, BitSet assigned) {
+        int n, g;
+
+        switch (code.opcode(i)) {
+            case BytecodeDefinition.INSTR_IADD:
+            case BytecodeDefinition.INSTR_ISUB:
+            case BytecodeDefinition.INSTR_IMUL:
+            case BytecodeDefinition.INSTR_IALOAD:
+                widenSlot(f, out(i, 0), INT);
+                break;
+            case BytecodeDefinition.INSTR_FADD:
+            case BytecodeDefinition.INSTR_FSUB:
+            case BytecodeDefinition.INSTR_FMUL:
+            case BytecodeDefinition.INSTR_FALOAD:
+                widenSlot(f, out(i, 0), FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_ILT:
+            case BytecodeDefinition.INSTR_IEQ:
+            case BytecodeDefinition.INSTR_FLT:
+            case BytecodeDefinition.INSTR_FEQ:
+            case BytecodeDefinition.INSTR_GCAS:
+            case BytecodeDefinition.INSTR_TRYSEND:
+                widenSlot(f, out(i, 0), BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_ITOF:
+                widenSlot(f, out(i, 0), FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_ARRAYLENGTH:
+                widenSlot(f, out(i, 0), INT);
+                break;
+            case BytecodeDefinition.INSTR_CALL:
+            case BytecodeDefinition.INSTR_SPAWN:
+                g = function(code.operand(i, 0));
+                n = functions[g].getNumArgs();
+
+                for (int k = 0; k < n; k++)
+                    widenParam(g, k, slotType(f, in(i, n - 1 - k)));
+
+                if (code.opcode(i) == BytecodeDefinition.INSTR_SPAWN)
+                    widenSlot(f, out(i, 0), OBJECT);
+                else if (leaves[g] == 1)
+                    widenSlot(f, out(i, 0), results[g]);
+                break;
+            case BytecodeDefinition.INSTR_RET:
+                if (stacks[i].length == 1)
+                    widenResult(f, slotType(f, in(i, 0)));
+                break;
+            case BytecodeDefinition.INSTR_ICONST:
+                widenSlot(f, out(i, 0), INT);
+                break;
+            case BytecodeDefinition.INSTR_FCONST:
+                widenSlot(f, out(i, 0), FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_CCONST:
+            case BytecodeDefinition.INSTR_SCONST:
+            case BytecodeDefinition.INSTR_GLOAD:
+            case BytecodeDefinition.INSTR_STRUCT:
+            case BytecodeDefinition.INSTR_TSTRUCT:
+            case BytecodeDefinition.INSTR_NULL:
+                widenSlot(f, out(i, 0), OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_LOAD:
+                widenSlot(f, out(i, 0), readType(f, code.operand(i, 0), assigned));
+                break;
+            case BytecodeDefinition.INSTR_STORE:
+                widenSlot(f, code.operand(i, 0), slotType(f, in(i, 0)));
+                break;
+            case BytecodeDefinition.INSTR_FLOAD:
+            case BytecodeDefinition.INSTR_NEWARRAY:
+            case BytecodeDefinition.INSTR_JOIN:
+            case BytecodeDefinition.INSTR_GADD:
+            case BytecodeDefinition.INSTR_NEWCHAN:
+            case BytecodeDefinition.INSTR_RECV:
+                widenSlot(f, out(i, 0), OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_NCALL:
+                Method host = host(code.operand(i, 0));
+                widenSlot(f, out(i, 0), typeOf(host.getReturnType()));
+                break;
+            case BytecodeDefinition.INSTR_TRYRECV:
+                widenSlot(f, out(i, 0), OBJECT);
+                widenSlot(f, out(i, 1), BOOLEAN);
+                break;
+            default: // no result
+                break;
+        }
+    }
+
+    @Override
+    protected void emit(int f, int i, String indent, StringBuilder out) {
+        int d = stacks[i].length;
+        String a = d > 0 ? slotName(f, in(i, 0)) : null;
+        String b = d > 1 ? slotName(f, in(i, 1)) : null; // below a
+        int n, g;
+        String array, channel;
+
+        switch (code.opcode(i)) {
+            case BytecodeDefinition.INSTR_IADD:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), INT) + " + " + get(f, in(i, 0), INT) + ")", INT);
+                break;
+            case BytecodeDefinition.INSTR_ISUB:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), INT) + " - " + get(f, in(i, 0), INT) + ")", INT);
+                break;
+            case BytecodeDefinition.INSTR_IMUL:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), INT) + " * " + get(f, in(i, 0), INT) + ")", INT);
+                break;
+            case BytecodeDefinition.INSTR_ILT:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), INT) + " < " + get(f, in(i, 0), INT) + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_IEQ:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), INT) + " == " + get(f, in(i, 0), INT) + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_FADD:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), FLOAT) + " + " + get(f, in(i, 0), FLOAT) + ")", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_FSUB:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), FLOAT) + " - " + get(f, in(i, 0), FLOAT) + ")", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_FMUL:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), FLOAT) + " * " + get(f, in(i, 0), FLOAT) + ")", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_FLT:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), FLOAT) + " < " + get(f, in(i, 0), FLOAT) + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_FEQ:
+                set(out, indent, f, out(i, 0), "(" + get(f, in(i, 1), FLOAT) + " == " + get(f, in(i, 0), FLOAT) + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_ITOF:
+                set(out, indent, f, out(i, 0), "((float) " + get(f, in(i, 0), INT) + ")", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_CALL:
+                g = function(code.operand(i, 0));
+                n = functions[g].getNumArgs();
+                String call = call(f, g, args(i, n));
+
+                if (leaves[g] == 1)
+                    set(out, indent, f, out(i, 0), call, results[g]);
+                else
+                    out.append(indent).append(call).append(";\n");
+                break;
+            case BytecodeDefinition.INSTR_RET:
+                if (d == 1)
+                    out.append(indent).append("return ").append(get(f, in(i, 0), results[f])).append(";\n");
+                else
+                    out.append(indent).append("return;\n");
+                break;
+            case BytecodeDefinition.INSTR_BR:
+                out.append(indent).append(jump(f, code.operand(i, 0))).append('\n');
+                break;
+            case BytecodeDefinition.INSTR_BRT:
+            case BytecodeDefinition.INSTR_BRF:
+                boolean when = code.opcode(i) == BytecodeDefinition.INSTR_BRT;
+                String test;
+
+                if (slotType(f, in(i, 0)) == BOOLEAN)
+                    test = when ? a : "!" + a;
+                else // as interpreted, anything but a Boolean is neither true nor false
+                    test = cast("Object", a, slotType(f, in(i, 0))) + ".equals(" + when + ")";
+
+                out.append(indent).append("if (").append(test).append(") { ")
+                    .append(jump(f, code.operand(i, 0))).append(" }\n");
+                break;
+            case BytecodeDefinition.INSTR_CCONST:
+                set(out, indent, f, out(i, 0), "(char) " + code.operand(i, 0), OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_ICONST:
+                set(out, indent, f, out(i, 0), String.valueOf(code.operand(i, 0)), INT);
+                break;
+            case BytecodeDefinition.INSTR_FCONST:
+                set(out, indent, f, out(i, 0), literal(constPool[code.operand(i, 0)]), FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_SCONST:
+                set(out, indent, f, out(i, 0), literal(constPool[code.operand(i, 0)]), OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_LOAD:
+                int local = code.operand(i, 0);
+                set(out, indent, f, out(i, 0), slotName(f, local), slotType(f, local));
+                break;
+            case BytecodeDefinition.INSTR_GLOAD:
+                set(out, indent, f, out(i, 0), "G[" + code.operand(i, 0) + "]", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_FLOAD:
+                set(out, indent, f, out(i, 0), "Ops.fload(" + a + ", " + code.operand(i, 0) + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_STORE:
+                set(out, indent, f, code.operand(i, 0), a, slotType(f, in(i, 0)));
+                break;
+            case BytecodeDefinition.INSTR_GSTORE:
+                out.append(indent).append("G[").append(code.operand(i, 0)).append("] = ").append(a).append(";\n");
+                break;
+            case BytecodeDefinition.INSTR_FSTORE: // value, struct
+                out.append(indent).append("Ops.fstore(").append(a).append(", ").append(code.operand(i, 0))
+                    .append(", ").append(b).append(");\n");
+                break;
+            case BytecodeDefinition.INSTR_PRINT:
+                out.append(indent).append("AotRuntime.print(").append(a).append(");\n");
+                break;
+            case BytecodeDefinition.INSTR_STRUCT:
+                set(out, indent, f, out(i, 0), "new StructSpace(" + code.operand(i, 0) + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_NULL:
+                set(out, indent, f, out(i, 0), "null", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_POP:
+                break;
+            case BytecodeDefinition.INSTR_HALT:
+                out.append(indent).append("throw AotRuntime.HALT;\n");
+                break;
+            case BytecodeDefinition.INSTR_TSTRUCT:
+                set(out, indent, f, out(i, 0), "AotRuntime.tstruct(" + layout(code.operand(i, 0)) + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_NEWARRAY:
+                int kind = code.operand(i, 0);
+
+                if (kind == 'i' || kind == 'f')
+                    set(out, indent, f, out(i, 0), "new " + (kind == 'i' ? "int[" : "float[") + get(f, in(i, 0), INT) + "]", OBJECT);
+                else
+                    set(out, indent, f, out(i, 0), "Ops.newarray(" + kind + ", " + a + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_IALOAD:   // array, index
+                array = cast("int[]", b, slotType(f, in(i, 1)));
+                set(out, indent, f, out(i, 0), array + "[" + get(f, in(i, 0), INT) + "]", INT);
+                break;
+            case BytecodeDefinition.INSTR_FALOAD:
+                array = cast("float[]", b, slotType(f, in(i, 1)));
+                set(out, indent, f, out(i, 0), array + "[" + get(f, in(i, 0), INT) + "]", FLOAT);
+                break;
+            case BytecodeDefinition.INSTR_IASTORE:  // array, index, value
+                array = cast("int[]", slotName(f, in(i, 2)), slotType(f, in(i, 2)));
+                out.append(indent).append(array).append('[').append(get(f, in(i, 1), INT)).append("] = ")
+                    .append(get(f, in(i, 0), INT)).append(";\n");
+                break;
+            case BytecodeDefinition.INSTR_FASTORE:
+                array = cast("float[]", slotName(f, in(i, 2)), slotType(f, in(i, 2)));
+                out.append(indent).append(array).append('[').append(get(f, in(i, 1), INT)).append("] = ")
+                    .append(get(f, in(i, 0), FLOAT)).append(";\n");
+                break;
+            case BytecodeDefinition.INSTR_ARRAYLENGTH:
+                set(out, indent, f, out(i, 0), "AotRuntime.arraylength(" + a + ")", INT);
+                break;
+            case BytecodeDefinition.INSTR_NCALL:
+                Method host = host(code.operand(i, 0));
+                n = host.getParameterCount();
+                emitHostCall(out, indent, f, host, args(i, n), out(i, 0));
+                break;
+            case BytecodeDefinition.INSTR_SPAWN:
+                g = function(code.operand(i, 0));
+                n = functions[g].getNumArgs();
+                emitSpawn(out, indent, f, g, args(i, n), out(i, 0));
+                break;
+            case BytecodeDefinition.INSTR_JOIN:
+                set(out, indent, f, out(i, 0), "AotRuntime.join(" + a + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_GCAS:  // expected, new
+                set(out, indent, f, out(i, 0), "Ops.gcas(G, " + code.operand(i, 0) + ", " + b + ", " + a + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_GADD:
+                set(out, indent, f, out(i, 0), "Ops.gadd(G, " + code.operand(i, 0) + ", " + a + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_NEWCHAN:
+                set(out, indent, f, out(i, 0), "new Channel(" + get(f, in(i, 0), INT) + ")", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_SEND:    // channel, value
+                channel = cast("Channel", b, slotType(f, in(i, 1)));
+                out.append(indent).append(channel).append(".send(").append(a).append(");\n");
+                break;
+            case BytecodeDefinition.INSTR_RECV:
+                set(out, indent, f, out(i, 0), cast("Channel", a, slotType(f, in(i, 0))) + ".receive()", OBJECT);
+                break;
+            case BytecodeDefinition.INSTR_TRYSEND:
+                channel = cast("Channel", b, slotType(f, in(i, 1)));
+                set(out, indent, f, out(i, 0), channel + ".offer(" + a + ")", BOOLEAN);
+                break;
+            case BytecodeDefinition.INSTR_TRYRECV:
+                out.append(indent).append("{\n");
+                out.append(indent).append("    Object v = ").append(cast("Channel", a, slotType(f, in(i, 0))))
+                    .append(".poll();\n");
+                set(out, indent + "    ", f, out(i, 1), "(v != Channel.EMPTY)", BOOLEAN);
+                set(out, indent + "    ", f, out(i, 0), "(v != Channel.EMPTY ? v : null)", OBJECT);
+                out.append(indent).append("}\n");
+                break;
+            default:
+                throw new IllegalArgumentException("cannot translate opcode " + code.opcode(i) +
+                    " at " + code.offset(i));
+        }
+    }
+}
@@ -8,16 +8,33 @@
  */
 package org.jcm.stack;
 
+import org.jcm.asm.AotCompiler;
+import org.jcm.asm.Channel;
 import org.jcm.asm.FunctionSymbol;
+import org.jcm.asm.GuestEvents;
+import org.jcm.asm.GuestTask;
+import org.jcm.asm.HostFunction;
+import org.jcm.asm.InstructionHandler;
 import org.jcm.asm.InterpreterBase;
+import org.jcm.asm.Ops;
+import org.jcm.asm.Program;
 import org.jcm.asm.StructSpace;
+import org.jcm.asm.TypedStruct;
+
+import java.util.Arrays;
+import java.util.function.BinaryOperator;
 
 /**
  * A simple stack-based interpreter - pattern 27
  */
 public class StackInterpreter extends InterpreterBase {
 
-    StackFrame[] calls = new StackFrame[DEFAULT_CALL_STACK_SIZE];
+    StackFrame[] calls = new StackFrame[INITIAL_CALL_STACK_SIZE];
+
+    public StackInterpreter() { }
+
+    /** An interpreter for program; share one Program among many of these. */
+    public StackInterpreter(Program program) { super(program); }
 
     public static void main(String[] args) throws Exception {
         StackInterpreter si = new StackInterpreter();
@@ -26,32 +43,59 @@ public class StackInterpreter extends InterpreterBase {
     }
 
     @Override
-    public void exec() {
+    protected void enter() {
         // simulate "call main()" - set up stack and start at addr 0
         if (mainFunction == null)
-            mainFunction = new FunctionSymbol("main", 0, 0, 0);
+            mainFunction = implicitMain();
 
-        StackFrame mainFrame = new StackFrame(mainFunction, -1);
+        // returning from main runs off the end of code memory
+        StackFrame mainFrame = new StackFrame(mainFunction, codeSize);
         calls[++fp] = mainFrame;
+        reserveOperands(mainFunction);
         ip = mainFunction.getAddress();
+    }
 
-        cpu();
+    @Override
+    protected FunctionSymbol frameFunction(int i) { return calls[i].sym; }
+
+    @Override
+    protected int frameReturnAddress(int i) { return calls[i].returnAddress; }
+
+    @Override
+    protected Object[] frameSlots(int i) { return calls[i].locals; }
+
+    @Override
+    protected Object[] pushFrame(FunctionSymbol sym, int returnAddress) {
+        StackFrame frame = new StackFrame(sym, returnAddress);
+
+        if (fp + 1 == calls.length)
+            calls = Arrays.copyOf(calls, growCallStack(calls.length));
+
+        calls[++fp] = frame;
+
+        return frame.locals;
     }
 
     /* Interpreter's fetch-decode-execute cycle */
-    private void cpu() {
+    @Override
+    protected void cpu() {
         Object v;
         int a, b;
         float e, f;
         int addr;
+        long retired = 0;
 
-        short opcode = code[ip];
+        status = HALTED;
 
-        while (opcode != BytecodeDefinition.INSTR_HALT && ip < codeSize) {
-            if (trace)
-                trace();
+        loop:
+        while (ip < codeSize) {
+            short opcode = code[ip];
+
+            if (opcode == BytecodeDefinition.INSTR_HALT)
+                break;
 
             ip++; //jump to next instruction or first byte of operand
+            retired++;
 
             switch (opcode) {
                 case BytecodeDefinition.INSTR_IADD:
@@ -121,21 +165,24 @@ public class StackInterpreter extends InterpreterBase {
                 case BytecodeDefinition.INSTR_CALL:
                     int funcIndexInConstPool = getIntOperand();
                     call(funcIndexInConstPool);
+                    if (safePoint()) break loop;
                     break;
                 case BytecodeDefinition.INSTR_RET:  // result is on op stack
+                    if (isSampledCall()) endSampledCall();
                     StackFrame fr = calls[fp--];    // pop stack frame
                     ip = fr.returnAddress;          // branch to ret addr
+                    transferred(ip);
                     break;
                 case BytecodeDefinition.INSTR_BR:
-                    ip = getIntOperand();
+                    if (jump(getIntOperand())) break loop;
                     break;
                 case BytecodeDefinition.INSTR_BRT:
                     addr = getIntOperand();
-                    if (operands[sp--].equals(true)) ip = addr;
+                    if (branch(operands[sp--].equals(true), addr)) break loop;
                     break;
                 case BytecodeDefinition.INSTR_BRF:
                     addr = getIntOperand();
-                    if (operands[sp--].equals(false)) ip = addr;
+                    if (branch(operands[sp--].equals(false), addr)) break loop;
                     break;
                 case BytecodeDefinition.INSTR_CCONST:
                     operands[++sp] = (char) getIntOperand(); // push operand
@@ -157,9 +204,12 @@ public class StackInterpreter extends InterpreterBase {
                     operands[++sp] = globals[addr];
                     break;
                 case BytecodeDefinition.INSTR_FLOAD: // load from struct field
-                    StructSpace struct = (StructSpace) operands[sp--];
+                    v = operands[sp--];
                     int fieldOffset = getIntOperand();
-                    operands[++sp] = struct.getFields()[fieldOffset];
+                    if (v instanceof TypedStruct)
+                        operands[++sp] = ((TypedStruct) v).get(fieldOffset);
+                    else
+                        operands[++sp] = ((StructSpace) v).getFields()[fieldOffset];
                     break;
                 case BytecodeDefinition.INSTR_STORE:
                     addr = getIntOperand();
@@ -170,17 +220,22 @@ public class StackInterpreter extends InterpreterBase {
                     globals[addr] = operands[sp--];
                     break;
                 case BytecodeDefinition.INSTR_FSTORE:
-                    struct = (StructSpace) operands[sp--];
+                    Object struct = operands[sp--];
                     v = operands[sp--];
                     fieldOffset = getIntOperand();
-                    struct.getFields()[fieldOffset] = v;
+                    if (struct instanceof TypedStruct)
+                        ((TypedStruct) struct).set(fieldOffset, v);
+                    else
+                        ((StructSpace) struct).getFields()[fieldOffset] = v;
                     break;
                 case BytecodeDefinition.INSTR_PRINT:
-                    System.out.println(operands[sp--]);
+                    print(operands[sp--]);
                     break;
                 case BytecodeDefinition.INSTR_STRUCT:
                     int numFields = getIntOperand();
                     operands[++sp] = new StructSpace(numFields);
+                    structAllocations++;
+                    if (GuestEvents.structsEnabled()) structAllocated(numFields);
                     break;
                 case BytecodeDefinition.INSTR_NULL:
                     operands[++sp] = null;
@@ -188,17 +243,81 @@ public class StackInterpreter extends InterpreterBase {
                 case BytecodeDefinition.INSTR_POP:
                     --sp;
                     break;
+                case BytecodeDefinition.INSTR_TSTRUCT:
+                    operands[++sp] = newTypedStruct(getIntOperand());
+                    break;
+                case BytecodeDefinition.INSTR_NEWARRAY: // length on top
+                    operands[sp] = Ops.newarray(getIntOperand(), operands[sp]);
+                    break;
+                case BytecodeDefinition.INSTR_IALOAD:   // array, index
+                    v = operands[sp--];
+                    operands[sp] = Ops.iaload(operands[sp], v);
+                    break;
+                case BytecodeDefinition.INSTR_IASTORE:  // array, index, value
+                    v = operands[sp--];
+                    sp -= 2;
+                    Ops.iastore(operands[sp + 1], operands[sp + 2], v);
+                    break;
+                case BytecodeDefinition.INSTR_FALOAD:
+                    v = operands[sp--];
+                    operands[sp] = Ops.faload(operands[sp], v);
+                    break;
+                case BytecodeDefinition.INSTR_FASTORE:
+                    v = operands[sp--];
+                    sp -= 2;
+                    Ops.fastore(operands[sp + 1], operands[sp + 2], v);
+                    break;
+                case BytecodeDefinition.INSTR_ARRAYLENGTH:
+                    operands[sp] = Ops.arraylength(operands[sp]);
+                    break;
+                case BytecodeDefinition.INSTR_NCALL:
+                    ncall(hostFunctions[getIntOperand()]);
+                    break;
+                case BytecodeDefinition.INSTR_SPAWN:
+                    spawn((FunctionSymbol) constPool[getIntOperand()]);
+                    break;
+                case BytecodeDefinition.INSTR_JOIN:
+                    operands[sp] = ((GuestTask) operands[sp]).join();
+                    break;
+                case BytecodeDefinition.INSTR_GCAS:  // expected, new
+                    v = operands[sp--];
+                    operands[sp] = Ops.gcas(globals, getIntOperand(), operands[sp], v);
+                    break;
+                case BytecodeDefinition.INSTR_GADD:
+                    operands[sp] = Ops.gadd(globals, getIntOperand(), operands[sp]);
+                    break;
+                case BytecodeDefinition.INSTR_NEWCHAN:
+                    operands[sp] = new Channel((Integer) operands[sp]);
+                    break;
+                case BytecodeDefinition.INSTR_SEND:    // channel, value
+                    v = operands[sp--];
+                    ((Channel) operands[sp--]).send(v);
+                    break;
+                case BytecodeDefinition.INSTR_RECV:
+                    operands[sp] = ((Channel) operands[sp]).receive();
+                    break;
+                case BytecodeDefinition.INSTR_TRYSEND:
+                    v = operands[sp--];
+                    operands[sp] = ((Channel) operands[sp]).offer(v);
+                    break;
+                case BytecodeDefinition.INSTR_TRYRECV:
+                    tryrecv();
+                    break;
                 default:
                     throw new Error("invalid opcode: " + opcode + " at ip=" + (ip - 1));
             }
-            opcode = code[ip];
         }
+
+        instructionsRetired += retired;
     }
 
     private void call(int functionConstPoolIndex) {
         FunctionSymbol funSym = (FunctionSymbol) constPool[functionConstPoolIndex];
         StackFrame frame = new StackFrame(funSym, ip);
 
+        if (fp + 1 == calls.length)
+            calls = Arrays.copyOf(calls, growCallStack(calls.length));
+
         calls[++fp] = frame; // push new stack frame for parameters and locals
 
         // move args from operand stack to top frame on call stack
@@ -206,31 +325,270 @@ public class StackInterpreter extends InterpreterBase {
             frame.locals[a] = operands[sp--];
         }
 
+        reserveOperands(funSym);  // callee's pushes need no check
         ip = funSym.getAddress(); // branch to function
+        callCount++;
+        transferred(ip);
+        coverage.mark(ip);
+    }
+
+    /* args on top of the stack, first arg deepest; the result replaces them */
+    private void ncall(HostFunction host) {
+        int first = sp - host.getNumArgs() + 1;
+        operands[first] = host.invoke(operands, first);
+        sp = first;
+    }
+
+    /* channel on top; push the value or null, then whether there was one */
+    private void tryrecv() {
+        Object v = ((Channel) operands[sp]).poll();
+        boolean received = v != Channel.EMPTY;
+        operands[sp] = received ? v : null;
+        operands[++sp] = received;
     }
 
-    private void trace() {
-        disasm.disassembleInstruction(ip);
+    /* args as for call; the task replaces them */
+    private void spawn(FunctionSymbol f) {
+        int first = sp - f.getNumArgs() + 1;
+        operands[first] = startTask(f, operands, first);
+        sp = first;
+    }
+
+    @Override
+    protected InterpreterBase fork(FunctionSymbol f, Object[] args, int first) {
+        StackInterpreter child = new StackInterpreter(program);
+        StackFrame frame = new StackFrame(f, codeSize); // returning runs off the end
+
+        System.arraycopy(args, first, frame.locals, 0, f.getNumArgs());
+        child.calls[++child.fp] = frame;
+        child.reserveOperands(f);
+        child.ip = f.getAddress();
+        child.status = YIELDED; // entered; run() continues at ip
+
+        return child;
+    }
+
+    @Override
+    protected Object forkResult() { return sp >= 0 ? operands[sp] : null; }
+
+    @Override
+    protected AotCompiler newAotCompiler(Program program) { return new StackAotCompiler(program); }
+
+    /* Instruction handlers, attached in BytecodeDefinition; see HandlerDispatch */
+
+    static InstructionHandler<StackInterpreter> binary(BinaryOperator<Object> op) {
+        return vm -> {
+            Object b = vm.operands[vm.sp--];
+            vm.operands[vm.sp] = op.apply(vm.operands[vm.sp], b);
+            return false;
+        };
+    }
+
+    static boolean itof(StackInterpreter vm) {
+        vm.operands[vm.sp] = Ops.itof(vm.operands[vm.sp]);
+        return false;
+    }
+
+    static boolean call(StackInterpreter vm) {
+        vm.call(vm.getIntOperand());
+        return vm.safePoint();
+    }
+
+    static boolean ret(StackInterpreter vm) {
+        if (vm.isSampledCall()) vm.endSampledCall();
+        vm.ip = vm.calls[vm.fp--].returnAddress;
+        vm.transferred(vm.ip);
+        return false;
+    }
+
+    static boolean br(StackInterpreter vm) { return vm.jump(vm.getIntOperand()); }
+
+    static boolean brt(StackInterpreter vm) {
+        int addr = vm.getIntOperand();
+        return vm.branch(vm.operands[vm.sp--].equals(true), addr);
+    }
+
+    static boolean brf(StackInterpreter vm) {
+        int addr = vm.getIntOperand();
+        return vm.branch(vm.operands[vm.sp--].equals(false), addr);
+    }
+
+    static boolean cconst(StackInterpreter vm) {
+        vm.operands[++vm.sp] = (char) vm.getIntOperand();
+        return false;
+    }
+
+    static boolean iconst(StackInterpreter vm) {
+        vm.operands[++vm.sp] = vm.getIntOperand();
+        return false;
+    }
+
+    static boolean pconst(StackInterpreter vm) { // fconst, sconst
+        vm.operands[++vm.sp] = vm.constPool[vm.getIntOperand()];
+        return false;
+    }
+
+    static boolean load(StackInterpreter vm) {
+        vm.operands[++vm.sp] = vm.calls[vm.fp].locals[vm.getIntOperand()];
+        return false;
+    }
+
+    static boolean gload(StackInterpreter vm) {
+        vm.operands[++vm.sp] = vm.globals[vm.getIntOperand()];
+        return false;
+    }
+
+    static boolean fload(StackInterpreter vm) {
+        vm.operands[vm.sp] = Ops.fload(vm.operands[vm.sp], vm.getIntOperand());
+        return false;
+    }
+
+    static boolean store(StackInterpreter vm) {
+        vm.calls[vm.fp].locals[vm.getIntOperand()] = vm.operands[vm.sp--];
+        return false;
+    }
+
+    static boolean gstore(StackInterpreter vm) {
+        vm.globals[vm.getIntOperand()] = vm.operands[vm.sp--];
+        return false;
+    }
+
+    static boolean fstore(StackInterpreter vm) {
+        Object struct = vm.operands[vm.sp--];
+        Ops.fstore(struct, vm.getIntOperand(), vm.operands[vm.sp--]);
+        return false;
+    }
+
+    static boolean print(StackInterpreter vm) {
+        vm.print(vm.operands[vm.sp--]);
+        return false;
+    }
+
+    static boolean struct(StackInterpreter vm) {
+        int numFields = vm.getIntOperand();
+        vm.operands[++vm.sp] = new StructSpace(numFields);
+        vm.structAllocations++;
+        if (GuestEvents.structsEnabled()) vm.structAllocated(numFields);
+        return false;
+    }
+
+    static boolean tstruct(StackInterpreter vm) {
+        vm.operands[++vm.sp] = vm.newTypedStruct(vm.getIntOperand());
+        return false;
+    }
+
+    static boolean newarray(StackInterpreter vm) {
+        vm.operands[vm.sp] = Ops.newarray(vm.getIntOperand(), vm.operands[vm.sp]);
+        return false;
+    }
+
+    static boolean iastore(StackInterpreter vm) {
+        Object v = vm.operands[vm.sp--];
+        Object index = vm.operands[vm.sp--];
+        Ops.iastore(vm.operands[vm.sp--], index, v);
+        return false;
+    }
+
+    static boolean fastore(StackInterpreter vm) {
+        Object v = vm.operands[vm.sp--];
+        Object index = vm.operands[vm.sp--];
+        Ops.fastore(vm.operands[vm.sp--], index, v);
+        return false;
+    }
+
+    static boolean arraylength(StackInterpreter vm) {
+        vm.operands[vm.sp] = Ops.arraylength(vm.operands[vm.sp]);
+        return false;
+    }
+
+    static boolean ncall(StackInterpreter vm) {
+        vm.ncall(vm.hostFunctions[vm.getIntOperand()]);
+        return false;
+    }
+
+    static boolean spawn(StackInterpreter vm) {
+        vm.spawn((FunctionSymbol) vm.constPool[vm.getIntOperand()]);
+        return false;
+    }
+
+    static boolean join(StackInterpreter vm) {
+        vm.operands[vm.sp] = ((GuestTask) vm.operands[vm.sp]).join();
+        return false;
+    }
+
+    static boolean gcas(StackInterpreter vm) {
+        Object v = vm.operands[vm.sp--];
+        vm.operands[vm.sp] = Ops.gcas(vm.globals, vm.getIntOperand(), vm.operands[vm.sp], v);
+        return false;
+    }
+
+    static boolean gadd(StackInterpreter vm) {
+        vm.operands[vm.sp] = Ops.gadd(vm.globals, vm.getIntOperand(), vm.operands[vm.sp]);
+        return false;
+    }
+
+    static boolean newchan(StackInterpreter vm) {
+        vm.operands[vm.sp] = new Channel((Integer) vm.operands[vm.sp]);
+        return false;
+    }
+
+    static boolean send(StackInterpreter vm) {
+        Object v = vm.operands[vm.sp--];
+        ((Channel) vm.operands[vm.sp--]).send(v);
+        return false;
+    }
+
+    static boolean recv(StackInterpreter vm) {
+        vm.operands[vm.sp] = ((Channel) vm.operands[vm.sp]).receive();
+        return false;
+    }
+
+    static boolean trysend(StackInterpreter vm) {
+        Object v = vm.operands[vm.sp--];
+        vm.operands[vm.sp] = ((Channel) vm.operands[vm.sp]).offer(v);
+        return false;
+    }
+
+    static boolean tryrecv(StackInterpreter vm) {
+        vm.tryrecv();
+        return false;
+    }
+
+    static boolean pushNull(StackInterpreter vm) {
+        vm.operands[++vm.sp] = null;
+        return false;
+    }
+
+    static boolean pop(StackInterpreter vm) {
+        vm.sp--;
+        return false;
+    }
+
+    @Override
+    protected void trace() {
+        getDisAssembler().disassembleInstruction(ip, out);
 
-        System.out.print("\tstack=[");
+        out.print("\tstack=[");
 
         for (int i = 0; i <= sp; i++) {
             Object o = operands[i];
-            System.out.print(" " + o);
+            out.print(' ');
+            out.print(o);
         }
 
-        System.out.print(" ]");
+        out.print(" ]");
 
         if (fp >= 0) {
-            System.out.print(", calls=[");
+            out.print(", calls=[");
 
             for (int i = 0; i <= fp; i++) {
-                System.out.print(" " + calls[i].sym.getName());
+                out.print(' ');
+                out.print(calls[i].sym.getName());
             }
 
-            System.out.print(" ]");
+            out.print(" ]");
         }
 
-        System.out.println();
+        out.println();
     }
 }